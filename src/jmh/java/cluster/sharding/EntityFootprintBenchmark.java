@@ -0,0 +1,121 @@
+package cluster.sharding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jol.info.GraphLayout;
+
+import java.io.Serializable;
+import java.util.concurrent.TimeUnit;
+
+// Footprint of one million resident entities with the values stored inline and shared numeric ids, against the
+// previous layout of an Id and a Value wrapper per entity. The footprint is measured with JOL in the setup, the
+// benchmarks create and update entities, run them with -prof gc for the allocation rate.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class EntityFootprintBenchmark {
+    private static final int residentEntities = 1_000_000;
+
+    @Param({"long", "string"})
+    public String valueType;
+
+    private final String[] ids = new String[residentEntities];
+    private Entity[] entities;
+    private PreviousEntity[] previousEntities;
+    private int next;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < residentEntities; i++) {
+            ids[i] = String.valueOf(i);
+        }
+        entities = new Entity[residentEntities];
+        previousEntities = new PreviousEntity[residentEntities];
+        for (int i = 0; i < residentEntities; i++) {
+            entities[i] = new Entity(Entity.Id.of(ids[i]), value(i));
+            previousEntities[i] = new PreviousEntity(ids[i], value(i));
+        }
+        // The id strings are shared by both layouts, they are left out of both footprints.
+        final long idStrings = GraphLayout.parseInstance((Object[]) ids).totalSize();
+        final long inline = GraphLayout.parseInstance((Object[]) entities).totalSize() - idStrings;
+        final long previous = GraphLayout.parseInstance((Object[]) previousEntities).totalSize() - idStrings;
+        System.out.printf("%n%d %s entities: inline %d bytes (%.1f per entity), previous %d bytes (%.1f per entity)%n",
+                residentEntities, valueType, inline, (double) inline / residentEntities, previous, (double) previous / residentEntities);
+    }
+
+    private Object value(int i) {
+        return valueType.equals("long") ? (Object) (i * 1000L) : ids[i];
+    }
+
+    private int next() {
+        next = next + 1 == residentEntities ? 0 : next + 1;
+        return next;
+    }
+
+    @Benchmark
+    public Entity create() {
+        final int i = next();
+        return new Entity(Entity.Id.of(ids[i]), value(i));
+    }
+
+    @Benchmark
+    public PreviousEntity createPrevious() {
+        final int i = next();
+        return new PreviousEntity(ids[i], value(i));
+    }
+
+    @Benchmark
+    public Entity update() {
+        final int i = next();
+        final Entity entity = entities[i];
+        entity.update(entities[residentEntities - 1 - i]);
+        return entity;
+    }
+
+    @Benchmark
+    public PreviousEntity updatePrevious() {
+        final int i = next();
+        final PreviousEntity entity = previousEntities[i];
+        entity.value = previousEntities[residentEntities - 1 - i].value;
+        return entity;
+    }
+
+    // The entity layout before values were stored inline.
+    public static class PreviousEntity implements Serializable {
+        final PreviousId id;
+        PreviousValue value;
+
+        PreviousEntity(String id, Object value) {
+            this.id = new PreviousId(id);
+            this.value = new PreviousValue(value);
+        }
+    }
+
+    static class PreviousId implements Serializable {
+        final String id;
+
+        PreviousId(String id) {
+            this.id = id;
+        }
+    }
+
+    static class PreviousValue implements Serializable {
+        final Object value;
+
+        PreviousValue(Object value) {
+            this.value = value;
+        }
+    }
+}
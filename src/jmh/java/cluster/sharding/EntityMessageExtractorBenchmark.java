@@ -0,0 +1,108 @@
+package cluster.sharding;
+
+import akka.cluster.sharding.ShardRegion;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+// Shard and entity id extraction of a command by the EntityMessageExtractor against the extractor it replaced, which
+// built the shard id string of every message with a plain modulo of the hash code.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityMessageExtractorBenchmark {
+    @Param({"100", "1000"})
+    public int numberOfShards;
+
+    private static final int commandCount = 1024;
+    private final EntityMessage.Command[] commands = new EntityMessage.Command[commandCount];
+    private EntityMessageExtractor modulo;
+    private EntityMessageExtractor jump;
+    private ShardRegion.MessageExtractor previous;
+    private int next;
+
+    @Setup
+    public void setup() {
+        for (int i = 0; i < commandCount; i++) {
+            commands[i] = new EntityMessage.Command(i, new Entity(String.valueOf(i * 97 % 100_000), (long) i));
+        }
+        modulo = new EntityMessageExtractor(numberOfShards, EntityMessageExtractor.ShardIdStrategy.MODULO);
+        jump = new EntityMessageExtractor(numberOfShards, EntityMessageExtractor.ShardIdStrategy.JUMP);
+        previous = new PreviousMessageExtractor(numberOfShards);
+    }
+
+    private EntityMessage.Command command() {
+        return commands[next++ & commandCount - 1];
+    }
+
+    @Benchmark
+    public void modulo(Blackhole blackhole) {
+        final EntityMessage.Command command = command();
+        blackhole.consume(modulo.shardId(command));
+        blackhole.consume(modulo.entityId(command));
+    }
+
+    @Benchmark
+    public void jump(Blackhole blackhole) {
+        final EntityMessage.Command command = command();
+        blackhole.consume(jump.shardId(command));
+        blackhole.consume(jump.entityId(command));
+    }
+
+    @Benchmark
+    public void previous(Blackhole blackhole) {
+        final EntityMessage.Command command = command();
+        blackhole.consume(previous.shardId(command));
+        blackhole.consume(previous.entityId(command));
+    }
+
+    // The message extractor as it was before EntityMessageExtractor, for commands and queries.
+    private static class PreviousMessageExtractor implements ShardRegion.MessageExtractor {
+        private final int numberOfShards;
+
+        PreviousMessageExtractor(int numberOfShards) {
+            this.numberOfShards = numberOfShards;
+        }
+
+        @Override
+        public String shardId(Object message) {
+            if (message instanceof EntityMessage.Command) {
+                return ((EntityMessage.Command) message).entity.id.id.hashCode() % numberOfShards + "";
+            } else if (message instanceof EntityMessage.Query) {
+                return ((EntityMessage.Query) message).id.id.hashCode() % numberOfShards + "";
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public String entityId(Object message) {
+            if (message instanceof EntityMessage.Command) {
+                return ((EntityMessage.Command) message).entity.id.id;
+            } else if (message instanceof EntityMessage.Query) {
+                return ((EntityMessage.Query) message).id.id;
+            } else {
+                return null;
+            }
+        }
+
+        @Override
+        public Object entityMessage(Object message) {
+            return message;
+        }
+    }
+}
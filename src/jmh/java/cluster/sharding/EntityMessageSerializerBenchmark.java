@@ -0,0 +1,91 @@
+package cluster.sharding;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+// The hand-written EntityMessageSerializer against the FstSerializer it replaced, a round trip of a command, a query
+// ack and a shard query ack of 100 entities. The bytes benchmarks also report the serialized size in the setup.
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class EntityMessageSerializerBenchmark {
+    @Param({"command", "queryAck", "shardQueryAck"})
+    public String message;
+
+    private final EntityMessageSerializer entitySerializer = new EntityMessageSerializer();
+    private final FstSerializer fstSerializer = new FstSerializer();
+    private final ByteBuffer heapBuffer = ByteBuffer.allocate(1 << 16);
+    private final ByteBuffer directBuffer = ByteBuffer.allocateDirect(1 << 16);
+    private Object object;
+    private String manifest;
+    private byte[] entityBytes;
+    private byte[] fstBytes;
+
+    @Setup
+    public void setup() {
+        final Entity entity = new Entity("4711", "value-4711");
+        switch (message) {
+            case "command":
+                object = new EntityMessage.Command(1, System.currentTimeMillis(), entity, EntityMessage.Command.deliveryFull, 0);
+                break;
+            case "queryAck":
+                object = new EntityMessage.QueryAck(1, System.currentTimeMillis(), entity);
+                break;
+            default:
+                final List<Entity> found = new ArrayList<>();
+                for (int i = 0; i < 100; i++) {
+                    found.add(new Entity(String.valueOf(i), (long) i));
+                }
+                object = new EntityMessage.ShardQueryAck(1, found, new ArrayList<>());
+                break;
+        }
+        manifest = entitySerializer.manifest(object);
+        entityBytes = entitySerializer.toBinary(object);
+        fstBytes = fstSerializer.toBinary(object);
+        System.out.printf("%n%s: %d bytes, fst %d bytes%n", message, entityBytes.length, fstBytes.length);
+    }
+
+    @Benchmark
+    public Object entityBytes() throws NotSerializableException {
+        return entitySerializer.fromBinary(entitySerializer.toBinary(object), manifest);
+    }
+
+    @Benchmark
+    public Object entityHeapBuffer() throws NotSerializableException {
+        heapBuffer.clear();
+        entitySerializer.toBinary(object, heapBuffer);
+        heapBuffer.flip();
+        return entitySerializer.fromBinary(heapBuffer, manifest);
+    }
+
+    @Benchmark
+    public Object entityDirectBuffer() throws NotSerializableException {
+        directBuffer.clear();
+        entitySerializer.toBinary(object, directBuffer);
+        directBuffer.flip();
+        return entitySerializer.fromBinary(directBuffer, manifest);
+    }
+
+    @Benchmark
+    public Object fstBytes() {
+        return fstSerializer.fromBinaryJava(fstSerializer.toBinary(object), null);
+    }
+}
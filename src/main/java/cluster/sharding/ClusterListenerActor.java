@@ -5,90 +5,121 @@ import akka.actor.Cancellable;
 import akka.actor.Props;
 import akka.cluster.Cluster;
 import akka.cluster.ClusterEvent;
-import akka.cluster.ClusterEvent.CurrentClusterState;
-import akka.cluster.Member;
+import com.typesafe.config.Config;
 
 import java.time.Duration;
-import java.util.Optional;
-import java.util.function.Consumer;
-import java.util.stream.StreamSupport;
+import java.util.ArrayList;
+import java.util.List;
 
+// Keeps a ClusterView up to date from cluster events and logs one line per membership change. The first change is
+// logged at once, further changes within log-interval are logged together at its end, at most max-log-lines of them,
+// so a rolling restart of a large cluster does not flood the log. A one line summary follows summary-delay after the
+// first change.
 class ClusterListenerActor extends AbstractLoggingActor {
     private final Cluster cluster = Cluster.get(context().system());
+    private final ClusterView clusterView = new ClusterView();
+    private final Duration logInterval;
+    private final int maxLogLines;
+    private final Duration summaryDelay;
+    private final List<String> changes = new ArrayList<>();
+    private int unloggedChanges;
+    private Cancellable logChangesCancelable;
     private Cancellable showClusterStateCancelable;
 
+    private ClusterListenerActor() {
+        final Config config = context().system().settings().config().getConfig("entity-cluster-listener");
+        logInterval = config.getDuration("log-interval");
+        maxLogLines = config.getInt("max-log-lines");
+        summaryDelay = config.getDuration("summary-delay");
+    }
+
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(ShowClusterState.class, this::showClusterState)
-                .matchAny(this::logClusterEvent)
+                .match(LogChanges.class, logChanges -> logChanges())
+                .match(GetClusterView.class, getClusterView -> sender().tell(clusterView.toJson(cluster.selfAddress()), self()))
+                .match(ClusterEvent.ClusterDomainEvent.class, this::clusterEvent)
                 .build();
     }
 
     private void showClusterState(ShowClusterState showClusterState) {
-        log().info("{} sent to {}", showClusterState, cluster.selfMember());
-        logClusterMembers(cluster.state());
+        log().info("{} {}", showClusterState, clusterView.summary());
         showClusterStateCancelable = null;
     }
 
-    private void logClusterEvent(Object clusterEventMessage) {
-        log().info("{} sent to {}", clusterEventMessage, cluster.selfMember());
-        logClusterMembers();
+    private void clusterEvent(ClusterEvent.ClusterDomainEvent clusterEvent) {
+        final String change = clusterView.apply(clusterEvent);
+        if (change == null) {
+            return;
+        }
+        if (logChangesCancelable == null) {
+            log().info("{}", change);
+            logChangesCancelable = scheduleOnce(logInterval, new LogChanges());
+        } else if (changes.size() < maxLogLines) {
+            changes.add(change);
+        } else {
+            unloggedChanges++;
+        }
+        if (showClusterStateCancelable == null) {
+            showClusterStateCancelable = scheduleOnce(summaryDelay, new ShowClusterState());
+        }
+    }
+
+    // Keeps the log interval open while changes keep arriving.
+    private void logChanges() {
+        logChangesCancelable = null;
+        if (changes.isEmpty()) {
+            return;
+        }
+        changes.forEach(change -> log().info("{}", change));
+        if (unloggedChanges > 0) {
+            log().info("{} more membership changes not logged", unloggedChanges);
+        }
+        changes.clear();
+        unloggedChanges = 0;
+        logChangesCancelable = scheduleOnce(logInterval, new LogChanges());
+    }
+
+    private Cancellable scheduleOnce(Duration delay, Object message) {
+        return context().system().scheduler().scheduleOnce(delay, self(), message, context().dispatcher(), null);
     }
 
     @Override
     public void preStart() {
         log().debug("Start");
         cluster.subscribe(self(), ClusterEvent.initialStateAsEvents(),
-                ClusterEvent.ClusterDomainEvent.class);
+                ClusterEvent.MemberEvent.class,
+                ClusterEvent.ReachabilityEvent.class,
+                ClusterEvent.LeaderChanged.class,
+                ClusterEvent.RoleLeaderChanged.class);
     }
 
     @Override
     public void postStop() {
         log().debug("Stop");
         cluster.unsubscribe(self());
+        if (logChangesCancelable != null) {
+            logChangesCancelable.cancel();
+        }
+        if (showClusterStateCancelable != null) {
+            showClusterStateCancelable.cancel();
+        }
     }
 
     static Props props() {
-        return Props.create(ClusterListenerActor.class);
+        return Props.create(ClusterListenerActor.class).withDispatcher("entity-support-dispatcher");
     }
 
-    private void logClusterMembers() {
-        logClusterMembers(cluster.state());
+    // Replies with the cluster view as JSON.
+    static class GetClusterView {
+        static final GetClusterView instance = new GetClusterView();
 
-        if (showClusterStateCancelable == null) {
-            showClusterStateCancelable = context().system().scheduler().scheduleOnce(
-                    Duration.ofSeconds(15),
-                    self(),
-                    new ShowClusterState(),
-                    context().system().dispatcher(),
-                    null);
+        private GetClusterView() {
         }
     }
 
-    private void logClusterMembers(CurrentClusterState currentClusterState) {
-        Optional<Member> old = StreamSupport.stream(currentClusterState.getMembers().spliterator(), false)
-                .reduce((older, member) -> older.isOlderThan(member) ? older : member);
-
-        Member oldest = old.orElse(cluster.selfMember());
-
-        StreamSupport.stream(currentClusterState.getMembers().spliterator(), false)
-                .forEach(new Consumer<Member>() {
-                    int m = 0;
-
-                    @Override
-                    public void accept(Member member) {
-                        log().info("{} {}{}{}", ++m, leader(member), oldest(member), member);
-                    }
-
-                    private String leader(Member member) {
-                        return member.address().equals(currentClusterState.getLeader()) ? "(LEADER) " : "";
-                    }
-
-                    private String oldest(Member member) {
-                        return oldest.equals(member) ? "(OLDEST) " : "";
-                    }
-                });
+    private static class LogChanges {
     }
 
     private static class ShowClusterState {
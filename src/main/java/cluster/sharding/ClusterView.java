@@ -0,0 +1,128 @@
+package cluster.sharding;
+
+import akka.actor.Address;
+import akka.cluster.ClusterEvent;
+import akka.cluster.Member;
+import akka.cluster.UniqueAddress;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.stream.Collectors;
+
+// The cluster membership, maintained from cluster events instead of rescanning the cluster state. Members are
+// indexed by age overall and per role, so the oldest member is found without a scan, and the leaders, unreachable
+// members and status counts are kept up to date per event. Applying an event is O(log N) and returns a one line
+// description of the change, or null when the event changes nothing.
+class ClusterView {
+    private final Map<UniqueAddress, Member> members = new HashMap<>();
+    private final TreeSet<Member> byAge = new TreeSet<>(Member.ageOrdering());
+    private final Map<String, TreeSet<Member>> byRole = new TreeMap<>();
+    private final Map<String, Integer> statusCounts = new TreeMap<>();
+    private final Set<UniqueAddress> unreachable = new HashSet<>();
+    private final Map<String, Address> roleLeaders = new TreeMap<>();
+    private Address leader;
+
+    String apply(ClusterEvent.ClusterDomainEvent event) {
+        if (event instanceof ClusterEvent.MemberRemoved) {
+            final Member member = ((ClusterEvent.MemberRemoved) event).member();
+            return remove(member) ? String.format("Member removed %s, was %s", member.address(), ((ClusterEvent.MemberRemoved) event).previousStatus()) : null;
+        } else if (event instanceof ClusterEvent.MemberEvent) {
+            final Member member = ((ClusterEvent.MemberEvent) event).member();
+            return update(member) ? String.format("Member %s %s %s", member.status(), member.address(), member.getRoles()) : null;
+        } else if (event instanceof ClusterEvent.UnreachableMember) {
+            final Member member = ((ClusterEvent.UnreachableMember) event).member();
+            return unreachable.add(member.uniqueAddress()) ? String.format("Member unreachable %s", member.address()) : null;
+        } else if (event instanceof ClusterEvent.ReachableMember) {
+            final Member member = ((ClusterEvent.ReachableMember) event).member();
+            return unreachable.remove(member.uniqueAddress()) ? String.format("Member reachable %s", member.address()) : null;
+        } else if (event instanceof ClusterEvent.LeaderChanged) {
+            leader = ((ClusterEvent.LeaderChanged) event).getLeader();
+            return String.format("Leader %s", leader);
+        } else if (event instanceof ClusterEvent.RoleLeaderChanged) {
+            final ClusterEvent.RoleLeaderChanged roleLeaderChanged = (ClusterEvent.RoleLeaderChanged) event;
+            roleLeaders.put(roleLeaderChanged.role(), roleLeaderChanged.getLeader());
+            return String.format("Role %s leader %s", roleLeaderChanged.role(), roleLeaderChanged.getLeader());
+        }
+        return null;
+    }
+
+    // The age order changes when a member is Up, so the previous instance is removed before the new one is added.
+    private boolean update(Member member) {
+        final Member previous = members.put(member.uniqueAddress(), member);
+        if (previous != null) {
+            if (previous.status().equals(member.status())) {
+                return false;
+            }
+            unindex(previous);
+        }
+        byAge.add(member);
+        member.getRoles().forEach(role -> byRole.computeIfAbsent(role, r -> new TreeSet<>(Member.ageOrdering())).add(member));
+        statusCounts.merge(member.status().toString(), 1, Integer::sum);
+        return true;
+    }
+
+    private boolean remove(Member member) {
+        final Member previous = members.remove(member.uniqueAddress());
+        if (previous == null) {
+            return false;
+        }
+        unindex(previous);
+        unreachable.remove(member.uniqueAddress());
+        return true;
+    }
+
+    private void unindex(Member member) {
+        byAge.remove(member);
+        member.getRoles().forEach(role -> {
+            final TreeSet<Member> roleMembers = byRole.get(role);
+            roleMembers.remove(member);
+            if (roleMembers.isEmpty()) {
+                byRole.remove(role);
+            }
+        });
+        statusCounts.computeIfPresent(member.status().toString(), (status, count) -> count == 1 ? null : count - 1);
+    }
+
+    Member oldest() {
+        return byAge.isEmpty() ? null : byAge.first();
+    }
+
+    Member oldest(String role) {
+        final TreeSet<Member> roleMembers = byRole.get(role);
+        return roleMembers == null ? null : roleMembers.first();
+    }
+
+    String summary() {
+        final Member oldest = oldest();
+        return String.format("%d members %s, %d unreachable, leader %s, oldest %s",
+                members.size(), statusCounts, unreachable.size(), leader, oldest == null ? null : oldest.address());
+    }
+
+    String toJson(Address self) {
+        final Member oldest = oldest();
+        return String.format("{\"self\": %s, \"leader\": %s, \"oldest\": %s, \"members\": %d, \"status\": {%s}, \"unreachable\": [%s], \"roles\": {%s}, \"member-list\": [%s]}",
+                json(self), json(leader), json(oldest == null ? null : oldest.address()), members.size(),
+                statusCounts.entrySet().stream()
+                        .map(status -> String.format("%s: %d", EntityRoutes.json(status.getKey()), status.getValue()))
+                        .collect(Collectors.joining(", ")),
+                unreachable.stream().map(address -> json(address.address())).collect(Collectors.joining(", ")),
+                byRole.entrySet().stream()
+                        .map(role -> String.format("%s: {\"members\": %d, \"leader\": %s, \"oldest\": %s}",
+                                EntityRoutes.json(role.getKey()), role.getValue().size(),
+                                json(roleLeaders.get(role.getKey())), json(role.getValue().first().address())))
+                        .collect(Collectors.joining(", ")),
+                byAge.stream()
+                        .map(member -> String.format("{\"address\": %s, \"status\": %s, \"roles\": [%s]}",
+                                json(member.address()), EntityRoutes.json(member.status().toString()),
+                                member.getRoles().stream().sorted().map(EntityRoutes::json).collect(Collectors.joining(", "))))
+                        .collect(Collectors.joining(", ")));
+    }
+
+    private static String json(Address address) {
+        return address == null ? "null" : EntityRoutes.json(address.toString());
+    }
+}
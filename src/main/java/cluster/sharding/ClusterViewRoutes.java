@@ -0,0 +1,34 @@
+package cluster.sharding;
+
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import akka.pattern.Patterns;
+
+import java.time.Duration;
+
+// GET /membership  the cluster view of the ClusterListenerActor: leader, oldest member, status counts, unreachable
+// members, the leader and oldest member per role, and the members in age order.
+public class ClusterViewRoutes extends AllDirectives implements ManagementRouteProvider {
+    private final ActorSystem system;
+
+    public ClusterViewRoutes(ExtendedActorSystem system) {
+        this.system = system;
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return path("membership", () -> get(() -> completeWithFuture(
+                Patterns.ask(system.actorSelection("/user/clusterListener"), ClusterListenerActor.GetClusterView.instance, Duration.ofSeconds(5))
+                        .handle((reply, e) -> reply instanceof String
+                                ? HttpResponse.create().withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, (String) reply))
+                                : HttpResponse.create().withStatus(StatusCodes.SERVICE_UNAVAILABLE)))));
+    }
+}
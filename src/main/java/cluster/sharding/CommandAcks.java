@@ -0,0 +1,135 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+// Coalesces the acks of commands with cumulative delivery. The entities of this node add the command id to the
+// pending acks of the command's sender, so an entity keeps no state for it. Every ack-interval, or as soon as a sender
+// has max-pending-acks pending acks, the ids are sorted and sent to the sender as one CommandAckRange of consecutive
+// id ranges. A load generator numbers its commands from 1, so the ids of one interval mostly collapse into a few ranges.
+// The flusher is scheduled with the first ack, so nodes whose commands are not delivered cumulatively run no timer.
+class CommandAcks implements Extension {
+    private final ExtendedActorSystem system;
+    private final int maxPendingAcks;
+    private final Duration ackInterval;
+    private final Map<ActorRef, Pending> pending = new ConcurrentHashMap<>();
+    private volatile Cancellable flusher;
+
+    private CommandAcks(ExtendedActorSystem system) {
+        this.system = system;
+        final Config config = system.settings().config().getConfig("entity-command-delivery");
+        maxPendingAcks = config.getInt("max-pending-acks");
+        ackInterval = config.getDuration("ack-interval");
+    }
+
+    static CommandAcks get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    void ack(ActorRef sender, long commandId) {
+        if (flusher == null) {
+            startFlusher();
+        }
+        while (true) {
+            final Pending acks = pending.computeIfAbsent(sender, s -> new Pending());
+            synchronized (acks) {
+                if (acks.removed) {
+                    continue;
+                }
+                acks.add(commandId);
+                if (acks.size >= maxPendingAcks) {
+                    send(sender, acks);
+                }
+                return;
+            }
+        }
+    }
+
+    private synchronized void startFlusher() {
+        if (flusher == null) {
+            final Cancellable cancellable = system.scheduler().schedule(ackInterval, ackInterval, this::flush, system.dispatcher());
+            system.registerOnTermination(cancellable::cancel);
+            flusher = cancellable;
+        }
+    }
+
+    // Senders without acks since the last flush are dropped, so stopped senders do not stay in the map.
+    private void flush() {
+        pending.forEach((sender, acks) -> {
+            synchronized (acks) {
+                if (acks.size == 0) {
+                    acks.removed = true;
+                    pending.remove(sender, acks);
+                } else {
+                    send(sender, acks);
+                }
+            }
+        });
+    }
+
+    private static void send(ActorRef sender, Pending acks) {
+        final long[] ids = acks.ids;
+        final int size = acks.size;
+        Arrays.sort(ids, 0, size);
+        int ranges = 1;
+        for (int i = 1; i < size; i++) {
+            if (ids[i] > ids[i - 1] + 1) {
+                ranges++;
+            }
+        }
+        final long[] from = new long[ranges];
+        final long[] to = new long[ranges];
+        int range = 0;
+        from[0] = ids[0];
+        for (int i = 1; i < size; i++) {
+            if (ids[i] > ids[i - 1] + 1) {
+                to[range++] = ids[i - 1];
+                from[range] = ids[i];
+            }
+        }
+        to[range] = ids[size - 1];
+        acks.size = 0;
+        sender.tell(new EntityMessage.CommandAckRange(from, to), ActorRef.noSender());
+    }
+
+    private static class Pending {
+        long[] ids = new long[64];
+        int size;
+        boolean removed;
+
+        void add(long id) {
+            if (size == ids.length) {
+                ids = Arrays.copyOf(ids, size * 2);
+            }
+            ids[size++] = id;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<CommandAcks> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public CommandAcks createExtension(ExtendedActorSystem system) {
+            return new CommandAcks(system);
+        }
+    }
+}
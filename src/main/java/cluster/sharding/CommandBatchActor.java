@@ -0,0 +1,94 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+// Delivers one command batch as a child of the shard entity: tells each command to its entity through the shard,
+// collects the acks and replies with one CommandBatchAck in command order. Commands not acknowledged within
+// entity-command-batching.ack-timeout have a null ack.
+class CommandBatchActor extends AbstractLoggingActor {
+    private final EntityMessage.CommandBatch commandBatch;
+    private final ActorRef requester;
+    private final ActorRef shard;
+    private final Duration ackTimeout;
+    private final EntityMessage.CommandAck[] commandAcks;
+    private final Map<Long, Integer> indexes;
+    private int acked;
+    private Cancellable timeout;
+
+    private CommandBatchActor(EntityMessage.CommandBatch commandBatch, ActorRef requester, ActorRef shard) {
+        this.commandBatch = commandBatch;
+        this.requester = requester;
+        this.shard = shard;
+        ackTimeout = context().system().settings().config().getDuration("entity-command-batching.ack-timeout");
+        commandAcks = new EntityMessage.CommandAck[commandBatch.commands.size()];
+        indexes = new HashMap<>(commandAcks.length * 2);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.CommandAck.class, this::commandAck)
+                .matchEquals("timeout", t -> reply())
+                .build();
+    }
+
+    // A command id that occurs more than once in the batch fills its slots in order.
+    private void commandAck(EntityMessage.CommandAck commandAck) {
+        final Integer index = indexes.get(commandAck.commandId);
+        if (index == null) {
+            return;
+        }
+        final List<EntityMessage.Command> commands = commandBatch.commands;
+        for (int i = index; i < commands.size(); i++) {
+            if (commandAcks[i] == null && commands.get(i).id == commandAck.commandId) {
+                commandAcks[i] = commandAck;
+                if (++acked == commandAcks.length) {
+                    reply();
+                }
+                return;
+            }
+        }
+    }
+
+    private void reply() {
+        requester.tell(new EntityMessage.CommandBatchAck(commandBatch.batchId, Arrays.asList(commandAcks)), self());
+        context().stop(self());
+    }
+
+    @Override
+    public void preStart() {
+        if (commandAcks.length == 0) {
+            reply();
+            return;
+        }
+        for (int i = 0; i < commandAcks.length; i++) {
+            final EntityMessage.Command command = commandBatch.commands.get(i);
+            indexes.putIfAbsent(command.id, i);
+            shard.tell(command, self());
+        }
+        timeout = context().system().scheduler().scheduleOnce(ackTimeout, self(), "timeout", context().dispatcher(), null);
+    }
+
+    @Override
+    public void postStop() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (acked < commandAcks.length) {
+            log().debug("{} of {} commands of {} were not acknowledged", commandAcks.length - acked, commandAcks.length, commandBatch);
+        }
+    }
+
+    static Props props(EntityMessage.CommandBatch commandBatch, ActorRef requester, ActorRef shard) {
+        return Props.create(CommandBatchActor.class, commandBatch, requester, shard).withDispatcher("entity-dispatcher");
+    }
+}
@@ -0,0 +1,147 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+class CommandBatcher extends AbstractLoggingActor {
+    private final ActorRef shardRegion;
+    private final EntityMessageExtractor messageExtractor;
+    private final int maxBatchSize;
+    private final Duration lingerTime;
+    private final Duration batchTimeout;
+    private final Map<String, Batch> openBatches = new HashMap<>();
+    private final Map<Long, Batch> sentBatches = new HashMap<>();
+    private long batchId;
+
+    private CommandBatcher(ActorRef shardRegion, EntityMessageExtractor messageExtractor, Config config) {
+        this.shardRegion = shardRegion;
+        this.messageExtractor = messageExtractor;
+        maxBatchSize = config.getInt("max-batch-size");
+        lingerTime = config.getDuration("linger-time");
+        batchTimeout = config.getDuration("ack-timeout").multipliedBy(2);
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Command.class, this::command)
+                .match(EntityMessage.CommandBatchAck.class, this::commandBatchAck)
+                .match(Linger.class, this::linger)
+                .match(BatchTimeout.class, this::batchTimeout)
+                .build();
+    }
+
+    private void command(EntityMessage.Command command) {
+        final String shardId = messageExtractor.shardId(command.entity.id);
+        Batch batch = openBatches.get(shardId);
+        if (batch == null) {
+            batch = new Batch(++batchId, shardId, maxBatchSize);
+            batch.timer = scheduleOnce(lingerTime, new Linger(batch.batchId, shardId));
+            openBatches.put(shardId, batch);
+        }
+        batch.commands.add(command);
+        batch.senders.add(sender());
+        if (batch.commands.size() >= maxBatchSize) {
+            batch.timer.cancel();
+            send(batch);
+        }
+    }
+
+    private void linger(Linger linger) {
+        final Batch batch = openBatches.get(linger.shardId);
+        if (batch != null && batch.batchId == linger.batchId) {
+            send(batch);
+        }
+    }
+
+    private void send(Batch batch) {
+        openBatches.remove(batch.shardId);
+        sentBatches.put(batch.batchId, batch);
+        batch.timer = scheduleOnce(batchTimeout, new BatchTimeout(batch.batchId));
+        shardRegion.tell(new EntityMessage.CommandBatch(batch.batchId, batch.shardId, batch.commands), self());
+    }
+
+    private void commandBatchAck(EntityMessage.CommandBatchAck commandBatchAck) {
+        final Batch batch = sentBatches.remove(commandBatchAck.batchId);
+        if (batch == null) {
+            log().warning("(late) {} <- {}", commandBatchAck, sender());
+            return;
+        }
+        batch.timer.cancel();
+        for (int i = 0; i < commandBatchAck.commandAcks.size(); i++) {
+            final EntityMessage.CommandAck commandAck = commandBatchAck.commandAcks.get(i);
+            if (commandAck != null) {
+                batch.senders.get(i).tell(commandAck, sender());
+            }
+        }
+    }
+
+    private void batchTimeout(BatchTimeout batchTimeout) {
+        final Batch batch = sentBatches.remove(batchTimeout.batchId);
+        if (batch != null) {
+            log().warning("No response to batch {} of {} commands for shard {}", batch.batchId, batch.commands.size(), batch.shardId);
+        }
+    }
+
+    private Cancellable scheduleOnce(Duration delay, Object message) {
+        return context().system().scheduler().scheduleOnce(delay, self(), message, context().dispatcher(), null);
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start, max batch size {}, linger time {}", maxBatchSize, lingerTime);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        openBatches.values().forEach(batch -> batch.timer.cancel());
+        sentBatches.values().forEach(batch -> batch.timer.cancel());
+    }
+
+    static Props props(ActorRef shardRegion, EntityMessageExtractor messageExtractor, Config config) {
+        return Props.create(CommandBatcher.class, shardRegion, messageExtractor, config);
+    }
+
+    private static class Batch {
+        final long batchId;
+        final String shardId;
+        final List<EntityMessage.Command> commands;
+        final List<ActorRef> senders;
+        Cancellable timer;
+
+        Batch(long batchId, String shardId, int maxBatchSize) {
+            this.batchId = batchId;
+            this.shardId = shardId;
+            commands = new ArrayList<>(maxBatchSize);
+            senders = new ArrayList<>(maxBatchSize);
+        }
+    }
+
+    private static class Linger {
+        final long batchId;
+        final String shardId;
+
+        Linger(long batchId, String shardId) {
+            this.batchId = batchId;
+            this.shardId = shardId;
+        }
+    }
+
+    private static class BatchTimeout {
+        final long batchId;
+
+        BatchTimeout(long batchId) {
+            this.batchId = batchId;
+        }
+    }
+}
@@ -0,0 +1,225 @@
+package cluster.sharding;
+
+import akka.Done;
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.CoordinatedShutdown;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.pattern.Patterns;
+import akka.stream.ActorMaterializer;
+import akka.stream.ActorMaterializerSettings;
+import akka.stream.KillSwitches;
+import akka.stream.Materializer;
+import akka.stream.SharedKillSwitch;
+import akka.stream.javadsl.FileIO;
+import akka.stream.javadsl.Flow;
+import akka.stream.javadsl.Framing;
+import akka.stream.javadsl.FramingTruncation;
+import akka.stream.javadsl.Sink;
+import akka.stream.javadsl.Source;
+import akka.stream.javadsl.StreamConverters;
+import akka.stream.javadsl.Tcp;
+import akka.util.ByteString;
+import com.typesafe.config.Config;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+import java.util.Random;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+// Streams commands from a file, stdin or TCP connections into the shard region, one command per line as
+// "<entity id> <value>". Commands are sent with ask and at most parallelism commands are unacknowledged at a time.
+// When the entities fall behind the stream stops reading, so the backpressure reaches the file reader or the TCP
+// client and no commands are buffered beyond the parallelism window. TCP clients get one reply line per command.
+// With none delivery commands are sent without ask and counted as acked, so there is no backpressure from the entities.
+// When the node shuts down the streams stop reading and the commands in flight are acked before the node leaves.
+class CommandIngestion {
+    private final ActorSystem system;
+    private final ActorRef shardRegion;
+    private final Config config;
+    private final Materializer materializer;
+    private final LoggingAdapter log;
+    private final Latencies latencies;
+    private final int parallelism;
+    private final Duration askTimeout;
+    private final byte delivery;
+    private final int maxLineLength;
+    private final SharedKillSwitch killSwitch = KillSwitches.shared("command-ingestion");
+    private final AtomicLong commandId = new AtomicLong();
+    private final AtomicLong inFlight = new AtomicLong();
+    private final LongAdder acked = new LongAdder();
+    private final LongAdder failed = new LongAdder();
+    private final LongAdder malformed = new LongAdder();
+    private long reportAcked;
+    private long reportTime = System.nanoTime();
+    private volatile CompletableFuture<Done> drained;
+
+    private CommandIngestion(ActorSystem system, ActorRef shardRegion, Config config) {
+        this.system = system;
+        this.shardRegion = shardRegion;
+        this.config = config;
+        materializer = ActorMaterializer.create(ActorMaterializerSettings.create(system).withDispatcher("entity-support-dispatcher"), system);
+        log = Logging.getLogger(system, getClass());
+        latencies = Latencies.get(system);
+        parallelism = config.getInt("parallelism");
+        askTimeout = config.getDuration("ask-timeout");
+        delivery = EntityMessage.Command.delivery(config.getString("delivery"));
+        if (delivery == EntityMessage.Command.deliveryCumulative || delivery == EntityMessage.Command.deliveryReliable) {
+            throw new IllegalArgumentException("Command ingestion supports full, compact and none delivery");
+        }
+        maxLineLength = config.getInt("max-line-length");
+    }
+
+    static void start(ActorSystem system, ActorRef shardRegion, Config config) {
+        new CommandIngestion(system, shardRegion, config).start();
+    }
+
+    private void start() {
+        final Duration reportInterval = config.getDuration("report-interval");
+        final Cancellable reporter = system.scheduler().schedule(reportInterval, reportInterval, this::report, system.dispatcher());
+        system.registerOnTermination(reporter::cancel);
+        CoordinatedShutdown.get(system).addTask(CoordinatedShutdown.PhaseServiceRequestsDone(), "drain-command-ingestion", this::drain);
+
+        final String source = config.getString("source");
+        switch (source) {
+            case "file":
+                final Path file = Paths.get(config.getString("file"));
+                generate(file).thenCompose(done -> ingest(FileIO.fromPath(file).mapMaterializedValue(io -> NotUsed.getInstance()), file.toString()))
+                        .whenComplete((done, e) -> reporter.cancel());
+                break;
+            case "stdin":
+                ingest(StreamConverters.fromInputStream(() -> System.in).mapMaterializedValue(io -> NotUsed.getInstance()), "stdin")
+                        .whenComplete((done, e) -> reporter.cancel());
+                break;
+            case "tcp":
+                Tcp.get(system).bind(config.getString("tcp.host"), config.getInt("tcp.port"))
+                        .to(Sink.foreach(connection -> {
+                            log.info("Ingesting commands from {}", connection.remoteAddress());
+                            connection.handleWith(lines().via(commands()).map(reply -> ByteString.fromString(reply + "\n")), materializer);
+                        }))
+                        .run(materializer)
+                        .whenComplete((binding, e) -> {
+                            if (e == null) {
+                                log.info("Accepting command connections on {}", binding.localAddress());
+                            } else {
+                                log.error(e, "Unable to accept command connections");
+                            }
+                        });
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown command ingestion source '%s'", source));
+        }
+    }
+
+    private CompletionStage<Done> ingest(Source<ByteString, NotUsed> bytes, String name) {
+        log.info("Ingesting commands from {}, parallelism {}", name, parallelism);
+        final long start = System.nanoTime();
+        return bytes.via(lines()).via(commands()).runWith(Sink.ignore(), materializer)
+                .whenComplete((done, e) -> {
+                    final long nanos = System.nanoTime() - start;
+                    final long total = acked.sum();
+                    if (e != null) {
+                        log.error(e, "Command ingestion from {} failed", name);
+                    }
+                    log.info(String.format("Ingested %d commands from %s in %dms, %.0f commands/s, %d failed, %d malformed",
+                            total, name, TimeUnit.NANOSECONDS.toMillis(nanos), total * 1e9 / Math.max(1, nanos), failed.sum(), malformed.sum()));
+                });
+    }
+
+    private Flow<ByteString, String, NotUsed> lines() {
+        return Framing.delimiter(ByteString.fromString("\n"), maxLineLength, FramingTruncation.ALLOW)
+                .via(killSwitch.flow())
+                .map(ByteString::utf8String)
+                .map(String::trim)
+                .filter(line -> !line.isEmpty());
+    }
+
+    // Replies are not in line order, each reply names its entity.
+    private Flow<String, String, NotUsed> commands() {
+        return Flow.of(String.class).mapAsyncUnordered(parallelism, this::command);
+    }
+
+    private CompletionStage<String> command(String line) {
+        final int separator = line.indexOf(' ');
+        if (separator <= 0 || EntityMessage.isShardEntityId(line.substring(0, separator))) {
+            malformed.increment();
+            return CompletableFuture.completedFuture(String.format("malformed %s", line));
+        }
+        final Entity entity = new Entity(line.substring(0, separator), line.substring(separator + 1));
+        final EntityMessage.Command command = new EntityMessage.Command(commandId.incrementAndGet(), entity, delivery);
+        if (delivery == EntityMessage.Command.deliveryNone) {
+            shardRegion.tell(command, ActorRef.noSender());
+            acked.increment();
+            return CompletableFuture.completedFuture(String.format("sent %s", entity.id.id));
+        }
+        inFlight.incrementAndGet();
+        return Patterns.ask(shardRegion, command, askTimeout).handle((reply, e) -> {
+            if (inFlight.decrementAndGet() == 0 && drained != null) {
+                drained.complete(Done.getInstance());
+            }
+            if (reply instanceof EntityMessage.CommandAck) {
+                acked.increment();
+                latencies.record(Latencies.Outcome.INGEST, System.nanoTime() - command.time);
+                return String.format("%s %s", ((EntityMessage.CommandAck) reply).action, entity.id.id);
+            }
+            if (reply instanceof EntityMessage.CommandAckCompact) {
+                acked.increment();
+                latencies.record(Latencies.Outcome.INGEST, System.nanoTime() - command.time);
+                return String.format("%s %s", ((EntityMessage.CommandAckCompact) reply).init ? "initialize" : "update", entity.id.id);
+            }
+            failed.increment();
+            return String.format("failed %s", entity.id.id);
+        });
+    }
+
+    // Completes the streams, the commands in flight are still acked. The shutdown phase timeout bounds the wait.
+    private CompletionStage<Done> drain() {
+        log.info("Stop command ingestion, {} commands in flight", inFlight.get());
+        drained = new CompletableFuture<>();
+        killSwitch.shutdown();
+        if (inFlight.get() == 0) {
+            drained.complete(Done.getInstance());
+        }
+        return drained;
+    }
+
+    // Writes a command file of generate.commands lines when the file does not exist yet. The ids come from a seeded
+    // random, so every generated file is the same and replays are comparable.
+    private CompletionStage<Done> generate(Path file) {
+        final Config generate = config.getConfig("generate");
+        final int commands = generate.getInt("commands");
+        if (Files.exists(file) || commands <= 0) {
+            return CompletableFuture.completedFuture(Done.getInstance());
+        }
+        final KeyDistribution keyDistribution = KeyDistribution.create(generate.getConfig("keys"));
+        final Random random = new Random(generate.getLong("seed"));
+        final long start = System.nanoTime();
+        file.toAbsolutePath().getParent().toFile().mkdirs();
+        return Source.range(1, commands)
+                .map(i -> ByteString.fromString(String.format("%s value-%d%n", keyDistribution.entityId(random).id, i)))
+                .runWith(FileIO.toPath(file), materializer)
+                .thenApply(ioResult -> {
+                    log.info("Generated {} commands in {}, {} {}ms", commands, file, keyDistribution,
+                            TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+                    return Done.getInstance();
+                });
+    }
+
+    private void report() {
+        final long now = System.nanoTime();
+        final long total = acked.sum();
+        log.info(String.format("Ingested %d commands, %.0f commands/s, %d failed, %d malformed",
+                total, (total - reportAcked) * 1e9 / Math.max(1, now - reportTime), failed.sum(), malformed.sum()));
+        reportAcked = total;
+        reportTime = now;
+    }
+}
@@ -0,0 +1,97 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+
+// The reliable commands one entity has handled, per producer. A producer has at most window consecutive ids
+// outstanding from its ackedBelow id on, so the handled ids above ackedBelow fit in a ring of window bits, and ids
+// below ackedBelow are known to be handled. Memory is fixed per producer. The ids are kept in memory only, so a
+// redelivery that reaches a passivated, rebalanced or recovered entity is handled again.
+// A producer redelivers its unacknowledged commands at least every max-backoff, so a producer that has sent nothing
+// for twice as long has no command left to redeliver. Such idle producers are dropped once per idle timeout.
+class Deduplication {
+    private final int window;
+    private final long idleTimeoutNanos;
+    private final Map<ActorRef, Handled> producers = new HashMap<>(4);
+    private long prunedAt;
+
+    Deduplication(Config config) {
+        this(config.getInt("window"), config.getDuration("max-backoff").multipliedBy(2));
+    }
+
+    Deduplication(int window, Duration idleTimeout) {
+        this.window = window;
+        idleTimeoutNanos = idleTimeout.toNanos();
+        prunedAt = System.nanoTime();
+    }
+
+    // Returns true when the command was handled before, otherwise remembers it.
+    boolean isDuplicate(ActorRef producer, EntityMessage.Command command) {
+        return isDuplicate(producer, command.id, command.ackedBelow, System.nanoTime());
+    }
+
+    boolean isDuplicate(ActorRef producer, long id, long ackedBelow, long now) {
+        if (now - prunedAt > idleTimeoutNanos) {
+            producers.values().removeIf(handled -> now - handled.seenAt > idleTimeoutNanos);
+            prunedAt = now;
+        }
+        Handled handled = producers.get(producer);
+        if (handled == null) {
+            handled = new Handled(window);
+            producers.put(producer, handled);
+        }
+        handled.seenAt = now;
+        return handled.isDuplicate(id, ackedBelow);
+    }
+
+    int producers() {
+        return producers.size();
+    }
+
+    private static class Handled {
+        private final long[] bits;
+        private final long mask;
+        private long ackedBelow = 1;
+        private long seenAt;
+
+        Handled(int window) {
+            bits = new long[Math.max(1, window / 64)];
+            mask = window - 1;
+        }
+
+        boolean isDuplicate(long id, long producerAckedBelow) {
+            advance(producerAckedBelow);
+            if (id < ackedBelow) {
+                return true;
+            }
+            final int bit = (int) (id & mask);
+            final long word = 1L << bit;
+            if ((bits[bit >>> 6] & word) != 0) {
+                return true;
+            }
+            bits[bit >>> 6] |= word;
+            return false;
+        }
+
+        // Ids below the producer's ackedBelow will not be sent again, so their bits are free for the ids above.
+        private void advance(long producerAckedBelow) {
+            if (producerAckedBelow <= ackedBelow) {
+                return;
+            }
+            if (producerAckedBelow - ackedBelow > mask) {
+                Arrays.fill(bits, 0);
+            } else {
+                for (long id = ackedBelow; id < producerAckedBelow; id++) {
+                    final int bit = (int) (id & mask);
+                    bits[bit >>> 6] &= ~(1L << bit);
+                }
+            }
+            ackedBelow = producerAckedBelow;
+        }
+    }
+}
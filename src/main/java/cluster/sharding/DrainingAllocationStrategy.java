@@ -0,0 +1,62 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.collection.immutable.Map;
+import scala.collection.immutable.Set;
+import scala.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+// Hands off the shards of draining regions at most handoff-parallelism at a time, otherwise allocates and rebalances
+// with the given strategy. Draining regions get no new shards. The coordinator asks for a rebalance every
+// akka.cluster.sharding.rebalance-interval, so a draining region hands off up to handoff-parallelism shards per
+// interval, more when hand-offs complete within the interval. The ordinary rebalance waits while a region drains.
+class DrainingAllocationStrategy implements ShardCoordinator.ShardAllocationStrategy {
+    private final ShardCoordinator.ShardAllocationStrategy allocationStrategy;
+    private final NodeShutdown nodeShutdown;
+
+    DrainingAllocationStrategy(ShardCoordinator.ShardAllocationStrategy allocationStrategy, NodeShutdown nodeShutdown) {
+        this.allocationStrategy = allocationStrategy;
+        this.nodeShutdown = nodeShutdown;
+    }
+
+    @Override
+    public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        final Map<ActorRef, IndexedSeq<String>> active = currentShardAllocations.filterKeys(region -> !nodeShutdown.isDraining(region));
+        return allocationStrategy.allocateShard(requester, shardId, active.isEmpty() ? currentShardAllocations : active);
+    }
+
+    // When every region is draining there is nowhere to hand off to, the regions keep their shards.
+    @Override
+    public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+        final List<String> draining = new ArrayList<>();
+        final int[] activeRegions = new int[1];
+        JavaConverters.mapAsJavaMapConverter(currentShardAllocations).asJava().forEach((region, shardIds) -> {
+            if (nodeShutdown.isDraining(region)) {
+                draining.addAll(JavaConverters.seqAsJavaListConverter(shardIds).asJava());
+            } else {
+                activeRegions[0]++;
+            }
+        });
+        if (draining.isEmpty()) {
+            return allocationStrategy.rebalance(currentShardAllocations, rebalanceInProgress);
+        }
+        final java.util.Set<String> rebalance = new HashSet<>();
+        final int slots = nodeShutdown.handoffParallelism - rebalanceInProgress.size();
+        for (String shardId : draining) {
+            if (activeRegions[0] == 0 || rebalance.size() >= slots) {
+                break;
+            }
+            if (!rebalanceInProgress.contains(shardId)) {
+                rebalance.add(shardId);
+            }
+        }
+        return Futures.successful(JavaConverters.asScalaSetConverter(rebalance).asScala().toSet());
+    }
+}
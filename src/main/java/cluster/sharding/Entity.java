@@ -1,19 +1,90 @@
 package cluster.sharding;
 
 import java.io.Serializable;
+import java.util.Arrays;
 import java.util.Objects;
 
+// The value is stored inline by type, so long values are not boxed and no value wrapper is allocated per entity.
 class Entity implements Serializable {
+    static final byte valueNull = 0;
+    static final byte valueString = 1;
+    static final byte valueLong = 2;
+    static final byte valueInteger = 3;
+    static final byte valueBytes = 4;
+    static final byte valueObject = 5;
+
     final Id id;
-    Value value;
+    private byte valueType;
+    private long longValue;
+    private Object objectValue;
 
-    Entity(Id id, Value value) {
+    Entity(Id id, Object value) {
         this.id = id;
-        this.value = value;
+        value(value);
     }
 
     Entity(String id, Object value) {
-        this(new Id(id), new Value(value));
+        this(Id.of(id), value);
+    }
+
+    Entity(Id id, long value) {
+        this.id = id;
+        valueType = valueLong;
+        longValue = value;
+    }
+
+    Entity copy() {
+        final Entity entity = new Entity(id, null);
+        entity.update(this);
+        return entity;
+    }
+
+    void update(Entity entity) {
+        valueType = entity.valueType;
+        longValue = entity.longValue;
+        objectValue = entity.objectValue;
+    }
+
+    byte valueType() {
+        return valueType;
+    }
+
+    long longValue() {
+        return longValue;
+    }
+
+    Object value() {
+        switch (valueType) {
+            case valueLong:
+                return longValue;
+            case valueInteger:
+                return (int) longValue;
+            default:
+                return objectValue;
+        }
+    }
+
+    private void value(Object value) {
+        objectValue = null;
+        longValue = 0;
+        if (value == null) {
+            valueType = valueNull;
+        } else if (value instanceof String) {
+            valueType = valueString;
+            objectValue = value;
+        } else if (value instanceof Long) {
+            valueType = valueLong;
+            longValue = (Long) value;
+        } else if (value instanceof Integer) {
+            valueType = valueInteger;
+            longValue = (Integer) value;
+        } else if (value instanceof byte[]) {
+            valueType = valueBytes;
+            objectValue = value;
+        } else {
+            valueType = valueObject;
+            objectValue = value;
+        }
     }
 
     @Override
@@ -21,44 +92,85 @@ class Entity implements Serializable {
         if (this == o) return true;
         if (o == null || getClass() != o.getClass()) return false;
         Entity entity = (Entity) o;
-        return Objects.equals(id, entity.id) &&
-                Objects.equals(value, entity.value);
+        return id.equals(entity.id) &&
+                valueType == entity.valueType &&
+                longValue == entity.longValue &&
+                (valueType == valueBytes
+                        ? Arrays.equals((byte[]) objectValue, (byte[]) entity.objectValue)
+                        : Objects.equals(objectValue, entity.objectValue));
     }
 
     @Override
     public int hashCode() {
-
-        return Objects.hash(id, value);
+        int result = id.hashCode();
+        result = 31 * result + valueType;
+        result = 31 * result + Long.hashCode(longValue);
+        result = 31 * result + (valueType == valueBytes ? Arrays.hashCode((byte[]) objectValue) : Objects.hashCode(objectValue));
+        return result;
     }
 
     @Override
     public String toString() {
+        final Object value = valueType == valueBytes ? String.format("byte[%d]", ((byte[]) objectValue).length) : value();
         return String.format("%s[%s, %s]", getClass().getSimpleName(), id, value);
     }
 
+    // Ids are flyweights: the small numeric ids of the default key space are shared by all messages and entities.
     static class Id implements Serializable {
+        private static final int cachedNumericIds = 1 << 16;
+        private static final Id[] numericIds = new Id[cachedNumericIds];
+
         final String id;
 
-        Id(String id) {
+        private Id(String id) {
             this.id = id;
         }
 
-        @Override
-        public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), id);
+        static Id of(String id) {
+            final int number = smallNumber(id);
+            if (number < 0) {
+                return new Id(id);
+            }
+            Id cached = numericIds[number];
+            if (cached == null) {
+                cached = new Id(id);
+                numericIds[number] = cached;
+            }
+            return cached;
         }
-    }
 
-    static class Value implements Serializable {
-        final Object value;
+        // The value of a canonical decimal id below cachedNumericIds, otherwise -1.
+        private static int smallNumber(String id) {
+            final int length = id.length();
+            if (length == 0 || length > 5 || (length > 1 && id.charAt(0) == '0')) {
+                return -1;
+            }
+            int number = 0;
+            for (int i = 0; i < length; i++) {
+                final char c = id.charAt(i);
+                if (c < '0' || c > '9') {
+                    return -1;
+                }
+                number = number * 10 + c - '0';
+            }
+            return number < cachedNumericIds ? number : -1;
+        }
 
-        Value(Object value) {
-            this.value = value;
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            return id.equals(((Id) o).id);
+        }
+
+        @Override
+        public int hashCode() {
+            return id.hashCode();
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), value);
+            return String.format("%s[%s]", getClass().getSimpleName(), id);
         }
     }
 }
@@ -1,54 +1,192 @@
 package cluster.sharding;
 
 import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
 import akka.actor.PoisonPill;
 import akka.actor.Props;
 import akka.actor.ReceiveTimeout;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
 import akka.cluster.sharding.ShardRegion;
-import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
+import akka.pattern.Patterns;
 
-import java.util.concurrent.TimeUnit;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
 
 class EntityActor extends AbstractLoggingActor {
+    private final MessageTrace messageTrace = MessageTrace.get(context().system());
+    private final WarmStart warmStart = WarmStart.get(context().system());
+    private final Passivation passivation = Passivation.get(context().system());
+    private final ShardLoad shardLoad = ShardLoad.get(context().system());
+    private final ResidentEntities residentEntities = ResidentEntities.get(context().system());
+    private final String shardId = EntityMessage.shardId(self());
+    private final EntityStats entityStats = EntityStats.get(context().system());
+    private final EntityStats.ShardCounters shardStats = entityStats.shard(shardId);
+    private final CommandAcks commandAcks = CommandAcks.get(context().system());
+    private final boolean publishInvalidations = context().system().settings().config().getBoolean("entity-query-cache.enabled");
+    private Deduplication deduplication;
+    private long messages;
     private Entity entity;
-    private final FiniteDuration receiveTimeout = Duration.create(60, TimeUnit.SECONDS);
 
     @Override
     public Receive createReceive() {
         return receiveBuilder()
                 .match(EntityMessage.Command.class, this::command)
                 .match(EntityMessage.Query.class, this::query)
-                .matchEquals(ReceiveTimeout.getInstance(), t -> passivate())
+                .match(EntityMessage.CommandBatch.class, this::commandBatch)
+                .match(EntityMessage.ShardQuery.class, shardQuery -> shardQuery(getContext(), shardQuery))
+                .match(EntityMessage.Scan.class, scan -> scan(getContext(), scan))
+                .match(EntityMessage.ScanEntity.class, scanEntity -> sender().tell(scanEntity.reply(entity), self()))
+                .matchEquals(ReceiveTimeout.getInstance(), t -> idle())
+                .matchEquals(Passivation.Evict.instance, e -> passivate())
                 .build();
     }
 
     private void command(EntityMessage.Command command) {
-        log().info("{} <- {}", command, sender());
-        if (entity == null) {
-            entity = command.entity;
-            final EntityMessage.CommandAck commandAck = EntityMessage.CommandAck.ackInit(command);
-            log().info("{}, {} -> {}", commandAck, command, sender());
-            sender().tell(commandAck, self());
+        shardStats.commands.increment();
+        sampleHotKey();
+        if (shardLoad.isEnabled()) {
+            shardLoad.record(shardId);
+        }
+        if (passivation.tracksEntities()) {
+            passivation.accessed(self());
+        }
+        if (command.delivery == EntityMessage.Command.deliveryReliable && isDuplicate(command)) {
+            return;
+        }
+        final boolean init = entity == null;
+        if (init) {
+            entity = command.entity.copy();
         } else {
-            entity.value = command.entity.value;
-            final EntityMessage.CommandAck commandAck = EntityMessage.CommandAck.ackUpdate(command);
-            log().info("{}, {} -< {}", commandAck, command, sender());
-            sender().tell(commandAck, self());
+            entity.update(command.entity);
+            if (publishInvalidations) {
+                publishInvalidation(getContext(), entity);
+            }
+        }
+        final Object commandAck = acknowledge(getContext(), command, init, commandAcks);
+        if (messageTrace.isEnabled()) {
+            messageTrace.record(self(), command, commandAck, sender());
+        }
+    }
+
+    private boolean isDuplicate(EntityMessage.Command command) {
+        if (deduplication == null) {
+            deduplication = new Deduplication(context().system().settings().config().getConfig("entity-reliable-delivery"));
+        }
+        return isDuplicate(getContext(), deduplication, command, entityStats);
+    }
+
+    // A duplicate is acknowledged again, the ack of its first delivery may be the message that was lost.
+    static boolean isDuplicate(ActorContext context, Deduplication deduplication, EntityMessage.Command command, EntityStats entityStats) {
+        if (!deduplication.isDuplicate(context.sender(), command)) {
+            return false;
         }
+        entityStats.duplicates.increment();
+        context.sender().tell(new EntityMessage.CommandAckCompact(command.id, false), context.self());
+        return true;
+    }
+
+    // Replies as the command's delivery mode asks for. Returns the reply, or null when no reply is sent right away.
+    static Object acknowledge(ActorContext context, EntityMessage.Command command, boolean init, CommandAcks commandAcks) {
+        final Object commandAck;
+        switch (command.delivery) {
+            case EntityMessage.Command.deliveryNone:
+                return null;
+            case EntityMessage.Command.deliveryCumulative:
+                commandAcks.ack(context.sender(), command.id);
+                return null;
+            case EntityMessage.Command.deliveryCompact:
+            case EntityMessage.Command.deliveryReliable:
+                commandAck = new EntityMessage.CommandAckCompact(command.id, init);
+                break;
+            default:
+                commandAck = init ? EntityMessage.CommandAck.ackInit(command) : EntityMessage.CommandAck.ackUpdate(command);
+                break;
+        }
+        context.sender().tell(commandAck, context.self());
+        return commandAck;
     }
 
     private void query(EntityMessage.Query query) {
-        log().info("{} <- {}", query, sender());
-        if (entity == null) {
-            final EntityMessage.QueryAckNotFound queryAck = EntityMessage.QueryAckNotFound.ack(query);
-            log().info("{} -> {}", queryAck, sender());
-            sender().tell(queryAck, self());
-        } else {
-            final EntityMessage.QueryAck queryAck = EntityMessage.QueryAck.ack(query, entity);
-            log().info("{} -> {}", queryAck, sender());
-            sender().tell(queryAck, self());
+        shardStats.queries.increment();
+        sampleHotKey();
+        if (shardLoad.isEnabled()) {
+            shardLoad.record(shardId);
+        }
+        if (passivation.tracksEntities()) {
+            passivation.accessed(self());
         }
+        // The entity is updated in place, replies carry a copy that other actors and the query cache may keep.
+        final Object queryAck = entity == null
+                ? EntityMessage.QueryAckNotFound.ack(query)
+                : EntityMessage.QueryAck.ack(query, entity.copy());
+        sender().tell(queryAck, self());
+        if (messageTrace.isEnabled()) {
+            messageTrace.record(self(), query, queryAck, sender());
+        }
+    }
+
+    private void commandBatch(EntityMessage.CommandBatch commandBatch) {
+        commandBatch(getContext(), commandBatch);
+    }
+
+    // The shard entity of a batch delivers the commands through its shard in a child, one per batch, so each command
+    // reaches its own entity.
+    static void commandBatch(ActorContext context, EntityMessage.CommandBatch commandBatch) {
+        context.actorOf(CommandBatchActor.props(commandBatch, context.sender(), context.parent()));
+    }
+
+    private void sampleHotKey() {
+        if ((++messages & entityStats.sampleMask) == 0) {
+            entityStats.hotKey(self().path().name());
+        }
+    }
+
+    private void idle() {
+        passivation.idle();
+        passivate();
+    }
+
+    // Like a command batch, the shard entity queries each entity through its shard and replies with the answers it has.
+    static void shardQuery(ActorContext context, EntityMessage.ShardQuery shardQuery) {
+        final ActorRef shard = context.parent();
+        final java.time.Duration timeout = context.system().settings().config().getDuration("entity-multi-query.shard-timeout");
+
+        final List<CompletableFuture<Object>> queryAcks = new ArrayList<>(shardQuery.ids.size());
+        for (int i = 0; i < shardQuery.ids.size(); i++) {
+            queryAcks.add(Patterns.ask(shard, new EntityMessage.Query(i, shardQuery.ids.get(i)), timeout)
+                    .exceptionally(e -> null)
+                    .toCompletableFuture());
+        }
+
+        final CompletableFuture<EntityMessage.ShardQueryAck> shardQueryAck = CompletableFuture
+                .allOf(queryAcks.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    final List<Entity> found = new ArrayList<>();
+                    final List<Entity.Id> notFound = new ArrayList<>();
+                    queryAcks.forEach(queryAck -> {
+                        final Object reply = queryAck.join();
+                        if (reply instanceof EntityMessage.QueryAck) {
+                            found.add(((EntityMessage.QueryAck) reply).entity);
+                        } else if (reply instanceof EntityMessage.QueryAckNotFound) {
+                            notFound.add(((EntityMessage.QueryAckNotFound) reply).id);
+                        }
+                    });
+                    return new EntityMessage.ShardQueryAck(shardQuery.requestId, found, notFound);
+                });
+
+        Patterns.pipe(shardQueryAck, context.dispatcher()).to(context.sender(), context.self());
+    }
+
+    // The shard entity scans the entities of its shard that are resident on this node in a child, one per scan.
+    static void scan(ActorContext context, EntityMessage.Scan scan) {
+        context.actorOf(ShardScanActor.props(scan, context.sender(), EntityMessage.shardId(context.self())));
+    }
+
+    static void publishInvalidation(ActorContext context, Entity entity) {
+        DistributedPubSub.get(context.system()).mediator().tell(new DistributedPubSubMediator.Publish(
+                QueryCacheActor.invalidationTopic, new EntityMessage.Invalidated(entity.id, System.currentTimeMillis())), context.self());
     }
 
     private void passivate() {
@@ -57,16 +195,30 @@ class EntityActor extends AbstractLoggingActor {
 
     @Override
     public void preStart() {
-        log().info("Start");
-        context().setReceiveTimeout(receiveTimeout);
+        log().debug("Start");
+        context().setReceiveTimeout(passivation.idleTimeout());
+        if (passivation.tracksEntities()) {
+            passivation.started(self());
+        }
+        residentEntities.started(self());
+        if (warmStart.isEnabled()) {
+            warmStart.entityActive(self());
+        }
     }
 
     @Override
     public void postStop() {
-        log().info("Stop {}", entity == null ? "(not initialized)" : entity.id);
+        log().debug("Stop {}", entity == null ? "(not initialized)" : entity.id);
+        if (passivation.tracksEntities()) {
+            passivation.stopped(self());
+        }
+        residentEntities.stopped(self());
+        if (warmStart.isEnabled()) {
+            warmStart.entityActive(self());
+        }
     }
 
     static Props props() {
-        return Props.create(EntityActor.class);
+        return Props.create(EntityActor.class).withDispatcher("entity-dispatcher");
     }
 }
@@ -4,89 +4,169 @@ import akka.actor.AbstractLoggingActor;
 import akka.actor.ActorRef;
 import akka.actor.Props;
 import akka.actor.Cancellable;
-import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
+import com.typesafe.config.Config;
 
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
 
 class EntityCommandActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
+    private final LoadGenerator loadGenerator;
+    private final Latencies latencies = Latencies.get(context().system());
+    private final byte delivery;
+    private final ReliableDelivery reliableDelivery;
+    private final EntityStats entityStats = EntityStats.get(context().system());
     private Cancellable ticker;
-    private FiniteDuration tickInterval = Duration.create(2, TimeUnit.SECONDS);
-    private int messageNumber;
-    private final Receive sending;
-    private final Receive receiving;
-
-    {
-        sending = receiveBuilder()
-                .matchEquals("tick", t -> tickSending())
-                .match(EntityMessage.CommandAck.class, this::commandAckSending)
-                .build();
-
-        receiving = receiveBuilder()
-                .matchEquals("tick", t -> tickReceiving())
-                .match(EntityMessage.CommandAck.class, this::commandAckReceiving)
-                .build();
-    }
+    private Cancellable reporter;
 
     private EntityCommandActor(ActorRef shardRegion) {
         this.shardRegion = shardRegion;
+        final Config config = context().system().settings().config().getConfig("entity-command-load");
+        loadGenerator = new LoadGenerator(config);
+        delivery = EntityMessage.Command.delivery(config.getString("delivery"));
+        reliableDelivery = delivery == EntityMessage.Command.deliveryReliable
+                ? new ReliableDelivery(context().system().settings().config().getConfig("entity-reliable-delivery"))
+                : null;
     }
 
     @Override
     public Receive createReceive() {
-        return sending;
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .matchEquals("report", r -> report())
+                .match(LoadGenerator.Drain.class, d -> loadGenerator.drain(sender(), self()))
+                .match(EntityMessage.CommandAck.class, this::commandAck)
+                .match(EntityMessage.CommandAckCompact.class, this::commandAckCompact)
+                .match(EntityMessage.CommandAckRange.class, this::commandAckRange)
+                .build();
+    }
+
+    // Reliable commands do not time out, they are redelivered until they are acknowledged.
+    private void tick() {
+        final long now = System.nanoTime();
+        if (reliableDelivery == null) {
+            loadGenerator.expire(now, id -> log().warning("No response to command {}", id));
+        } else {
+            reliableDelivery.redeliver(now, command -> {
+                log().debug("(redelivery) {} -> {}", command, shardRegion);
+                entityStats.redelivered.increment();
+                shardRegion.tell(command, self());
+            });
+        }
+        send(now);
+        loadGenerator.drained(self());
     }
 
-    private void commandAckSending(EntityMessage.CommandAck commandAck) {
-        log().warning("(late) {} <- {}", commandAck, sender());
+    private void send(long now) {
+        for (int due = loadGenerator.due(now); due > 0; due--) {
+            if (reliableDelivery != null && reliableDelivery.isFull()) {
+                if (!loadGenerator.isClosedLoop()) {
+                    loadGenerator.skip(due);
+                }
+                return;
+            }
+            final long id = loadGenerator.sent(now);
+            final EntityMessage.Command command = reliableDelivery == null
+                    ? new EntityMessage.Command(id, entity(id), delivery)
+                    : reliableDelivery.send(id, entity(id), now);
+            log().debug("{} -> {}", command, shardRegion);
+            shardRegion.tell(command, self());
+            // Without acks a command counts as done once sent, so the window never fills and there is no latency.
+            if (delivery == EntityMessage.Command.deliveryNone) {
+                loadGenerator.acked(id);
+            }
+        }
     }
 
-    private void tickSending() {
-        EntityMessage.Command command = command();
-        log().info("{} -> {}", command, shardRegion);
-        shardRegion.tell(command, self());
-        getContext().become(receiving);
+    private void commandAck(EntityMessage.CommandAck commandAck) {
+        final long sendTime = loadGenerator.acked(commandAck.commandId);
+        if (sendTime < 0) {
+            log().warning("(late) {} <- {}", commandAck, sender());
+        } else {
+            latencies.record(commandAck.isInit() ? Latencies.Outcome.INIT : Latencies.Outcome.UPDATE, System.nanoTime() - sendTime);
+            log().debug("{} <- {}", commandAck, sender());
+            if (loadGenerator.isClosedLoop()) {
+                send(System.nanoTime());
+            }
+        }
     }
 
-    private void commandAckReceiving(EntityMessage.CommandAck commandAck) {
-        log().info("{} <- {}", commandAck, sender());
-        getContext().become(sending);
+    private void commandAckCompact(EntityMessage.CommandAckCompact commandAckCompact) {
+        if (reliableDelivery != null && !reliableDelivery.acked(commandAckCompact.commandId)) {
+            log().debug("(duplicate) {} <- {}", commandAckCompact, sender());
+            return;
+        }
+        final long sendTime = loadGenerator.acked(commandAckCompact.commandId);
+        if (sendTime < 0) {
+            log().warning("(late) {} <- {}", commandAckCompact, sender());
+        } else {
+            latencies.record(commandAckCompact.init ? Latencies.Outcome.INIT : Latencies.Outcome.UPDATE, System.nanoTime() - sendTime);
+            if (loadGenerator.isClosedLoop()) {
+                send(System.nanoTime());
+            }
+        }
     }
 
-    private void tickReceiving() {
-        log().warning("No response to last command {}", messageNumber);
-        getContext().become(sending);
+    // The latency of a cumulative ack includes the time the ack waited to be coalesced.
+    private void commandAckRange(EntityMessage.CommandAckRange commandAckRange) {
+        final long now = System.nanoTime();
+        long late = 0;
+        for (int i = 0; i < commandAckRange.from.length; i++) {
+            for (long id = commandAckRange.from[i]; id <= commandAckRange.to[i]; id++) {
+                final long sendTime = loadGenerator.acked(id);
+                if (sendTime < 0) {
+                    late++;
+                } else {
+                    latencies.record(Latencies.Outcome.CUMULATIVE_ACK, now - sendTime);
+                }
+            }
+        }
+        if (late > 0) {
+            log().warning("(late) {} of {} <- {}", late, commandAckRange, sender());
+        }
+        if (loadGenerator.isClosedLoop()) {
+            send(now);
+        }
     }
 
-    private EntityMessage.Command command() {
-        return new EntityMessage.Command(randomEntity());
+    private void report() {
+        if (reliableDelivery == null) {
+            log().info("{} {}", loadGenerator, loadGenerator.keyDistribution);
+        } else {
+            log().info("{} {} {}", loadGenerator, reliableDelivery, loadGenerator.keyDistribution);
+        }
     }
 
-    private Entity randomEntity() {
-        return new Entity(Random.entityId(1, 100), new Entity.Value(String.format("%s-%d", self().path().name(), ++messageNumber)));
+    private Entity entity(long id) {
+        return new Entity(loadGenerator.keyDistribution.entityId(), self().path().name() + "-" + id);
     }
 
     @Override
     public void preStart() {
-        log().info("Start");
-        ticker = context().system().scheduler().schedule(
-                Duration.Zero(),
-                tickInterval,
-                self(),
-                "tick",
-                context().system().dispatcher(),
-                null
-        );
+        log().info("Start, delivery {}", context().system().settings().config().getString("entity-command-load.delivery"));
+        loadGenerator.start(System.nanoTime());
+        ticker = schedule(Duration.ZERO, loadGenerator.tickInterval, "tick");
+        reporter = schedule(loadGenerator.reportInterval, loadGenerator.reportInterval, "report");
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
         ticker.cancel();
+        reporter.cancel();
+    }
+
+    private Cancellable schedule(Duration initialDelay, Duration interval, String message) {
+        return context().system().scheduler().schedule(
+                initialDelay,
+                interval,
+                self(),
+                message,
+                context().dispatcher(),
+                null
+        );
     }
 
     static Props props(ActorRef shardRegion) {
-        return Props.create(EntityCommandActor.class, shardRegion);
+        return Props.create(EntityCommandActor.class, shardRegion).withDispatcher("entity-support-dispatcher");
     }
 }
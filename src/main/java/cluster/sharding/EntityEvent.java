@@ -0,0 +1,17 @@
+package cluster.sharding;
+
+// Events persisted by PersistentEntityActor.
+class EntityEvent {
+    static class Updated extends EntityEvent {
+        final Entity entity;
+
+        Updated(Entity entity) {
+            this.entity = entity;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), entity);
+        }
+    }
+}
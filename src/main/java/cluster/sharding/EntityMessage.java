@@ -1,144 +1,502 @@
 package cluster.sharding;
 
-import akka.cluster.sharding.ShardRegion;
+import akka.actor.ActorRef;
+import akka.actor.NotInfluenceReceiveTimeout;
+import com.typesafe.config.Config;
 
 import java.io.Serializable;
+import java.util.Comparator;
+import java.util.List;
 
 class EntityMessage {
+    // The entity type of the entity-sharding settings, the one the queries and most features use.
+    static final String typeName = "entity";
+
+    // The delivery mode tells the entity how to acknowledge the command: with a full CommandAck, with a
+    // CommandAckCompact that carries only the command id, with a CommandAckRange that the node's CommandAcks
+    // coalesces per sender, or not at all. Reliable commands are acknowledged like compact ones and may be
+    // redelivered, so the entity drops duplicates by sender and id. All ids of the sender below ackedBelow are
+    // acknowledged and will not be sent again.
     static class Command implements Serializable {
+        static final byte deliveryFull = 0;
+        static final byte deliveryNone = 1;
+        static final byte deliveryCompact = 2;
+        static final byte deliveryCumulative = 3;
+        static final byte deliveryReliable = 4;
+
+        final long id;
         final long time;
         final Entity entity;
+        final byte delivery;
+        final long ackedBelow;
+
+        Command(long id, Entity entity) {
+            this(id, System.nanoTime(), entity, deliveryFull, 0);
+        }
+
+        Command(long id, Entity entity, byte delivery) {
+            this(id, System.nanoTime(), entity, delivery, 0);
+        }
 
-        Command(Entity entity) {
-            time = System.nanoTime();
+        Command(long id, long time, Entity entity, byte delivery, long ackedBelow) {
+            this.id = id;
+            this.time = time;
             this.entity = entity;
+            this.delivery = delivery;
+            this.ackedBelow = ackedBelow;
+        }
+
+        static byte delivery(String mode) {
+            switch (mode) {
+                case "full":
+                    return deliveryFull;
+                case "none":
+                    return deliveryNone;
+                case "compact":
+                    return deliveryCompact;
+                case "cumulative":
+                    return deliveryCumulative;
+                case "reliable":
+                    return deliveryReliable;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown command delivery '%s'", mode));
+            }
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%dus, %s]", getClass().getSimpleName(), time, entity);
+            return String.format("%s[%d, %dus, %s, delivery %d]", getClass().getSimpleName(), id, time, entity, delivery);
         }
     }
 
     static class CommandAck implements Serializable {
+        final long commandId;
         final long commandTime;
         final String action;
         final Entity entity;
 
-        private CommandAck(long commandTime, String action, Entity entity) {
+        CommandAck(long commandId, long commandTime, String action, Entity entity) {
+            this.commandId = commandId;
             this.commandTime = commandTime;
             this.action = action;
             this.entity = entity;
         }
 
         static CommandAck ackInit(Command command) {
-            return new CommandAck(command.time, "initialize", command.entity);
+            return new CommandAck(command.id, command.time, "initialize", command.entity);
         }
 
         static CommandAck ackUpdate(Command command) {
-            return new CommandAck(command.time, "update", command.entity);
+            return new CommandAck(command.id, command.time, "update", command.entity);
+        }
+
+        boolean isInit() {
+            return "initialize".equals(action);
         }
 
         @Override
         public String toString() {
-            final double elapsed = (System.nanoTime() - commandTime) / 1000000000.0;
-            return String.format("%s[elapsed %.9fs, %dus, %s, %s]", getClass().getSimpleName(), elapsed, commandTime, action, entity);
+            return String.format("%s[%d, %dus, %s, %s]", getClass().getSimpleName(), commandId, commandTime, action, entity);
+        }
+    }
+
+    static class CommandAckCompact implements Serializable {
+        final long commandId;
+        final boolean init;
+
+        CommandAckCompact(long commandId, boolean init) {
+            this.commandId = commandId;
+            this.init = init;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %s]", getClass().getSimpleName(), commandId, init ? "initialize" : "update");
+        }
+    }
+
+    // Acknowledges the command ids from[i] to to[i], both inclusive, for every i.
+    static class CommandAckRange implements Serializable {
+        final long[] from;
+        final long[] to;
+
+        CommandAckRange(long[] from, long[] to) {
+            this.from = from;
+            this.to = to;
+        }
+
+        long size() {
+            long size = 0;
+            for (int i = 0; i < from.length; i++) {
+                size += to[i] - from[i] + 1;
+            }
+            return size;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d ranges, %d acks]", getClass().getSimpleName(), from.length, size());
+        }
+    }
+
+    static class CommandBatch implements Serializable {
+        final long batchId;
+        final String shardId;
+        final List<Command> commands;
+
+        CommandBatch(long batchId, String shardId, List<Command> commands) {
+            this.batchId = batchId;
+            this.shardId = shardId;
+            this.commands = commands;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, shard %s, %d commands]", getClass().getSimpleName(), batchId, shardId, commands.size());
+        }
+    }
+
+    static class CommandBatchAck implements Serializable {
+        final long batchId;
+        final List<CommandAck> commandAcks;
+
+        CommandBatchAck(long batchId, List<CommandAck> commandAcks) {
+            this.batchId = batchId;
+            this.commandAcks = commandAcks;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %d acks]", getClass().getSimpleName(), batchId, commandAcks.size());
         }
     }
 
     static class Query implements Serializable {
+        final long queryId;
         final long time;
         final Entity.Id id;
 
-        Query(Entity.Id id) {
-            time = System.nanoTime();
+        Query(long queryId, Entity.Id id) {
+            this(queryId, System.nanoTime(), id);
+        }
+
+        Query(long queryId, long time, Entity.Id id) {
+            this.queryId = queryId;
+            this.time = time;
             this.id = id;
         }
 
         @Override
         public String toString() {
-            return String.format("%s[%s]", getClass().getSimpleName(), id);
+            return String.format("%s[%d, %s]", getClass().getSimpleName(), queryId, id);
         }
     }
 
     static class QueryAck implements Serializable {
+        final long queryId;
         final long queryTime;
         final Entity entity;
 
-        private QueryAck(long queryTime, Entity entity) {
+        QueryAck(long queryId, long queryTime, Entity entity) {
+            this.queryId = queryId;
             this.queryTime = queryTime;
             this.entity = entity;
         }
 
         static QueryAck ack(Query query, Entity entity) {
-            return new QueryAck(query.time, entity);
+            return new QueryAck(query.queryId, query.time, entity);
         }
 
         @Override
         public String toString() {
-            final double elapsed = (System.nanoTime() - queryTime) / 1000000000.0;
-            return String.format("%s[elapsed %.9fs, %d, %s]", getClass().getSimpleName(), elapsed, queryTime, entity);
+            return String.format("%s[%d, %d, %s]", getClass().getSimpleName(), queryId, queryTime, entity);
         }
     }
 
     static class QueryAckNotFound implements Serializable {
+        final long queryId;
         final long queryTime;
         final Entity.Id id;
 
-        private QueryAckNotFound(long queryTime, Entity.Id id) {
+        QueryAckNotFound(long queryId, long queryTime, Entity.Id id) {
+            this.queryId = queryId;
             this.queryTime = queryTime;
             this.id = id;
         }
 
         static QueryAckNotFound ack(Query query) {
-            return new QueryAckNotFound(query.time, query.id);
+            return new QueryAckNotFound(query.queryId, query.time, query.id);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %d, %s]", getClass().getSimpleName(), queryId, queryTime, id);
+        }
+    }
+
+    // Queries many entities at once. The reply lists every requested id as found, not found or unanswered.
+    static class MultiQuery implements Serializable {
+        final long queryId;
+        final long time;
+        final List<Entity.Id> ids;
+
+        MultiQuery(long queryId, List<Entity.Id> ids) {
+            this(queryId, System.nanoTime(), ids);
+        }
+
+        MultiQuery(long queryId, long time, List<Entity.Id> ids) {
+            this.queryId = queryId;
+            this.time = time;
+            this.ids = ids;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %d ids]", getClass().getSimpleName(), queryId, ids.size());
+        }
+    }
+
+    static class MultiQueryAck implements Serializable {
+        final long queryId;
+        final long queryTime;
+        final List<Entity> found;
+        final List<Entity.Id> notFound;
+        final List<Entity.Id> unanswered;
+
+        MultiQueryAck(long queryId, long queryTime, List<Entity> found, List<Entity.Id> notFound, List<Entity.Id> unanswered) {
+            this.queryId = queryId;
+            this.queryTime = queryTime;
+            this.found = found;
+            this.notFound = notFound;
+            this.unanswered = unanswered;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %d found, %d not found, %d unanswered]", getClass().getSimpleName(),
+                    queryId, found.size(), notFound.size(), unanswered.size());
+        }
+    }
+
+    // The part of a MultiQuery for the entities of one shard, handled by the shard entity.
+    static class ShardQuery implements Serializable {
+        final long requestId;
+        final String shardId;
+        final List<Entity.Id> ids;
+
+        ShardQuery(long requestId, String shardId, List<Entity.Id> ids) {
+            this.requestId = requestId;
+            this.shardId = shardId;
+            this.ids = ids;
         }
 
         @Override
         public String toString() {
-            final double elapsed = (System.nanoTime() - queryTime) / 1000000000.0;
-            return String.format("%s[elapsed %.9fs, %d, %s]", getClass().getSimpleName(), elapsed, queryTime, id);
+            return String.format("%s[%d, shard %s, %d ids]", getClass().getSimpleName(), requestId, shardId, ids.size());
         }
     }
 
-    static ShardRegion.MessageExtractor messageExtractor() {
-        final int numberOfShards = 100;
+    // Ids of entities that did not answer in time are in neither list.
+    static class ShardQueryAck implements Serializable {
+        final long requestId;
+        final List<Entity> found;
+        final List<Entity.Id> notFound;
+
+        ShardQueryAck(long requestId, List<Entity> found, List<Entity.Id> notFound) {
+            this.requestId = requestId;
+            this.found = found;
+            this.notFound = notFound;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, %d found, %d not found]", getClass().getSimpleName(), requestId, found.size(), notFound.size());
+        }
+    }
+
+    // Scans the resident entities of one shard. The shard entity asks every entity of the shard hosted on its node and
+    // replies with one ScanAck. The entities whose value contains the filter match, an empty filter matches every
+    // entity that has a value. "count" counts the matches, "filter" also returns up to limit matching entities, and
+    // "top" returns the limit matching entities with the highest values.
+    static class Scan implements Serializable {
+        static final byte aggregateCount = 0;
+        static final byte aggregateFilter = 1;
+        static final byte aggregateTop = 2;
+
+        final long scanId;
+        final String shardId;
+        final byte aggregate;
+        final String filter;
+        final int limit;
+
+        Scan(long scanId, String shardId, byte aggregate, String filter, int limit) {
+            this.scanId = scanId;
+            this.shardId = shardId;
+            this.aggregate = aggregate;
+            this.filter = filter;
+            this.limit = limit;
+        }
+
+        Scan shard(String shardId) {
+            return new Scan(scanId, shardId, aggregate, filter, limit);
+        }
 
-        return new ShardRegion.MessageExtractor() {
-            @Override
-            public String shardId(Object message) {
-                return extractShardIdFromCommands(message);
+        static byte aggregate(String aggregate) {
+            switch (aggregate) {
+                case "count":
+                    return aggregateCount;
+                case "filter":
+                    return aggregateFilter;
+                case "top":
+                    return aggregateTop;
+                default:
+                    throw new IllegalArgumentException(String.format("Unknown scan aggregate '%s'", aggregate));
             }
+        }
 
-            @Override
-            public String entityId(Object message) {
-                return extractEntityIdFromCommands(message);
+        boolean matches(Entity entity) {
+            if (entity == null || entity.valueType() == Entity.valueNull) {
+                return false;
             }
+            return filter.isEmpty() || String.valueOf(entity.value()).contains(filter);
+        }
+
+        // Numbers before strings, other values last. Numbers and strings in descending order, ties by entity id.
+        static final Comparator<Entity> byValueDescending = Scan::compareValuesDescending;
 
-            @Override
-            public Object entityMessage(Object message) {
-                return message;
+        private static int compareValuesDescending(Entity a, Entity b) {
+            int compare = Integer.compare(valueRank(a), valueRank(b));
+            if (compare == 0 && valueRank(a) == 0) {
+                compare = Long.compare(b.longValue(), a.longValue());
+            } else if (compare == 0 && valueRank(a) == 1) {
+                compare = ((String) b.value()).compareTo((String) a.value());
             }
+            return compare != 0 ? compare : a.id.id.compareTo(b.id.id);
+        }
 
-            private String extractShardIdFromCommands(Object message) {
-                if (message instanceof Command) {
-                    return ((Command) message).entity.id.id.hashCode() % numberOfShards + "";
-                } else if (message instanceof Query) {
-                    return ((Query) message).id.id.hashCode() % numberOfShards + "";
-                } else {
-                    return null;
-                }
+        private static int valueRank(Entity entity) {
+            switch (entity.valueType()) {
+                case Entity.valueLong:
+                case Entity.valueInteger:
+                    return 0;
+                case Entity.valueString:
+                    return 1;
+                default:
+                    return 2;
             }
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, shard %s, aggregate %d, filter '%s', limit %d]", getClass().getSimpleName(), scanId, shardId, aggregate, filter, limit);
+        }
+    }
+
+    // The partial result of one shard. Entities that did not answer in time are counted as resident but not as
+    // answered, the result of the shard is complete when every resident entity answered.
+    static class ScanAck implements Serializable {
+        final long scanId;
+        final String shardId;
+        final long resident;
+        final long answered;
+        final long matched;
+        final List<Entity> entities;
 
-            private String extractEntityIdFromCommands(Object message) {
-                if (message instanceof Command) {
-                    return ((Command) message).entity.id.id;
-                } else if (message instanceof Query) {
-                    return ((Query) message).id.id;
-                } else {
-                    return null;
-                }
+        ScanAck(long scanId, String shardId, long resident, long answered, long matched, List<Entity> entities) {
+            this.scanId = scanId;
+            this.shardId = shardId;
+            this.resident = resident;
+            this.answered = answered;
+            this.matched = matched;
+            this.entities = entities;
+        }
+
+        boolean isComplete() {
+            return answered == resident;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d, shard %s, resident %d, answered %d, matched %d, %d entities]", getClass().getSimpleName(),
+                    scanId, shardId, resident, answered, matched, entities.size());
+        }
+    }
+
+    // Sent by a shard scan to the entities of its node only, so it is not serialized. An entity replies with a copy
+    // of itself when it matches the scan, otherwise with noMatch. Entities of count scans reply matched. A scan does not
+    // reset the idle timeout, scanning does not keep idle entities from being passivated.
+    static class ScanEntity implements NotInfluenceReceiveTimeout {
+        static final Object noMatch = new Object();
+        static final Object matched = new Object();
+
+        final Scan scan;
+
+        ScanEntity(Scan scan) {
+            this.scan = scan;
+        }
+
+        Object reply(Entity entity) {
+            if (!scan.matches(entity)) {
+                return noMatch;
             }
-        };
+            return scan.aggregate == Scan.aggregateCount ? matched : entity.copy();
+        }
+    }
+
+    // Published by an entity when a command changes it, so that query caches drop their copy.
+    static class Invalidated implements Serializable {
+        final Entity.Id id;
+        final long time;
+
+        Invalidated(Entity.Id id, long time) {
+            this.id = id;
+            this.time = time;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s]", getClass().getSimpleName(), id);
+        }
+    }
+
+    // Messages addressed to a whole shard are handled by a shard entity that is hosted alongside the shard's entities.
+    static String shardEntityId(String shardId) {
+        return shardEntityPrefix + shardId;
+    }
+
+    // Shard entity ids are reserved, clients must not address entities with them.
+    static boolean isShardEntityId(String entityId) {
+        return entityId.startsWith(shardEntityPrefix);
+    }
+
+    private static final String shardEntityPrefix = "_shard-";
+
+    // The entity actor's parent is its shard and the shard's parent is the shard region, named by the entity type.
+    static String entityType(ActorRef entity) {
+        return entity.path().parent().parent().name();
+    }
+
+    // The shards of the other entity types are prefixed with the type, so per shard state on a node does not mix the
+    // shards of different types.
+    static String shardId(ActorRef entity) {
+        return shardId(entityType(entity), entity.path().parent().name());
+    }
+
+    static String shardId(String entityType, String shardId) {
+        return entityType.equals(typeName) ? shardId : entityType + "-" + shardId;
+    }
+
+    static EntityMessageExtractor messageExtractor(Config config) {
+        return EntityMessageExtractor.create(config.getConfig("entity-sharding"));
+    }
+
+    static EntityMessageExtractor messageExtractor(Config config, String entityType) {
+        return EntityMessageExtractor.create(shardingConfig(config, entityType));
+    }
+
+    // The entity-types entry of a type overrides the entity-sharding settings.
+    static Config shardingConfig(Config config, String entityType) {
+        final Config sharding = config.getConfig("entity-sharding");
+        return entityType.equals(typeName) ? sharding : config.getConfig("entity-types").getConfig(entityType).withFallback(sharding);
     }
 }
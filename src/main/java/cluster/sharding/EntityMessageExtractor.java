@@ -0,0 +1,122 @@
+package cluster.sharding;
+
+import akka.cluster.sharding.ShardRegion;
+import com.typesafe.config.Config;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+class EntityMessageExtractor implements ShardRegion.MessageExtractor {
+    private final ShardIdStrategy shardIdStrategy;
+    private final String[] shardIds;
+
+    EntityMessageExtractor(int numberOfShards, ShardIdStrategy shardIdStrategy) {
+        if (numberOfShards < 1) {
+            throw new IllegalArgumentException(String.format("Number of shards must be positive, was %d", numberOfShards));
+        }
+        this.shardIdStrategy = shardIdStrategy;
+        shardIds = new String[numberOfShards];
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            shardIds[shard] = String.valueOf(shard);
+        }
+    }
+
+    static EntityMessageExtractor create(Config config) {
+        return new EntityMessageExtractor(
+                config.getInt("number-of-shards"),
+                ShardIdStrategy.valueOf(config.getString("shard-id-strategy").toUpperCase()));
+    }
+
+    @Override
+    public String shardId(Object message) {
+        if (message instanceof EntityMessage.Command) {
+            return shardId(((EntityMessage.Command) message).entity.id);
+        } else if (message instanceof EntityMessage.Query) {
+            return shardId(((EntityMessage.Query) message).id);
+        } else if (message instanceof EntityMessage.CommandBatch) {
+            return ((EntityMessage.CommandBatch) message).shardId;
+        } else if (message instanceof EntityMessage.ShardQuery) {
+            return ((EntityMessage.ShardQuery) message).shardId;
+        } else if (message instanceof EntityMessage.Scan) {
+            return ((EntityMessage.Scan) message).shardId;
+        } else if (message instanceof ShardRegion.StartEntity) {
+            return shardId(Entity.Id.of(((ShardRegion.StartEntity) message).entityId()));
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public String entityId(Object message) {
+        if (message instanceof EntityMessage.Command) {
+            return ((EntityMessage.Command) message).entity.id.id;
+        } else if (message instanceof EntityMessage.Query) {
+            return ((EntityMessage.Query) message).id.id;
+        } else if (message instanceof EntityMessage.CommandBatch) {
+            return EntityMessage.shardEntityId(((EntityMessage.CommandBatch) message).shardId);
+        } else if (message instanceof EntityMessage.ShardQuery) {
+            return EntityMessage.shardEntityId(((EntityMessage.ShardQuery) message).shardId);
+        } else if (message instanceof EntityMessage.Scan) {
+            return EntityMessage.shardEntityId(((EntityMessage.Scan) message).shardId);
+        } else {
+            return null;
+        }
+    }
+
+    @Override
+    public Object entityMessage(Object message) {
+        return message;
+    }
+
+    String shardId(Entity.Id id) {
+        return shardIds[shardIdStrategy.shard(id.id.hashCode(), shardIds.length)];
+    }
+
+    int numberOfShards() {
+        return shardIds.length;
+    }
+
+    List<String> shardIds() {
+        return Collections.unmodifiableList(Arrays.asList(shardIds));
+    }
+
+    enum ShardIdStrategy {
+        // Plain modulo of the id hash code. Changing the number of shards moves almost every entity.
+        MODULO {
+            @Override
+            int shard(int hashCode, int numberOfShards) {
+                return Math.floorMod(hashCode, numberOfShards);
+            }
+        },
+
+        // Jump consistent hash (Lamping & Veach). Growing from N to N + 1 shards moves only 1/(N + 1) of the entities.
+        JUMP {
+            @Override
+            int shard(int hashCode, int numberOfShards) {
+                long key = mix(hashCode);
+                long bucket = -1;
+                long jump = 0;
+                while (jump < numberOfShards) {
+                    bucket = jump;
+                    key = key * 2862933555777941757L + 1;
+                    jump = (long) ((bucket + 1) * ((double) (1L << 31) / (double) ((key >>> 33) + 1)));
+                }
+                return (int) bucket;
+            }
+        };
+
+        abstract int shard(int hashCode, int numberOfShards);
+
+        // MurmurHash3 fmix64, spreads the sequential hash codes of short numeric ids across all 64 bits.
+        private static long mix(int hashCode) {
+            long key = hashCode;
+            key ^= key >>> 33;
+            key *= 0xff51afd7ed558ccdL;
+            key ^= key >>> 33;
+            key *= 0xc4ceb9fe1a85ec53L;
+            key ^= key >>> 33;
+            return key;
+        }
+    }
+}
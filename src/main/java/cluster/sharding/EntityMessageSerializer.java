@@ -0,0 +1,456 @@
+package cluster.sharding;
+
+import akka.serialization.ByteBufferSerializer;
+import akka.serialization.SerializerWithStringManifest;
+
+import java.io.NotSerializableException;
+import java.nio.BufferOverflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+
+public class EntityMessageSerializer extends SerializerWithStringManifest implements ByteBufferSerializer {
+    private static final byte version = 3;
+    // Persisted entities and events have not changed since version 2, journals and snapshots of version 2 stay readable.
+    private static final byte persistedVersion = 2;
+
+    private static final String commandManifest = "C";
+    private static final String commandAckManifest = "CA";
+    private static final String commandAckCompactManifest = "CAC";
+    private static final String commandAckRangeManifest = "CAR";
+    private static final String commandBatchManifest = "CB";
+    private static final String commandBatchAckManifest = "CBA";
+    private static final String queryManifest = "Q";
+    private static final String queryAckManifest = "QA";
+    private static final String queryAckNotFoundManifest = "QN";
+    private static final String multiQueryManifest = "MQ";
+    private static final String multiQueryAckManifest = "MQA";
+    private static final String shardQueryManifest = "SQ";
+    private static final String shardQueryAckManifest = "SQA";
+    private static final String scanManifest = "SC";
+    private static final String scanAckManifest = "SCA";
+    private static final String invalidatedManifest = "I";
+    private static final String entityManifest = "E";
+    private static final String entityUpdatedManifest = "EU";
+
+    private static final int initialBufferSize = 4 * 1024;
+    private static final int maximumBufferSize = 16 * 1024 * 1024;
+    private static final ThreadLocal<ByteBuffer> buffers = ThreadLocal.withInitial(() -> ByteBuffer.allocate(initialBufferSize));
+    private static final ThreadLocal<byte[]> stringBuffers = ThreadLocal.withInitial(() -> new byte[initialBufferSize]);
+
+    @Override
+    public int identifier() {
+        return 428443;
+    }
+
+    @Override
+    public String manifest(Object o) {
+        if (o instanceof EntityMessage.Command) {
+            return commandManifest;
+        } else if (o instanceof EntityMessage.CommandAck) {
+            return commandAckManifest;
+        } else if (o instanceof EntityMessage.CommandAckCompact) {
+            return commandAckCompactManifest;
+        } else if (o instanceof EntityMessage.CommandAckRange) {
+            return commandAckRangeManifest;
+        } else if (o instanceof EntityMessage.CommandBatch) {
+            return commandBatchManifest;
+        } else if (o instanceof EntityMessage.CommandBatchAck) {
+            return commandBatchAckManifest;
+        } else if (o instanceof EntityMessage.Query) {
+            return queryManifest;
+        } else if (o instanceof EntityMessage.QueryAck) {
+            return queryAckManifest;
+        } else if (o instanceof EntityMessage.QueryAckNotFound) {
+            return queryAckNotFoundManifest;
+        } else if (o instanceof EntityMessage.MultiQuery) {
+            return multiQueryManifest;
+        } else if (o instanceof EntityMessage.MultiQueryAck) {
+            return multiQueryAckManifest;
+        } else if (o instanceof EntityMessage.ShardQuery) {
+            return shardQueryManifest;
+        } else if (o instanceof EntityMessage.ShardQueryAck) {
+            return shardQueryAckManifest;
+        } else if (o instanceof EntityMessage.Scan) {
+            return scanManifest;
+        } else if (o instanceof EntityMessage.ScanAck) {
+            return scanAckManifest;
+        } else if (o instanceof EntityMessage.Invalidated) {
+            return invalidatedManifest;
+        } else if (o instanceof Entity) {
+            return entityManifest;
+        } else if (o instanceof EntityEvent.Updated) {
+            return entityUpdatedManifest;
+        } else {
+            throw new IllegalArgumentException(String.format("Cannot serialize %s", o.getClass().getName()));
+        }
+    }
+
+    @Override
+    public byte[] toBinary(Object o) {
+        ByteBuffer buffer = buffers.get();
+        while (true) {
+            buffer.clear();
+            try {
+                toBinary(o, buffer);
+                buffer.flip();
+                final byte[] bytes = new byte[buffer.remaining()];
+                buffer.get(bytes);
+                return bytes;
+            } catch (BufferOverflowException e) {
+                if (buffer.capacity() >= maximumBufferSize) {
+                    throw new IllegalArgumentException(String.format("Serialized size of %s exceeds %d bytes", o.getClass().getName(), maximumBufferSize), e);
+                }
+                buffer = ByteBuffer.allocate(buffer.capacity() * 2);
+                buffers.set(buffer);
+            }
+        }
+    }
+
+    @Override
+    public void toBinary(Object o, ByteBuffer buffer) {
+        buffer.put(version);
+        if (o instanceof EntityMessage.Command) {
+            putCommand(buffer, (EntityMessage.Command) o);
+        } else if (o instanceof EntityMessage.CommandAck) {
+            putCommandAck(buffer, (EntityMessage.CommandAck) o);
+        } else if (o instanceof EntityMessage.CommandAckCompact) {
+            final EntityMessage.CommandAckCompact commandAckCompact = (EntityMessage.CommandAckCompact) o;
+            buffer.putLong(commandAckCompact.commandId);
+            buffer.put(commandAckCompact.init ? (byte) 1 : (byte) 0);
+        } else if (o instanceof EntityMessage.CommandAckRange) {
+            final EntityMessage.CommandAckRange commandAckRange = (EntityMessage.CommandAckRange) o;
+            buffer.putInt(commandAckRange.from.length);
+            for (int i = 0; i < commandAckRange.from.length; i++) {
+                buffer.putLong(commandAckRange.from[i]);
+                buffer.putLong(commandAckRange.to[i]);
+            }
+        } else if (o instanceof EntityMessage.CommandBatch) {
+            final EntityMessage.CommandBatch commandBatch = (EntityMessage.CommandBatch) o;
+            buffer.putLong(commandBatch.batchId);
+            putString(buffer, commandBatch.shardId);
+            buffer.putInt(commandBatch.commands.size());
+            commandBatch.commands.forEach(command -> putCommand(buffer, command));
+        } else if (o instanceof EntityMessage.CommandBatchAck) {
+            final EntityMessage.CommandBatchAck commandBatchAck = (EntityMessage.CommandBatchAck) o;
+            buffer.putLong(commandBatchAck.batchId);
+            buffer.putInt(commandBatchAck.commandAcks.size());
+            commandBatchAck.commandAcks.forEach(commandAck -> {
+                if (commandAck == null) {
+                    buffer.put((byte) 0);
+                } else {
+                    buffer.put((byte) 1);
+                    putCommandAck(buffer, commandAck);
+                }
+            });
+        } else if (o instanceof EntityMessage.Query) {
+            final EntityMessage.Query query = (EntityMessage.Query) o;
+            buffer.putLong(query.queryId);
+            buffer.putLong(query.time);
+            putString(buffer, query.id.id);
+        } else if (o instanceof EntityMessage.QueryAck) {
+            final EntityMessage.QueryAck queryAck = (EntityMessage.QueryAck) o;
+            buffer.putLong(queryAck.queryId);
+            buffer.putLong(queryAck.queryTime);
+            putEntity(buffer, queryAck.entity);
+        } else if (o instanceof EntityMessage.QueryAckNotFound) {
+            final EntityMessage.QueryAckNotFound queryAckNotFound = (EntityMessage.QueryAckNotFound) o;
+            buffer.putLong(queryAckNotFound.queryId);
+            buffer.putLong(queryAckNotFound.queryTime);
+            putString(buffer, queryAckNotFound.id.id);
+        } else if (o instanceof EntityMessage.MultiQuery) {
+            final EntityMessage.MultiQuery multiQuery = (EntityMessage.MultiQuery) o;
+            buffer.putLong(multiQuery.queryId);
+            buffer.putLong(multiQuery.time);
+            putIds(buffer, multiQuery.ids);
+        } else if (o instanceof EntityMessage.MultiQueryAck) {
+            final EntityMessage.MultiQueryAck multiQueryAck = (EntityMessage.MultiQueryAck) o;
+            buffer.putLong(multiQueryAck.queryId);
+            buffer.putLong(multiQueryAck.queryTime);
+            putEntities(buffer, multiQueryAck.found);
+            putIds(buffer, multiQueryAck.notFound);
+            putIds(buffer, multiQueryAck.unanswered);
+        } else if (o instanceof EntityMessage.ShardQuery) {
+            final EntityMessage.ShardQuery shardQuery = (EntityMessage.ShardQuery) o;
+            buffer.putLong(shardQuery.requestId);
+            putString(buffer, shardQuery.shardId);
+            putIds(buffer, shardQuery.ids);
+        } else if (o instanceof EntityMessage.ShardQueryAck) {
+            final EntityMessage.ShardQueryAck shardQueryAck = (EntityMessage.ShardQueryAck) o;
+            buffer.putLong(shardQueryAck.requestId);
+            putEntities(buffer, shardQueryAck.found);
+            putIds(buffer, shardQueryAck.notFound);
+        } else if (o instanceof EntityMessage.Scan) {
+            final EntityMessage.Scan scan = (EntityMessage.Scan) o;
+            buffer.putLong(scan.scanId);
+            putString(buffer, scan.shardId);
+            buffer.put(scan.aggregate);
+            putString(buffer, scan.filter);
+            buffer.putInt(scan.limit);
+        } else if (o instanceof EntityMessage.ScanAck) {
+            final EntityMessage.ScanAck scanAck = (EntityMessage.ScanAck) o;
+            buffer.putLong(scanAck.scanId);
+            putString(buffer, scanAck.shardId);
+            buffer.putLong(scanAck.resident);
+            buffer.putLong(scanAck.answered);
+            buffer.putLong(scanAck.matched);
+            putEntities(buffer, scanAck.entities);
+        } else if (o instanceof EntityMessage.Invalidated) {
+            final EntityMessage.Invalidated invalidated = (EntityMessage.Invalidated) o;
+            putString(buffer, invalidated.id.id);
+            buffer.putLong(invalidated.time);
+        } else if (o instanceof Entity) {
+            putEntity(buffer, (Entity) o);
+        } else if (o instanceof EntityEvent.Updated) {
+            putEntity(buffer, ((EntityEvent.Updated) o).entity);
+        } else {
+            throw new IllegalArgumentException(String.format("Cannot serialize %s", o.getClass().getName()));
+        }
+    }
+
+    private static boolean isPersisted(String manifest) {
+        return manifest.equals(entityManifest) || manifest.equals(entityUpdatedManifest);
+    }
+
+    @Override
+    public Object fromBinary(byte[] bytes, String manifest) throws NotSerializableException {
+        return fromBinary(ByteBuffer.wrap(bytes), manifest);
+    }
+
+    @Override
+    public Object fromBinary(ByteBuffer buffer, String manifest) throws NotSerializableException {
+        final byte messageVersion = buffer.get();
+        if (messageVersion != version && !(messageVersion >= persistedVersion && isPersisted(manifest))) {
+            throw new NotSerializableException(String.format("Unsupported version %d of manifest [%s]", messageVersion, manifest));
+        }
+        switch (manifest) {
+            case commandManifest:
+                return getCommand(buffer);
+            case commandAckManifest:
+                return getCommandAck(buffer);
+            case commandAckCompactManifest:
+                return new EntityMessage.CommandAckCompact(buffer.getLong(), buffer.get() != 0);
+            case commandAckRangeManifest: {
+                final int size = buffer.getInt();
+                final long[] from = new long[size];
+                final long[] to = new long[size];
+                for (int i = 0; i < size; i++) {
+                    from[i] = buffer.getLong();
+                    to[i] = buffer.getLong();
+                }
+                return new EntityMessage.CommandAckRange(from, to);
+            }
+            case commandBatchManifest: {
+                final long batchId = buffer.getLong();
+                final String shardId = getString(buffer);
+                final int size = buffer.getInt();
+                final List<EntityMessage.Command> commands = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    commands.add(getCommand(buffer));
+                }
+                return new EntityMessage.CommandBatch(batchId, shardId, commands);
+            }
+            case commandBatchAckManifest: {
+                final long batchId = buffer.getLong();
+                final int size = buffer.getInt();
+                final List<EntityMessage.CommandAck> commandAcks = new ArrayList<>(size);
+                for (int i = 0; i < size; i++) {
+                    commandAcks.add(buffer.get() == 0 ? null : getCommandAck(buffer));
+                }
+                return new EntityMessage.CommandBatchAck(batchId, commandAcks);
+            }
+            case queryManifest:
+                return new EntityMessage.Query(buffer.getLong(), buffer.getLong(), Entity.Id.of(getString(buffer)));
+            case queryAckManifest:
+                return new EntityMessage.QueryAck(buffer.getLong(), buffer.getLong(), getEntity(buffer));
+            case queryAckNotFoundManifest:
+                return new EntityMessage.QueryAckNotFound(buffer.getLong(), buffer.getLong(), Entity.Id.of(getString(buffer)));
+            case multiQueryManifest:
+                return new EntityMessage.MultiQuery(buffer.getLong(), buffer.getLong(), getIds(buffer));
+            case multiQueryAckManifest:
+                return new EntityMessage.MultiQueryAck(buffer.getLong(), buffer.getLong(), getEntities(buffer), getIds(buffer), getIds(buffer));
+            case shardQueryManifest:
+                return new EntityMessage.ShardQuery(buffer.getLong(), getString(buffer), getIds(buffer));
+            case shardQueryAckManifest:
+                return new EntityMessage.ShardQueryAck(buffer.getLong(), getEntities(buffer), getIds(buffer));
+            case scanManifest:
+                return new EntityMessage.Scan(buffer.getLong(), getString(buffer), buffer.get(), getString(buffer), buffer.getInt());
+            case scanAckManifest:
+                return new EntityMessage.ScanAck(buffer.getLong(), getString(buffer), buffer.getLong(), buffer.getLong(), buffer.getLong(), getEntities(buffer));
+            case invalidatedManifest:
+                return new EntityMessage.Invalidated(Entity.Id.of(getString(buffer)), buffer.getLong());
+            case entityManifest:
+                return getEntity(buffer);
+            case entityUpdatedManifest:
+                return new EntityEvent.Updated(getEntity(buffer));
+            default:
+                throw new NotSerializableException(String.format("Unknown manifest [%s]", manifest));
+        }
+    }
+
+    private void putCommand(ByteBuffer buffer, EntityMessage.Command command) {
+        buffer.putLong(command.id);
+        buffer.putLong(command.time);
+        putEntity(buffer, command.entity);
+        buffer.put(command.delivery);
+        if (command.delivery == EntityMessage.Command.deliveryReliable) {
+            buffer.putLong(command.ackedBelow);
+        }
+    }
+
+    private EntityMessage.Command getCommand(ByteBuffer buffer) {
+        final long id = buffer.getLong();
+        final long time = buffer.getLong();
+        final Entity entity = getEntity(buffer);
+        final byte delivery = buffer.get();
+        final long ackedBelow = delivery == EntityMessage.Command.deliveryReliable ? buffer.getLong() : 0;
+        return new EntityMessage.Command(id, time, entity, delivery, ackedBelow);
+    }
+
+    private void putCommandAck(ByteBuffer buffer, EntityMessage.CommandAck commandAck) {
+        buffer.putLong(commandAck.commandId);
+        buffer.putLong(commandAck.commandTime);
+        putString(buffer, commandAck.action);
+        putEntity(buffer, commandAck.entity);
+    }
+
+    private EntityMessage.CommandAck getCommandAck(ByteBuffer buffer) {
+        return new EntityMessage.CommandAck(buffer.getLong(), buffer.getLong(), getString(buffer), getEntity(buffer));
+    }
+
+    private void putEntity(ByteBuffer buffer, Entity entity) {
+        putString(buffer, entity.id.id);
+        final byte type = entity.valueType();
+        buffer.put(type);
+        switch (type) {
+            case Entity.valueNull:
+                break;
+            case Entity.valueString:
+                putString(buffer, (String) entity.value());
+                break;
+            case Entity.valueLong:
+                buffer.putLong(entity.longValue());
+                break;
+            case Entity.valueInteger:
+                buffer.putInt((int) entity.longValue());
+                break;
+            case Entity.valueBytes:
+                putBytes(buffer, (byte[]) entity.value());
+                break;
+            default:
+                putBytes(buffer, FstHolder.fstSerializer.toBinary(entity.value()));
+                break;
+        }
+    }
+
+    private Entity getEntity(ByteBuffer buffer) {
+        final Entity.Id id = Entity.Id.of(getString(buffer));
+        final byte type = buffer.get();
+        return type == Entity.valueLong ? new Entity(id, buffer.getLong()) : new Entity(id, getValue(type, buffer));
+    }
+
+    private void putEntities(ByteBuffer buffer, List<Entity> entities) {
+        buffer.putInt(entities.size());
+        entities.forEach(entity -> putEntity(buffer, entity));
+    }
+
+    private List<Entity> getEntities(ByteBuffer buffer) {
+        final int size = buffer.getInt();
+        final List<Entity> entities = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            entities.add(getEntity(buffer));
+        }
+        return entities;
+    }
+
+    private static void putIds(ByteBuffer buffer, List<Entity.Id> ids) {
+        buffer.putInt(ids.size());
+        ids.forEach(id -> putString(buffer, id.id));
+    }
+
+    private static List<Entity.Id> getIds(ByteBuffer buffer) {
+        final int size = buffer.getInt();
+        final List<Entity.Id> ids = new ArrayList<>(size);
+        for (int i = 0; i < size; i++) {
+            ids.add(Entity.Id.of(getString(buffer)));
+        }
+        return ids;
+    }
+
+    private Object getValue(byte type, ByteBuffer buffer) {
+        switch (type) {
+            case Entity.valueNull:
+                return null;
+            case Entity.valueString:
+                return getString(buffer);
+            case Entity.valueInteger:
+                return buffer.getInt();
+            case Entity.valueBytes:
+                return getBytes(buffer);
+            case Entity.valueObject:
+                return FstHolder.fstSerializer.fromBinaryJava(getBytes(buffer), null);
+            default:
+                throw new IllegalArgumentException(String.format("Unknown value type %d", type));
+        }
+    }
+
+    private static void putBytes(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length);
+        buffer.put(bytes);
+    }
+
+    private static byte[] getBytes(ByteBuffer buffer) {
+        final byte[] bytes = new byte[buffer.getInt()];
+        buffer.get(bytes);
+        return bytes;
+    }
+
+    // Encodes UTF-8 directly into the buffer, the length prefix is patched in after the characters are written.
+    private static void putString(ByteBuffer buffer, String string) {
+        final int lengthPosition = buffer.position();
+        buffer.putInt(0);
+        final int length = string.length();
+        for (int i = 0; i < length; i++) {
+            final char c = string.charAt(i);
+            if (c < 0x80) {
+                buffer.put((byte) c);
+            } else if (c < 0x800) {
+                buffer.put((byte) (0xc0 | c >> 6));
+                buffer.put((byte) (0x80 | c & 0x3f));
+            } else if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(string.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer.put((byte) (0xf0 | codePoint >> 18));
+                buffer.put((byte) (0x80 | codePoint >> 12 & 0x3f));
+                buffer.put((byte) (0x80 | codePoint >> 6 & 0x3f));
+                buffer.put((byte) (0x80 | codePoint & 0x3f));
+            } else {
+                buffer.put((byte) (0xe0 | c >> 12));
+                buffer.put((byte) (0x80 | c >> 6 & 0x3f));
+                buffer.put((byte) (0x80 | c & 0x3f));
+            }
+        }
+        buffer.putInt(lengthPosition, buffer.position() - lengthPosition - 4);
+    }
+
+    private static String getString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (buffer.hasArray()) {
+            final String string = new String(buffer.array(), buffer.arrayOffset() + buffer.position(), length, StandardCharsets.UTF_8);
+            buffer.position(buffer.position() + length);
+            return string;
+        }
+        byte[] bytes = stringBuffers.get();
+        if (bytes.length < length) {
+            bytes = new byte[length];
+            stringBuffers.set(bytes);
+        }
+        buffer.get(bytes, 0, length);
+        return new String(bytes, 0, length, StandardCharsets.UTF_8);
+    }
+
+    // Only values of uncommon types pay for loading fst.
+    private static class FstHolder {
+        static final FstSerializer fstSerializer = new FstSerializer();
+    }
+}
@@ -0,0 +1,110 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+// Sends multi queries of ids-per-query random ids, to compare with the same number of single queries.
+class EntityMultiQueryActor extends AbstractLoggingActor {
+    private final ActorRef multiQuery;
+    private final LoadGenerator loadGenerator;
+    private final int idsPerQuery;
+    private final Latencies latencies = Latencies.get(context().system());
+    private long found;
+    private long notFound;
+    private long unanswered;
+    private Cancellable ticker;
+    private Cancellable reporter;
+
+    private EntityMultiQueryActor(ActorRef multiQuery) {
+        this.multiQuery = multiQuery;
+        final Config config = context().system().settings().config().getConfig("entity-multi-query-load");
+        loadGenerator = new LoadGenerator(config);
+        idsPerQuery = config.getInt("ids-per-query");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .matchEquals("report", r -> report())
+                .match(LoadGenerator.Drain.class, d -> loadGenerator.drain(sender(), self()))
+                .match(EntityMessage.MultiQueryAck.class, this::multiQueryAck)
+                .build();
+    }
+
+    private void tick() {
+        final long now = System.nanoTime();
+        loadGenerator.expire(now, id -> log().warning("No multi query response to {}", id));
+        send(now);
+        loadGenerator.drained(self());
+    }
+
+    private void send(long now) {
+        for (int due = loadGenerator.due(now); due > 0; due--) {
+            final List<Entity.Id> ids = new ArrayList<>(idsPerQuery);
+            for (int i = 0; i < idsPerQuery; i++) {
+                ids.add(loadGenerator.keyDistribution.entityId());
+            }
+            final EntityMessage.MultiQuery query = new EntityMessage.MultiQuery(loadGenerator.sent(now), ids);
+            log().debug("{} -> {}", query, multiQuery);
+            multiQuery.tell(query, self());
+        }
+    }
+
+    private void multiQueryAck(EntityMessage.MultiQueryAck multiQueryAck) {
+        final long sendTime = loadGenerator.acked(multiQueryAck.queryId);
+        if (sendTime < 0) {
+            log().info("(late) {} <- {}", multiQueryAck, sender());
+        } else {
+            latencies.record(Latencies.Outcome.MULTI_QUERY, System.nanoTime() - sendTime);
+            found += multiQueryAck.found.size();
+            notFound += multiQueryAck.notFound.size();
+            unanswered += multiQueryAck.unanswered.size();
+            log().debug("{} <- {}", multiQueryAck, sender());
+            if (loadGenerator.isClosedLoop()) {
+                send(System.nanoTime());
+            }
+        }
+    }
+
+    private void report() {
+        log().info(String.format("%s %s, ids found %d, not found %d, unanswered %d", loadGenerator, loadGenerator.keyDistribution, found, notFound, unanswered));
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start, {} ids per query", idsPerQuery);
+        loadGenerator.start(System.nanoTime());
+        ticker = schedule(Duration.ZERO, loadGenerator.tickInterval, "tick");
+        reporter = schedule(loadGenerator.reportInterval, loadGenerator.reportInterval, "report");
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        ticker.cancel();
+        reporter.cancel();
+    }
+
+    private Cancellable schedule(Duration initialDelay, Duration interval, String message) {
+        return context().system().scheduler().schedule(
+                initialDelay,
+                interval,
+                self(),
+                message,
+                context().dispatcher(),
+                null
+        );
+    }
+
+    static Props props(ActorRef multiQuery) {
+        return Props.create(EntityMultiQueryActor.class, multiQuery).withDispatcher("entity-support-dispatcher");
+    }
+}
@@ -4,93 +4,99 @@ import akka.actor.AbstractLoggingActor;
 import akka.actor.ActorRef;
 import akka.actor.Cancellable;
 import akka.actor.Props;
-import scala.concurrent.duration.Duration;
-import scala.concurrent.duration.FiniteDuration;
 
-import java.util.concurrent.TimeUnit;
+import java.time.Duration;
 
 class EntityQueryActor extends AbstractLoggingActor {
     private final ActorRef shardRegion;
+    private final LoadGenerator loadGenerator;
+    private final Latencies latencies = Latencies.get(context().system());
     private Cancellable ticker;
-    private FiniteDuration tickInterval = Duration.create(2, TimeUnit.SECONDS);
-    private Entity.Id lastQueryId;
-    private final Receive sending;
-    private final Receive receiving;
-
-    {
-        sending = receiveBuilder()
-                .matchEquals("tick", t -> tickSending())
-                .match(EntityMessage.QueryAck.class, this::queryAckSending)
-                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFoundSending)
-                .build();
-
-        receiving = receiveBuilder()
-                .matchEquals("tick", t -> tickReceiving())
-                .match(EntityMessage.QueryAck.class, this::queryAckReceiving)
-                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFoundReceiving)
-                .build();
-    }
+    private Cancellable reporter;
 
     private EntityQueryActor(ActorRef shardRegion) {
         this.shardRegion = shardRegion;
+        loadGenerator = new LoadGenerator(context().system().settings().config().getConfig("entity-query-load"));
     }
 
     @Override
     public Receive createReceive() {
-        return sending;
+        return receiveBuilder()
+                .matchEquals("tick", t -> tick())
+                .matchEquals("report", r -> report())
+                .match(LoadGenerator.Drain.class, d -> loadGenerator.drain(sender(), self()))
+                .match(EntityMessage.QueryAck.class, this::queryAck)
+                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFound)
+                .build();
     }
 
-    private void tickSending() {
-        lastQueryId = Random.entityId(1, 100);
-        final EntityMessage.Query query = new EntityMessage.Query(lastQueryId);
-        log().info("{} -> {}", query, shardRegion);
-        shardRegion.tell(query, self());
-        getContext().become(receiving);
+    private void tick() {
+        final long now = System.nanoTime();
+        loadGenerator.expire(now, id -> log().warning("No query response to {}", id));
+        send(now);
+        loadGenerator.drained(self());
     }
 
-    private void queryAckSending(EntityMessage.QueryAck queryAck) {
-        log().info("(late) {} <- {}", queryAck, sender());
+    private void send(long now) {
+        for (int due = loadGenerator.due(now); due > 0; due--) {
+            final EntityMessage.Query query = new EntityMessage.Query(loadGenerator.sent(now), loadGenerator.keyDistribution.entityId());
+            log().debug("{} -> {}", query, shardRegion);
+            shardRegion.tell(query, self());
+        }
     }
 
-    private void queryAckNotFoundSending(EntityMessage.QueryAckNotFound queryAckNotFound) {
-        log().info("(late) {} <- {}", queryAckNotFound, sender());
+    private void queryAck(EntityMessage.QueryAck queryAck) {
+        acked(queryAck.queryId, Latencies.Outcome.QUERY_HIT, queryAck);
     }
 
-    private void tickReceiving() {
-        log().warning("No query response to {}", lastQueryId);
-        getContext().become(sending);
+    private void queryAckNotFound(EntityMessage.QueryAckNotFound queryAckNotFound) {
+        acked(queryAckNotFound.queryId, Latencies.Outcome.QUERY_MISS, queryAckNotFound);
     }
 
-    private void queryAckReceiving(EntityMessage.QueryAck queryAck) {
-        log().info("{} <- {}", queryAck, sender());
-        getContext().become(sending);
+    private void acked(long queryId, Latencies.Outcome outcome, Object queryAck) {
+        final long sendTime = loadGenerator.acked(queryId);
+        if (sendTime < 0) {
+            log().info("(late) {} <- {}", queryAck, sender());
+        } else {
+            latencies.record(outcome, System.nanoTime() - sendTime);
+            log().debug("{} <- {}", queryAck, sender());
+            if (loadGenerator.isClosedLoop()) {
+                send(System.nanoTime());
+            }
+        }
     }
 
-    private void queryAckNotFoundReceiving(EntityMessage.QueryAckNotFound queryAckNotFound) {
-        log().info("{} <- {}", queryAckNotFound, sender());
-        getContext().become(sending);
+    private void report() {
+        log().info("{} {}", loadGenerator, loadGenerator.keyDistribution);
     }
 
     @Override
     public void preStart() {
         log().info("Start");
-        ticker = context().system().scheduler().schedule(
-                Duration.Zero(),
-                tickInterval,
-                self(),
-                "tick",
-                context().system().dispatcher(),
-                null
-        );
+        loadGenerator.start(System.nanoTime());
+        ticker = schedule(Duration.ZERO, loadGenerator.tickInterval, "tick");
+        reporter = schedule(loadGenerator.reportInterval, loadGenerator.reportInterval, "report");
     }
 
     @Override
     public void postStop() {
         log().info("Stop");
         ticker.cancel();
+        reporter.cancel();
+    }
+
+    private Cancellable schedule(Duration initialDelay, Duration interval, String message) {
+        return context().system().scheduler().schedule(
+                initialDelay,
+                interval,
+                self(),
+                message,
+                context().dispatcher(),
+                null
+        );
     }
 
     static Props props(ActorRef shardRegion) {
-        return Props.create(EntityQueryActor.class, shardRegion);
+        return Props.create(EntityQueryActor.class, shardRegion).withDispatcher("entity-support-dispatcher");
     }
 }
@@ -0,0 +1,224 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.cluster.sharding.ClusterSharding;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.StatusCode;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.PathMatchers;
+import akka.http.javadsl.server.Route;
+import akka.http.javadsl.unmarshalling.Unmarshaller;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// Commands and queries over HTTP. Every request is answered from the completion of an ask, no thread waits for the
+// entities, so one connection can have several pipelined requests in flight.
+//   GET  /entity/<id>          query one entity
+//   GET  /entity?ids=<id>,...  query many entities with one multi query
+//   PUT  /entity/<id>          update one entity, the request body is the value
+//   POST /entity               update many entities, one "<entity id> <value>" per line of the request body
+public class EntityRoutes extends AllDirectives implements ManagementRouteProvider {
+    private final ActorSystem system;
+    private final Latencies latencies;
+    private final Duration askTimeout;
+    private final int maxBatchSize;
+    private final AtomicLong requestId = new AtomicLong();
+
+    public EntityRoutes(ExtendedActorSystem system) {
+        this.system = system;
+        latencies = Latencies.get(system);
+        final Config config = system.settings().config().getConfig("entity-http");
+        askTimeout = config.getDuration("ask-timeout");
+        maxBatchSize = config.getInt("max-batch-size");
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        final Route queries = get(() -> concat(
+                path(PathMatchers.segment("entity").slash(PathMatchers.segment()), id ->
+                        EntityMessage.isShardEntityId(id) ? complete(reserved(id)) : completeWithFuture(query(Entity.Id.of(id)))),
+                path("entity", () ->
+                        parameter("ids", ids -> completeWithFuture(multiQuery(ids))))));
+
+        if (settings.readOnly()) {
+            return queries;
+        }
+
+        final Route commands = concat(
+                path(PathMatchers.segment("entity").slash(PathMatchers.segment()), id ->
+                        put(() -> EntityMessage.isShardEntityId(id) ? complete(reserved(id)) : entity(Unmarshaller.entityToString(), value ->
+                                completeWithFuture(command(new Entity(id, value)))))),
+                path("entity", () ->
+                        post(() -> entity(Unmarshaller.entityToString(), this::commandBatch))));
+
+        return concat(queries, commands);
+    }
+
+    private CompletionStage<HttpResponse> query(Entity.Id id) {
+        final long start = System.nanoTime();
+        return Patterns.ask(shardRegion(), new EntityMessage.Query(requestId.incrementAndGet(), id), askTimeout)
+                .handle((reply, e) -> {
+                    latencies.record(Latencies.Outcome.HTTP, System.nanoTime() - start);
+                    if (reply instanceof EntityMessage.QueryAck) {
+                        return json(StatusCodes.OK, json(((EntityMessage.QueryAck) reply).entity));
+                    } else if (reply instanceof EntityMessage.QueryAckNotFound) {
+                        return json(StatusCodes.NOT_FOUND, String.format("{\"id\": %s}", json(id.id)));
+                    }
+                    return timedOut();
+                });
+    }
+
+    private CompletionStage<HttpResponse> multiQuery(String ids) {
+        final List<Entity.Id> entityIds = Arrays.stream(ids.split(","))
+                .map(String::trim)
+                .filter(id -> !id.isEmpty())
+                .map(Entity.Id::of)
+                .collect(Collectors.toList());
+        if (entityIds.size() > maxBatchSize) {
+            return CompletableFuture.completedFuture(tooLarge(entityIds.size()));
+        }
+        final Optional<Entity.Id> reserved = entityIds.stream().filter(id -> EntityMessage.isShardEntityId(id.id)).findFirst();
+        if (reserved.isPresent()) {
+            return CompletableFuture.completedFuture(reserved(reserved.get().id));
+        }
+        final long start = System.nanoTime();
+        final EntityMessage.MultiQuery multiQuery = new EntityMessage.MultiQuery(requestId.incrementAndGet(), entityIds);
+        return Patterns.ask(system.actorSelection("/user/multiQuery"), multiQuery, askTimeout)
+                .handle((reply, e) -> {
+                    latencies.record(Latencies.Outcome.HTTP, System.nanoTime() - start);
+                    if (!(reply instanceof EntityMessage.MultiQueryAck)) {
+                        return timedOut();
+                    }
+                    final EntityMessage.MultiQueryAck multiQueryAck = (EntityMessage.MultiQueryAck) reply;
+                    return json(StatusCodes.OK, String.format("{\"found\": [%s], \"notFound\": [%s], \"unanswered\": [%s]}",
+                            multiQueryAck.found.stream().map(EntityRoutes::json).collect(Collectors.joining(", ")),
+                            multiQueryAck.notFound.stream().map(id -> json(id.id)).collect(Collectors.joining(", ")),
+                            multiQueryAck.unanswered.stream().map(id -> json(id.id)).collect(Collectors.joining(", "))));
+                });
+    }
+
+    private CompletionStage<HttpResponse> command(Entity entity) {
+        final long start = System.nanoTime();
+        return ask(entity).thenApply(commandAck -> {
+            latencies.record(Latencies.Outcome.HTTP, System.nanoTime() - start);
+            return commandAck == null ? timedOut() : json(StatusCodes.OK, json(commandAck));
+        });
+    }
+
+    private Route commandBatch(String body) {
+        final List<Entity> entities = new ArrayList<>();
+        for (String line : body.split("\n")) {
+            final String command = line.trim();
+            final int separator = command.indexOf(' ');
+            if (command.isEmpty()) {
+                continue;
+            }
+            if (separator <= 0) {
+                return complete(StatusCodes.BAD_REQUEST, String.format("Malformed command '%s', expected '<entity id> <value>'", command));
+            }
+            if (EntityMessage.isShardEntityId(command.substring(0, separator))) {
+                return complete(reserved(command.substring(0, separator)));
+            }
+            entities.add(new Entity(command.substring(0, separator), command.substring(separator + 1)));
+        }
+        if (entities.size() > maxBatchSize) {
+            return complete(tooLarge(entities.size()));
+        }
+        final long start = System.nanoTime();
+        final List<CompletableFuture<EntityMessage.CommandAck>> commandAcks = entities.stream()
+                .map(entity -> ask(entity).toCompletableFuture())
+                .collect(Collectors.toList());
+        return completeWithFuture(CompletableFuture
+                .allOf(commandAcks.toArray(new CompletableFuture<?>[0]))
+                .thenApply(done -> {
+                    latencies.record(Latencies.Outcome.HTTP, System.nanoTime() - start);
+                    return json(StatusCodes.OK, String.format("[%s]", commandAcks.stream()
+                            .map(CompletableFuture::join)
+                            .map(commandAck -> commandAck == null ? "null" : json(commandAck))
+                            .collect(Collectors.joining(", "))));
+                }));
+    }
+
+    // Completes with null when the command is not acknowledged in time.
+    private CompletionStage<EntityMessage.CommandAck> ask(Entity entity) {
+        return Patterns.ask(shardRegion(), new EntityMessage.Command(requestId.incrementAndGet(), entity), askTimeout)
+                .handle((reply, e) -> reply instanceof EntityMessage.CommandAck ? (EntityMessage.CommandAck) reply : null);
+    }
+
+    // The routes are created before the shard region is started, so the region is looked up per request.
+    private ActorRef shardRegion() {
+        return ClusterSharding.get(system).shardRegion(EntityMessage.typeName);
+    }
+
+    private HttpResponse timedOut() {
+        return json(StatusCodes.SERVICE_UNAVAILABLE, String.format("{\"error\": \"No response within %s\"}", askTimeout));
+    }
+
+    private HttpResponse tooLarge(int size) {
+        return json(StatusCodes.BAD_REQUEST, String.format("{\"error\": \"%d entities, the maximum is %d\"}", size, maxBatchSize));
+    }
+
+    private static HttpResponse reserved(String id) {
+        return json(StatusCodes.BAD_REQUEST, String.format("{\"error\": %s}", json(String.format("The entity id %s is reserved", id))));
+    }
+
+    private static HttpResponse json(StatusCode status, String json) {
+        return HttpResponse.create().withStatus(status).withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, json));
+    }
+
+    private static String json(EntityMessage.CommandAck commandAck) {
+        return String.format("{\"id\": %s, \"action\": %s}", json(commandAck.entity.id.id), json(commandAck.action));
+    }
+
+    static String json(Entity entity) {
+        final String value;
+        switch (entity.valueType()) {
+            case Entity.valueNull:
+                value = "null";
+                break;
+            case Entity.valueLong:
+            case Entity.valueInteger:
+                value = String.valueOf(entity.longValue());
+                break;
+            case Entity.valueBytes:
+                value = json(Base64.getEncoder().encodeToString((byte[]) entity.value()));
+                break;
+            default:
+                value = json(String.valueOf(entity.value()));
+        }
+        return String.format("{\"id\": %s, \"value\": %s}", json(entity.id.id), value);
+    }
+
+    static String json(String string) {
+        final StringBuilder json = new StringBuilder(string.length() + 2).append('"');
+        for (int i = 0; i < string.length(); i++) {
+            final char c = string.charAt(i);
+            if (c == '"' || c == '\\') {
+                json.append('\\').append(c);
+            } else if (c < 0x20) {
+                json.append(String.format("\\u%04x", (int) c));
+            } else {
+                json.append(c);
+            }
+        }
+        return json.append('"').toString();
+    }
+}
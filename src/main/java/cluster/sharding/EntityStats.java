@@ -0,0 +1,267 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.stream.Collectors;
+
+// Command and query counts of the shards hosted on this node, and the hot keys.
+// Entities look up the counters of their shard once, so counting a message is one LongAdder increment. Each entity
+// also counts its own messages in a plain field and offers its id to the hot key sketch once every sample-every
+// messages, so the sketch sees a sample of the traffic. Every interval the counts are turned into rates and the hot
+// key sketch is rotated, the /stats management endpoint reads the rates and hot keys of the last complete interval.
+class EntityStats implements Extension {
+    final long sampleMask;
+    // Reliable delivery since the node started: commands redelivered by the node's producers and redelivered
+    // commands that the node's entities had handled before.
+    final LongAdder redelivered = new LongAdder();
+    final LongAdder duplicates = new LongAdder();
+    private final Map<String, ShardCounters> shards = new ConcurrentHashMap<>();
+    private final int hotKeyCapacity;
+    private final int topK;
+    private final long intervalNanos;
+    private final Cancellable sampler;
+    private volatile SpaceSaving hotKeys;
+    private volatile Snapshot snapshot = new Snapshot(Collections.emptyMap(), Collections.emptyList());
+
+    private EntityStats(ExtendedActorSystem system) {
+        final Config config = system.settings().config().getConfig("entity-stats");
+        final int sampleEvery = config.getInt("sample-every");
+        if (Integer.bitCount(sampleEvery) != 1) {
+            throw new IllegalArgumentException(String.format("entity-stats.sample-every must be a power of two, was %d", sampleEvery));
+        }
+        sampleMask = sampleEvery - 1;
+        hotKeyCapacity = config.getInt("hot-key-capacity");
+        topK = config.getInt("top-k");
+        hotKeys = new SpaceSaving(hotKeyCapacity, sampleMask + 1);
+        final Duration interval = config.getDuration("interval");
+        intervalNanos = interval.toNanos();
+        sampler = system.scheduler().schedule(interval, interval, this::sample, system.dispatcher());
+        system.registerOnTermination(sampler::cancel);
+    }
+
+    static EntityStats get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    ShardCounters shard(String shardId) {
+        final ShardCounters counters = shards.get(shardId);
+        return counters != null ? counters : shards.computeIfAbsent(shardId, id -> new ShardCounters());
+    }
+
+    // Called by an entity on every sample-every'th message, the id stands for that many messages.
+    void hotKey(String entityId) {
+        hotKeys.offer(entityId);
+    }
+
+    Snapshot snapshot() {
+        return snapshot;
+    }
+
+    private void sample() {
+        final Map<String, Rates> rates = new TreeMap<>();
+        final Iterator<Map.Entry<String, ShardCounters>> iterator = shards.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<String, ShardCounters> shard = iterator.next();
+            final long commands = shard.getValue().commands.sumThenReset();
+            final long queries = shard.getValue().queries.sumThenReset();
+            if (commands + queries > 0) {
+                rates.put(shard.getKey(), new Rates(perSecond(commands), perSecond(queries)));
+            }
+        }
+        final SpaceSaving completed = hotKeys;
+        hotKeys = new SpaceSaving(hotKeyCapacity, sampleMask + 1);
+        snapshot = new Snapshot(rates, completed.top(topK).stream()
+                .map(counter -> new HotKey(counter.id, perSecond(counter.count()), perSecond(counter.error)))
+                .collect(Collectors.toList()));
+    }
+
+    private double perSecond(long count) {
+        return count * 1e9 / intervalNanos;
+    }
+
+    static class ShardCounters {
+        final LongAdder commands = new LongAdder();
+        final LongAdder queries = new LongAdder();
+    }
+
+    static class Rates {
+        final double commandsPerSecond;
+        final double queriesPerSecond;
+
+        Rates(double commandsPerSecond, double queriesPerSecond) {
+            this.commandsPerSecond = commandsPerSecond;
+            this.queriesPerSecond = queriesPerSecond;
+        }
+    }
+
+    // The estimated rate of a hot key is at most errorPerSecond too high.
+    static class HotKey {
+        final String id;
+        final double perSecond;
+        final double errorPerSecond;
+
+        HotKey(String id, double perSecond, double errorPerSecond) {
+            this.id = id;
+            this.perSecond = perSecond;
+            this.errorPerSecond = errorPerSecond;
+        }
+    }
+
+    // The shard rates and hot keys of the last complete interval.
+    static class Snapshot {
+        final Map<String, Rates> shards;
+        final List<HotKey> hotKeys;
+
+        Snapshot(Map<String, Rates> shards, List<HotKey> hotKeys) {
+            this.shards = shards;
+            this.hotKeys = hotKeys;
+        }
+    }
+
+    // The Space-Saving top-k sketch of Metwally et al. It monitors at most capacity keys. A new key replaces the key
+    // with the lowest count and inherits that count as its error, so every key with more than total / capacity
+    // occurrences is monitored. The counters are kept in the Stream-Summary of the paper, a list of buckets of equal
+    // counts in ascending order. Every key is offered with the same weight, so a counter moves to the next bucket or
+    // to a new one right after its own, and offering a key takes constant time.
+    private static class SpaceSaving {
+        private final int capacity;
+        private final long weight;
+        private final Map<String, Counter> counters;
+        private Bucket lowest;
+
+        SpaceSaving(int capacity, long weight) {
+            this.capacity = capacity;
+            this.weight = weight;
+            counters = new HashMap<>(capacity * 2);
+        }
+
+        synchronized void offer(String id) {
+            final Counter counter = counters.get(id);
+            if (counter != null) {
+                increment(counter);
+            } else if (counters.size() < capacity) {
+                if (lowest == null || lowest.count != weight) {
+                    final Bucket bucket = new Bucket(weight);
+                    bucket.next = lowest;
+                    if (lowest != null) {
+                        lowest.previous = bucket;
+                    }
+                    lowest = bucket;
+                }
+                add(new Counter(id, 0), lowest);
+            } else {
+                final Counter min = lowest.counters.iterator().next();
+                lowest.counters.remove(min);
+                counters.remove(min.id);
+                final Counter replacement = new Counter(id, lowest.count);
+                add(replacement, lowest);
+                increment(replacement);
+            }
+        }
+
+        private void add(Counter counter, Bucket bucket) {
+            counter.bucket = bucket;
+            bucket.counters.add(counter);
+            counters.put(counter.id, counter);
+        }
+
+        private void increment(Counter counter) {
+            final Bucket bucket = counter.bucket;
+            Bucket next = bucket.next;
+            if (next == null || next.count != bucket.count + weight) {
+                next = new Bucket(bucket.count + weight);
+                next.previous = bucket;
+                next.next = bucket.next;
+                if (bucket.next != null) {
+                    bucket.next.previous = next;
+                }
+                bucket.next = next;
+            }
+            bucket.counters.remove(counter);
+            next.counters.add(counter);
+            counter.bucket = next;
+            if (bucket.counters.isEmpty()) {
+                remove(bucket);
+            }
+        }
+
+        private void remove(Bucket bucket) {
+            if (bucket.previous == null) {
+                lowest = bucket.next;
+            } else {
+                bucket.previous.next = bucket.next;
+            }
+            if (bucket.next != null) {
+                bucket.next.previous = bucket.previous;
+            }
+        }
+
+        synchronized List<Counter> top(int k) {
+            final List<Counter> top = new ArrayList<>(counters.values());
+            top.sort(Comparator.comparingLong(Counter::count).reversed());
+            return top.subList(0, Math.min(k, top.size()));
+        }
+
+        private static class Bucket {
+            final long count;
+            final Set<Counter> counters = new LinkedHashSet<>();
+            Bucket previous;
+            Bucket next;
+
+            Bucket(long count) {
+                this.count = count;
+            }
+        }
+
+        private static class Counter {
+            final String id;
+            final long error;
+            Bucket bucket;
+
+            Counter(String id, long error) {
+                this.id = id;
+                this.error = error;
+            }
+
+            long count() {
+                return bucket.count;
+            }
+        }
+    }
+
+    static class Id extends AbstractExtensionId<EntityStats> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public EntityStats createExtension(ExtendedActorSystem system) {
+            return new EntityStats(system);
+        }
+    }
+}
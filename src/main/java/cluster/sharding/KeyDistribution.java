@@ -0,0 +1,139 @@
+package cluster.sharding;
+
+import com.typesafe.config.Config;
+
+import java.util.Random;
+import java.util.concurrent.ThreadLocalRandom;
+
+abstract class KeyDistribution {
+    final int from;
+    final int to;
+
+    private KeyDistribution(int from, int to) {
+        if (to < from) {
+            throw new IllegalArgumentException(String.format("Invalid key range %d to %d", from, to));
+        }
+        this.from = from;
+        this.to = to;
+    }
+
+    static KeyDistribution create(Config config) {
+        final int from = config.getInt("from");
+        final int to = config.getInt("to");
+        final String distribution = config.getString("distribution");
+        switch (distribution) {
+            case "uniform":
+                return new Uniform(from, to);
+            case "zipfian":
+                return new Zipfian(from, to, config.getDouble("zipfian-exponent"));
+            case "hot-key":
+                return new HotKey(from, to, config.getDouble("hot-key-fraction"), config.getDouble("hot-key-traffic"));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown key distribution '%s'", distribution));
+        }
+    }
+
+    Entity.Id entityId() {
+        return entityId(ThreadLocalRandom.current());
+    }
+
+    // A seeded random gives a repeatable sequence of ids.
+    Entity.Id entityId(Random random) {
+        return Entity.Id.of(String.valueOf(from + nextOffset(random)));
+    }
+
+    int size() {
+        return to - from + 1;
+    }
+
+    abstract int nextOffset(Random random);
+
+    private static class Uniform extends KeyDistribution {
+        Uniform(int from, int to) {
+            super(from, to);
+        }
+
+        @Override
+        int nextOffset(Random random) {
+            return random.nextInt(size());
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d-%d]", getClass().getSimpleName(), from, to);
+        }
+    }
+
+    // Zipfian ranks using the rejection-free method of Gray et al., "Quickly Generating Billion-Record Synthetic Databases".
+    // The lowest keys in the range are the most popular.
+    private static class Zipfian extends KeyDistribution {
+        private final double exponent;
+        private final double zetaN;
+        private final double alpha;
+        private final double eta;
+
+        Zipfian(int from, int to, double exponent) {
+            super(from, to);
+            if (exponent <= 0.0 || exponent == 1.0) {
+                throw new IllegalArgumentException(String.format("Zipfian exponent must be positive and not 1, was %f", exponent));
+            }
+            this.exponent = exponent;
+            zetaN = zeta(size(), exponent);
+            alpha = 1.0 / (1.0 - exponent);
+            eta = (1.0 - Math.pow(2.0 / size(), 1.0 - exponent)) / (1.0 - zeta(2, exponent) / zetaN);
+        }
+
+        @Override
+        int nextOffset(Random random) {
+            final double u = random.nextDouble();
+            final double uz = u * zetaN;
+            if (uz < 1.0) {
+                return 0;
+            }
+            if (uz < 1.0 + Math.pow(0.5, exponent)) {
+                return Math.min(1, size() - 1);
+            }
+            return Math.min((int) (size() * Math.pow(eta * u - eta + 1.0, alpha)), size() - 1);
+        }
+
+        private static double zeta(int n, double exponent) {
+            double sum = 0.0;
+            for (int i = 1; i <= n; i++) {
+                sum += 1.0 / Math.pow(i, exponent);
+            }
+            return sum;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d-%d, exponent %.2f]", getClass().getSimpleName(), from, to, exponent);
+        }
+    }
+
+    // A small set of hot keys, the lowest keys in the range, receives a fixed share of the traffic.
+    private static class HotKey extends KeyDistribution {
+        private final int hotKeys;
+        private final double hotTraffic;
+
+        HotKey(int from, int to, double hotKeyFraction, double hotTraffic) {
+            super(from, to);
+            hotKeys = Math.max(1, (int) (size() * hotKeyFraction));
+            this.hotTraffic = hotTraffic;
+        }
+
+        @Override
+        int nextOffset(Random random) {
+            if (hotKeys >= size()) {
+                return random.nextInt(size());
+            }
+            return random.nextDouble() < hotTraffic
+                    ? random.nextInt(hotKeys)
+                    : hotKeys + random.nextInt(size() - hotKeys);
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%d-%d, %d hot keys, %.0f%% of traffic]", getClass().getSimpleName(), from, to, hotKeys, hotTraffic * 100);
+        }
+    }
+}
@@ -0,0 +1,139 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+import java.time.Duration;
+import java.util.EnumMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Per node round trip latency histograms. The load generators record the time from sending a request to receiving
+// its ack, both measured on the sending node. Persistent entities record the time from start to completed recovery.
+// Query caches record the delay from an entity change to its invalidation, using wall clock time across nodes.
+// Every publish interval the recorded values are logged and kept as the latest interval histogram and added to a
+// cumulative histogram.
+class Latencies implements Extension {
+    private static final long highestTrackableNanos = TimeUnit.MINUTES.toNanos(1);
+    private static final int significantDigits = 3;
+
+    private final LoggingAdapter log;
+    private final Map<Outcome, Recorder> recorders = new EnumMap<>(Outcome.class);
+    private final Map<Outcome, Histogram> intervals = new EnumMap<>(Outcome.class);
+    private final Map<Outcome, Histogram> cumulatives = new EnumMap<>(Outcome.class);
+    private final Cancellable publisher;
+
+    private Latencies(ExtendedActorSystem system) {
+        log = Logging.getLogger(system, getClass());
+        for (Outcome outcome : Outcome.values()) {
+            final Recorder recorder = new Recorder(highestTrackableNanos, significantDigits);
+            recorders.put(outcome, recorder);
+            intervals.put(outcome, recorder.getIntervalHistogram());
+            cumulatives.put(outcome, new Histogram(highestTrackableNanos, significantDigits));
+        }
+        final Config config = system.settings().config().getConfig("entity-latency");
+        final Duration publishInterval = config.getDuration("publish-interval");
+        publisher = system.scheduler().schedule(publishInterval, publishInterval, this::publish, system.dispatcher());
+        system.registerOnTermination(publisher::cancel);
+    }
+
+    static Latencies get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    void record(Outcome outcome, long nanos) {
+        recorders.get(outcome).recordValue(Math.min(Math.max(nanos, 0), highestTrackableNanos));
+    }
+
+    private synchronized void publish() {
+        for (Outcome outcome : Outcome.values()) {
+            final Histogram interval = recorders.get(outcome).getIntervalHistogram(intervals.get(outcome));
+            intervals.put(outcome, interval);
+            cumulatives.get(outcome).add(interval);
+            if (interval.getTotalCount() > 0) {
+                log.info("{} {}", outcome, summary(interval));
+            }
+        }
+    }
+
+    // A copy of the cumulative histogram, which includes the values up to the last publish interval.
+    synchronized Histogram cumulative(Outcome outcome) {
+        return cumulatives.get(outcome).copy();
+    }
+
+    synchronized String toJson() {
+        final StringBuilder json = new StringBuilder("{");
+        for (Outcome outcome : Outcome.values()) {
+            if (json.length() > 1) {
+                json.append(", ");
+            }
+            json.append(String.format("\"%s\": {\"interval\": %s, \"cumulative\": %s}",
+                    outcome.label, toJson(intervals.get(outcome)), toJson(cumulatives.get(outcome))));
+        }
+        return json.append("}").toString();
+    }
+
+    private static String summary(Histogram histogram) {
+        return String.format("count %d, p50 %.3fms, p99 %.3fms, p99.9 %.3fms, max %.3fms",
+                histogram.getTotalCount(),
+                millis(histogram.getValueAtPercentile(50.0)),
+                millis(histogram.getValueAtPercentile(99.0)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    private static String toJson(Histogram histogram) {
+        return String.format(Locale.ROOT, "{\"count\": %d, \"p50-ms\": %.3f, \"p99-ms\": %.3f, \"p99.9-ms\": %.3f, \"max-ms\": %.3f}",
+                histogram.getTotalCount(),
+                millis(histogram.getValueAtPercentile(50.0)),
+                millis(histogram.getValueAtPercentile(99.0)),
+                millis(histogram.getValueAtPercentile(99.9)),
+                millis(histogram.getMaxValue()));
+    }
+
+    private static double millis(long nanos) {
+        return nanos / 1000000.0;
+    }
+
+    enum Outcome {
+        INIT("init"), UPDATE("update"), QUERY_HIT("query-hit"), QUERY_MISS("query-miss"), RECOVERY("recovery"), INVALIDATION("invalidation-delay"), MULTI_QUERY("multi-query"), INGEST("ingest"), HTTP("http"), CUMULATIVE_ACK("cumulative-ack");
+
+        final String label;
+
+        Outcome(String label) {
+            this.label = label;
+        }
+
+        @Override
+        public String toString() {
+            return label;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<Latencies> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public Latencies createExtension(ExtendedActorSystem system) {
+            return new Latencies(system);
+        }
+    }
+}
@@ -0,0 +1,24 @@
+package cluster.sharding;
+
+import akka.actor.ExtendedActorSystem;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+
+public class LatencyRoutes extends AllDirectives implements ManagementRouteProvider {
+    private final Latencies latencies;
+
+    public LatencyRoutes(ExtendedActorSystem system) {
+        latencies = Latencies.get(system);
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return path("latency", () ->
+                get(() -> complete(StatusCodes.OK, HttpEntities.create(ContentTypes.APPLICATION_JSON, latencies.toJson()))));
+    }
+}
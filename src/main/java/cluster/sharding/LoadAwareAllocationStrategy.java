@@ -0,0 +1,163 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ShardCoordinator;
+import akka.dispatch.Futures;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.collection.immutable.IndexedSeq;
+import scala.concurrent.Future;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Allocates shards to the region with the lowest load and moves hot shards away from the most loaded region.
+// The load of a region combines the load of its node, 1 - capacity from the cluster metrics, with its share of the
+// cluster wide shard message rate. A rebalance starts only when the load of the most and the least loaded region
+// differ by more than rebalance-threshold, and a moved shard is not moved again within shard-cooldown.
+// Without any traffic the strategy falls back to balancing the number of shards. Each entity type has its own
+// strategy, which only reads the rates of the shards of its type.
+class LoadAwareAllocationStrategy extends ShardCoordinator.AbstractShardAllocationStrategy {
+    private final String entityType;
+    private final ShardLoad shardLoad;
+    private final LoggingAdapter log;
+    private final Address selfAddress;
+    private final double nodeLoadWeight;
+    private final double trafficWeight;
+    private final double rebalanceThreshold;
+    private final long shardCooldownNanos;
+    private final int maxSimultaneousRebalance;
+    private final Map<String, Long> lastMoves = new HashMap<>();
+
+    LoadAwareAllocationStrategy(ActorSystem actorSystem, String entityType) {
+        this.entityType = entityType;
+        shardLoad = ShardLoad.get(actorSystem);
+        log = Logging.getLogger(actorSystem, getClass());
+        selfAddress = Cluster.get(actorSystem).selfAddress();
+        final Config config = actorSystem.settings().config().getConfig("entity-shard-allocation");
+        nodeLoadWeight = config.getDouble("node-load-weight");
+        trafficWeight = config.getDouble("traffic-weight");
+        rebalanceThreshold = config.getDouble("rebalance-threshold");
+        shardCooldownNanos = config.getDuration("shard-cooldown").toNanos();
+        maxSimultaneousRebalance = config.getInt("max-simultaneous-rebalance");
+    }
+
+    @Override
+    public Future<ActorRef> allocateShard(ActorRef requester, String shardId, Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        final List<RegionLoad> regionLoads = regionLoads(currentShardAllocations);
+        return Futures.successful(Collections.min(regionLoads, byLoad).region);
+    }
+
+    @Override
+    public Future<Set<String>> rebalance(Map<ActorRef, IndexedSeq<String>> currentShardAllocations, Set<String> rebalanceInProgress) {
+        final Set<String> rebalance = new HashSet<>();
+        if (!rebalanceInProgress.isEmpty() || currentShardAllocations.size() < 2) {
+            return Futures.successful(rebalance);
+        }
+        final List<RegionLoad> regionLoads = regionLoads(currentShardAllocations);
+        final RegionLoad most = Collections.max(regionLoads, byLoad);
+        final RegionLoad least = Collections.min(regionLoads, byLoad);
+        final double gap = most.load - least.load;
+        if (gap > rebalanceThreshold) {
+            final long now = System.nanoTime();
+            lastMoves.values().removeIf(lastMove -> now - lastMove > shardCooldownNanos);
+            // Move the hottest shards that do not overshoot, so the least loaded region does not become the most loaded.
+            // Shards below the average load of the region are not worth moving.
+            final Map<String, Double> rates = shardRates(currentShardAllocations);
+            final double totalRate = totalRate(rates);
+            final int totalShards = currentShardAllocations.values().stream().mapToInt(IndexedSeq::size).sum();
+            final Map<String, Double> shardLoads = new HashMap<>();
+            most.shards.forEach(shardId -> shardLoads.put(shardId, totalRate == 0
+                    ? trafficWeight / totalShards
+                    : trafficWeight * rates.getOrDefault(shardId, 0.0) / totalRate));
+            final double averageShardLoad = shardLoads.values().stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
+            final List<String> candidates = new ArrayList<>(most.shards);
+            candidates.sort(Comparator.comparingDouble(shardId -> -shardLoads.get(shardId)));
+            double remainingGap = gap;
+            for (String shardId : candidates) {
+                final double shardLoad = shardLoads.get(shardId);
+                if (rebalance.size() >= maxSimultaneousRebalance || shardLoad < averageShardLoad) {
+                    break;
+                }
+                if (!lastMoves.containsKey(shardId) && 2 * shardLoad <= remainingGap) {
+                    rebalance.add(shardId);
+                    lastMoves.put(shardId, now);
+                    remainingGap -= 2 * shardLoad;
+                }
+            }
+            if (!rebalance.isEmpty()) {
+                log.info(String.format("Rebalance shards %s from %s (load %.2f) toward %s (load %.2f)", rebalance,
+                        address(most.region), most.load, address(least.region), least.load));
+            }
+        }
+        return Futures.successful(rebalance);
+    }
+
+    private List<RegionLoad> regionLoads(Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        final Map<String, Double> rates = shardRates(currentShardAllocations);
+        final double totalRate = totalRate(rates);
+        final int totalShards = currentShardAllocations.values().stream().mapToInt(IndexedSeq::size).sum();
+        final Map<Address, Double> nodeCapacities = shardLoad.nodeCapacities();
+        final List<RegionLoad> regionLoads = new ArrayList<>(currentShardAllocations.size());
+        currentShardAllocations.forEach((region, shardIds) -> {
+            final List<String> shards = JavaConverters.seqAsJavaListConverter(shardIds).asJava();
+            final double nodeLoad = 1.0 - nodeCapacities.getOrDefault(address(region), 1.0);
+            final double share = totalRate == 0
+                    ? (totalShards == 0 ? 0.0 : (double) shards.size() / totalShards)
+                    : shards.stream().mapToDouble(shardId -> rates.getOrDefault(shardId, 0.0)).sum() / totalRate;
+            regionLoads.add(new RegionLoad(region, shards, nodeLoadWeight * nodeLoad + trafficWeight * share));
+        });
+        return regionLoads;
+    }
+
+    // The rates of the allocated shards of this entity type by shard id. The published rates of the other entity
+    // types are keyed by type prefixed shard ids.
+    private Map<String, Double> shardRates(Map<ActorRef, IndexedSeq<String>> currentShardAllocations) {
+        final Map<String, Long> shardRates = shardLoad.shardRates();
+        final Map<String, Double> rates = new HashMap<>();
+        currentShardAllocations.values().forEach(shardIds -> JavaConverters.seqAsJavaListConverter(shardIds).asJava().forEach(shardId -> {
+            final Long rate = shardRates.get(EntityMessage.shardId(entityType, shardId));
+            if (rate != null) {
+                rates.put(shardId, rate.doubleValue());
+            }
+        }));
+        return rates;
+    }
+
+    private static double totalRate(Map<String, Double> rates) {
+        return rates.values().stream().mapToDouble(Double::doubleValue).sum();
+    }
+
+    private Address address(ActorRef region) {
+        final Address address = region.path().address();
+        return address.hasGlobalScope() ? address : selfAddress;
+    }
+
+    // Ties go to the region with fewer shards.
+    private static final Comparator<RegionLoad> byLoad = Comparator
+            .<RegionLoad>comparingDouble(regionLoad -> regionLoad.load)
+            .thenComparingInt(regionLoad -> regionLoad.shards.size());
+
+    private static class RegionLoad {
+        final ActorRef region;
+        final List<String> shards;
+        final double load;
+
+        RegionLoad(ActorRef region, List<String> shards, double load) {
+            this.region = region;
+            this.shards = shards;
+            this.load = load;
+        }
+    }
+}
@@ -0,0 +1,158 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.function.LongConsumer;
+
+// Tracks the requests of one load generating actor: which are in flight, when the next ones are due, and
+// which have timed out. Requests are correlated by id, so acks may arrive in any order.
+class LoadGenerator {
+    final Duration tickInterval;
+    final Duration reportInterval;
+    final KeyDistribution keyDistribution;
+    private final int maxOutstanding;
+    private final double rate;
+    private final long responseTimeoutNanos;
+    private final Map<Long, Long> outstanding = new LinkedHashMap<>();
+    private long startTime;
+    private long nextId;
+    private long scheduled;
+    private long sent;
+    private long acked;
+    private long late;
+    private long timedOut;
+    private long skipped;
+    private boolean draining;
+    private ActorRef drainRequester;
+    private long drainOutstanding;
+    private long drainAcked;
+    private long drainTimedOut;
+
+    LoadGenerator(Config config) {
+        tickInterval = config.getDuration("tick-interval");
+        reportInterval = config.getDuration("report-interval");
+        keyDistribution = KeyDistribution.create(config.getConfig("keys"));
+        maxOutstanding = config.getInt("max-outstanding");
+        rate = config.getDouble("rate");
+        responseTimeoutNanos = config.getDuration("response-timeout").toNanos();
+    }
+
+    void start(long now) {
+        startTime = now;
+    }
+
+    boolean isClosedLoop() {
+        return rate <= 0.0;
+    }
+
+    // Closed loop: fill the window. Open loop: the number of requests whose arrival time has passed. Arrivals that
+    // find the window full are skipped rather than queued, so a slow cluster does not get a burst when it recovers.
+    int due(long now) {
+        if (draining) {
+            return 0;
+        }
+        final int available = maxOutstanding - outstanding.size();
+        if (isClosedLoop()) {
+            return available;
+        }
+        final long arrivals = (long) ((now - startTime) / 1e9 * rate) - scheduled;
+        scheduled += arrivals;
+        if (arrivals > available) {
+            skipped += arrivals - available;
+            return available;
+        }
+        return (int) arrivals;
+    }
+
+    // Due requests that could not be sent, counted as skipped.
+    void skip(int count) {
+        skipped += count;
+    }
+
+    long sent(long now) {
+        final long id = ++nextId;
+        outstanding.put(id, now);
+        sent++;
+        return id;
+    }
+
+    // Returns the send time of the request or -1 when the ack is late or unknown.
+    long acked(long id) {
+        final Long sendTime = outstanding.remove(id);
+        if (sendTime == null) {
+            late++;
+            return -1;
+        }
+        acked++;
+        return sendTime;
+    }
+
+    void expire(long now, LongConsumer timedOutId) {
+        final Iterator<Map.Entry<Long, Long>> iterator = outstanding.entrySet().iterator();
+        while (iterator.hasNext()) {
+            final Map.Entry<Long, Long> request = iterator.next();
+            if (now - request.getValue() < responseTimeoutNanos) {
+                return;
+            }
+            iterator.remove();
+            timedOut++;
+            timedOutId.accept(request.getKey());
+        }
+    }
+
+    // Stops new requests. The requester gets a Drained reply once no request is in flight, the in-flight requests
+    // are acked or time out.
+    void drain(ActorRef requester, ActorRef self) {
+        draining = true;
+        drainRequester = requester;
+        drainOutstanding = outstanding.size();
+        drainAcked = acked;
+        drainTimedOut = timedOut;
+        drained(self);
+    }
+
+    // Called after acks and expiry, replies once when the drain is complete.
+    void drained(ActorRef self) {
+        if (drainRequester != null && outstanding.isEmpty()) {
+            drainRequester.tell(new Drained(self.path().name(), drainOutstanding, acked - drainAcked, timedOut - drainTimedOut), self);
+            drainRequester = null;
+        }
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[sent %d, acked %d, late %d, timed out %d, skipped %d, outstanding %d]",
+                getClass().getSimpleName(), sent, acked, late, timedOut, skipped, outstanding.size());
+    }
+
+    static class Drain {
+        static final Drain instance = new Drain();
+
+        private Drain() {
+        }
+    }
+
+    static class Drained {
+        final String generator;
+        final long inFlight;
+        final long acked;
+        final long timedOut;
+
+        Drained(String generator, long inFlight, long acked, long timedOut) {
+            this.generator = generator;
+            this.inFlight = inFlight;
+            this.acked = acked;
+            this.timedOut = timedOut;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s[%s, in flight %d, acked %d, timed out %d]", getClass().getSimpleName(), generator, inFlight, acked, timedOut);
+        }
+    }
+}
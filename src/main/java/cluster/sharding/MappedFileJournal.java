@@ -0,0 +1,328 @@
+package cluster.sharding;
+
+import akka.dispatch.ExecutionContexts;
+import akka.dispatch.Futures;
+import akka.persistence.AtomicWrite;
+import akka.persistence.PersistentRepr;
+import akka.persistence.journal.japi.AsyncWriteJournal;
+import akka.serialization.Serialization;
+import akka.serialization.SerializationExtension;
+import com.typesafe.config.Config;
+import scala.collection.JavaConverters;
+import scala.concurrent.ExecutionContextExecutorService;
+import scala.concurrent.Future;
+import scala.concurrent.Promise;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.zip.CRC32;
+
+// An append-only journal stored in memory-mapped segment files, one directory per node.
+// Each record is [length][crc32][type][persistence id][sequence number][payload]. A zero length marks the end of the
+// written data, a record with a bad checksum is treated as a torn write and ends recovery of the segment.
+// All file access runs on one thread. Writes are forced to disk when that thread runs out of queued tasks of any kind,
+// or after max-fsync-batch writes, so concurrent persists share an fsync.
+public class MappedFileJournal extends AsyncWriteJournal {
+    private static final byte recordEvent = 1;
+    private static final byte recordDelete = 2;
+    private static final int recordHeaderSize = 4 + 4;
+
+    private final File dir;
+    private final int segmentSize;
+    private final int maxFsyncBatch;
+    private final Serialization serialization = SerializationExtension.get(context().system());
+    private final ThreadPoolExecutor io = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new LinkedBlockingQueue<>()) {
+        // Replays, reads and deletes queued behind a write would otherwise leave it unforced until the next write.
+        @Override
+        protected void afterExecute(Runnable task, Throwable t) {
+            if (!unforced.isEmpty() && getQueue().isEmpty()) {
+                try {
+                    force();
+                } catch (Exception e) {
+                    failUnforced(e);
+                }
+            }
+        }
+    };
+    private final ExecutionContextExecutorService ioContext = ExecutionContexts.fromExecutorService(io);
+    private final Map<String, Index> indexes = new HashMap<>();
+    private final List<MappedByteBuffer> segments = new ArrayList<>();
+    private final List<Promise<Iterable<Optional<Exception>>>> unforced = new ArrayList<>();
+    private final List<Iterable<Optional<Exception>>> unforcedResults = new ArrayList<>();
+    private FileChannel lockChannel;
+    private FileLock lock;
+
+    public MappedFileJournal(Config config) {
+        dir = new File(config.getString("dir"));
+        segmentSize = (int) Math.min(Integer.MAX_VALUE, config.getBytes("segment-size"));
+        maxFsyncBatch = config.getInt("max-fsync-batch");
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        super.preStart();
+        if (!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException(String.format("Unable to create journal directory %s", dir));
+        }
+        lockChannel = FileChannel.open(new File(dir, "journal.lock").toPath(), StandardOpenOption.CREATE, StandardOpenOption.WRITE);
+        lock = lockChannel.tryLock();
+        if (lock == null) {
+            throw new IllegalStateException(String.format("Journal directory %s is in use by another process", dir));
+        }
+        final long start = System.nanoTime();
+        File[] files = dir.listFiles((d, name) -> name.startsWith("segment-") && name.endsWith(".journal"));
+        if (files == null) {
+            files = new File[0];
+        }
+        Arrays.sort(files);
+        for (File file : files) {
+            recover(map(file));
+        }
+        if (segments.isEmpty()) {
+            segments.add(map(segmentFile(0)));
+        }
+        context().system().log().info("Journal {} recovered {} segments, {} persistence ids in {}ms",
+                dir, segments.size(), indexes.size(), TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+    }
+
+    @Override
+    public void postStop() throws Exception {
+        io.shutdown();
+        io.awaitTermination(10, TimeUnit.SECONDS);
+        segments.forEach(MappedByteBuffer::force);
+        if (lock != null) {
+            lock.release();
+            lockChannel.close();
+        }
+        super.postStop();
+    }
+
+    @Override
+    public Future<Iterable<Optional<Exception>>> doAsyncWriteMessages(Iterable<AtomicWrite> messages) {
+        final Promise<Iterable<Optional<Exception>>> promise = Futures.promise();
+        io.execute(() -> {
+            try {
+                final List<Optional<Exception>> results = new ArrayList<>();
+                for (AtomicWrite atomicWrite : messages) {
+                    results.add(write(atomicWrite));
+                }
+                unforced.add(promise);
+                unforcedResults.add(results);
+                if (unforced.size() >= maxFsyncBatch) {
+                    force();
+                }
+            } catch (Exception e) {
+                promise.tryFailure(e);
+                failUnforced(e);
+            }
+        });
+        return promise.future();
+    }
+
+    @Override
+    public Future<Void> doAsyncDeleteMessagesTo(String persistenceId, long toSequenceNr) {
+        return Futures.future(() -> {
+            final Index index = indexes.get(persistenceId);
+            if (index != null) {
+                final long deletedTo = Math.min(toSequenceNr, index.highestSequenceNr);
+                append(recordDelete, persistenceId, deletedTo, new byte[0]);
+                force();
+                index.deletedTo = Math.max(index.deletedTo, deletedTo);
+            }
+            return null;
+        }, ioContext);
+    }
+
+    @Override
+    public Future<Void> doAsyncReplayMessages(String persistenceId, long fromSequenceNr, long toSequenceNr, long max, Consumer<PersistentRepr> replayCallback) {
+        return Futures.future(() -> {
+            final Index index = indexes.get(persistenceId);
+            if (index == null) {
+                return null;
+            }
+            long replayed = 0;
+            for (int i = index.first(Math.max(fromSequenceNr, index.deletedTo + 1)); i < index.size && replayed < max; i++) {
+                if (index.sequenceNrs[i] > toSequenceNr) {
+                    break;
+                }
+                replayCallback.accept(read(index.positions[i]));
+                replayed++;
+            }
+            return null;
+        }, ioContext);
+    }
+
+    @Override
+    public Future<Long> doAsyncReadHighestSequenceNr(String persistenceId, long fromSequenceNr) {
+        return Futures.future(() -> {
+            final Index index = indexes.get(persistenceId);
+            return index == null ? 0L : index.highestSequenceNr;
+        }, ioContext);
+    }
+
+    private Optional<Exception> write(AtomicWrite atomicWrite) {
+        final List<PersistentRepr> reprs = JavaConverters.seqAsJavaListConverter(atomicWrite.payload()).asJava();
+        final List<byte[]> payloads = new ArrayList<>(reprs.size());
+        try {
+            for (PersistentRepr repr : reprs) {
+                payloads.add(serialization.serializerFor(PersistentRepr.class).toBinary(repr));
+            }
+        } catch (Exception e) {
+            return Optional.of(e);
+        }
+        for (int i = 0; i < reprs.size(); i++) {
+            append(recordEvent, atomicWrite.persistenceId(), reprs.get(i).sequenceNr(), payloads.get(i));
+        }
+        return Optional.empty();
+    }
+
+    private void append(byte type, String persistenceId, long sequenceNr, byte[] payload) {
+        final byte[] id = persistenceId.getBytes(StandardCharsets.UTF_8);
+        final int length = 1 + 2 + id.length + 8 + payload.length;
+        if (recordHeaderSize + length + 4 > segmentSize) {
+            throw new IllegalArgumentException(String.format("Journal record of %d bytes does not fit in a segment", length));
+        }
+        MappedByteBuffer segment = current();
+        if (segment.remaining() < recordHeaderSize + length + 4) {
+            segment.force();
+            segment = map(segmentFile(segments.size()));
+            segments.add(segment);
+        }
+        final int position = segment.position();
+        segment.position(position + recordHeaderSize);
+        segment.put(type).putShort((short) id.length).put(id).putLong(sequenceNr).put(payload);
+        final CRC32 crc = new CRC32();
+        final ByteBuffer body = segment.duplicate();
+        body.position(position + recordHeaderSize).limit(position + recordHeaderSize + length);
+        crc.update(body);
+        segment.putInt(position + 4, (int) crc.getValue());
+        segment.putInt(position, length);
+        if (type == recordEvent) {
+            index(persistenceId).add(sequenceNr, ((long) (segments.size() - 1) << 32) | position);
+        }
+    }
+
+    private PersistentRepr read(long position) {
+        final ByteBuffer record = segments.get((int) (position >>> 32)).duplicate();
+        record.position((int) position);
+        final int length = record.getInt();
+        record.position(record.position() + 4 + 1);
+        final int idLength = record.getShort();
+        record.position(record.position() + idLength + 8);
+        final byte[] payload = new byte[length - (record.position() - (int) position - recordHeaderSize)];
+        record.get(payload);
+        return serialization.deserialize(payload, PersistentRepr.class).get();
+    }
+
+    private void recover(MappedByteBuffer segment) {
+        final int segmentIndex = segments.size();
+        segments.add(segment);
+        final CRC32 crc = new CRC32();
+        while (segment.remaining() >= recordHeaderSize) {
+            final int position = segment.position();
+            final int length = segment.getInt();
+            final int checksum = segment.getInt();
+            if (length <= 0 || length > segment.remaining()) {
+                segment.position(position);
+                break;
+            }
+            final ByteBuffer body = segment.duplicate();
+            body.limit(position + recordHeaderSize + length);
+            crc.reset();
+            crc.update(body);
+            if ((int) crc.getValue() != checksum) {
+                context().system().log().warning("Journal {} segment {} has a torn record at {}, ignoring the rest of the segment", dir, segmentIndex, position);
+                segment.position(position);
+                break;
+            }
+            final byte type = segment.get();
+            final byte[] id = new byte[segment.getShort()];
+            segment.get(id);
+            final long sequenceNr = segment.getLong();
+            final Index index = index(new String(id, StandardCharsets.UTF_8));
+            if (type == recordEvent) {
+                index.add(sequenceNr, ((long) segmentIndex << 32) | position);
+            } else if (type == recordDelete) {
+                index.deletedTo = Math.max(index.deletedTo, sequenceNr);
+            }
+            segment.position(position + recordHeaderSize + length);
+        }
+    }
+
+    private void force() {
+        current().force();
+        for (int i = 0; i < unforced.size(); i++) {
+            unforced.get(i).trySuccess(unforcedResults.get(i));
+        }
+        unforced.clear();
+        unforcedResults.clear();
+    }
+
+    private void failUnforced(Exception e) {
+        unforced.forEach(p -> p.tryFailure(e));
+        unforced.clear();
+        unforcedResults.clear();
+    }
+
+    private MappedByteBuffer current() {
+        return segments.get(segments.size() - 1);
+    }
+
+    private Index index(String persistenceId) {
+        return indexes.computeIfAbsent(persistenceId, id -> new Index());
+    }
+
+    private File segmentFile(int segment) {
+        return new File(dir, String.format("segment-%08d.journal", segment));
+    }
+
+    private MappedByteBuffer map(File file) {
+        try (RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            return randomAccessFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        } catch (IOException e) {
+            throw new IllegalStateException(String.format("Unable to map journal segment %s", file), e);
+        }
+    }
+
+    // Sequence numbers and record positions of one persistence id, in sequence number order.
+    private static class Index {
+        long[] sequenceNrs = new long[8];
+        long[] positions = new long[8];
+        int size;
+        long highestSequenceNr;
+        long deletedTo;
+
+        void add(long sequenceNr, long position) {
+            if (size == sequenceNrs.length) {
+                sequenceNrs = Arrays.copyOf(sequenceNrs, size * 2);
+                positions = Arrays.copyOf(positions, size * 2);
+            }
+            sequenceNrs[size] = sequenceNr;
+            positions[size] = position;
+            size++;
+            highestSequenceNr = Math.max(highestSequenceNr, sequenceNr);
+        }
+
+        int first(long sequenceNr) {
+            final int i = Arrays.binarySearch(sequenceNrs, 0, size, sequenceNr);
+            return i >= 0 ? i : -i - 1;
+        }
+    }
+}
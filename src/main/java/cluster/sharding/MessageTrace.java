@@ -0,0 +1,137 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+
+import java.time.Instant;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+// Per message tracing of the entity hot path, off by default and switchable at runtime.
+// "sampled" logs one in sample-rate messages. "ring" keeps the most recent messages in a lock-free ring buffer that is
+// only formatted when it is dumped. When tracing is off, entities pay for one volatile read per message.
+class MessageTrace implements Extension {
+    private final LoggingAdapter log;
+    private final int sampleRate;
+    private final AtomicReferenceArray<Event> ring;
+    private final int ringMask;
+    private final AtomicLong ringSequence = new AtomicLong();
+    private volatile Mode mode;
+
+    private MessageTrace(ExtendedActorSystem system) {
+        log = Logging.getLogger(system, getClass());
+        final Config config = system.settings().config().getConfig("entity-trace");
+        sampleRate = config.getInt("sample-rate");
+        final int ringSize = Integer.highestOneBit(Math.max(1, config.getInt("ring-size") - 1)) << 1;
+        ring = new AtomicReferenceArray<>(ringSize);
+        ringMask = ringSize - 1;
+        mode = Mode.of(config.getString("mode"));
+    }
+
+    static MessageTrace get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    boolean isEnabled() {
+        return mode != Mode.OFF;
+    }
+
+    Mode mode() {
+        return mode;
+    }
+
+    void mode(Mode mode) {
+        log.info("Message trace mode {} -> {}", this.mode, mode);
+        this.mode = mode;
+    }
+
+    void record(ActorRef entity, Object message, Object reply, ActorRef sender) {
+        switch (mode) {
+            case SAMPLED:
+                if (ThreadLocalRandom.current().nextInt(sampleRate) == 0) {
+                    log.info("{} {} <- {} -> {}", entity.path().name(), message, sender, reply);
+                }
+                break;
+            case RING:
+                final long sequence = ringSequence.getAndIncrement();
+                ring.lazySet((int) (sequence & ringMask), new Event(sequence, System.currentTimeMillis(), entity, message, reply, sender));
+                break;
+            default:
+                break;
+        }
+    }
+
+    // Formats the ring buffer content, oldest first. Slots that are overwritten while dumping may show newer events.
+    String dump() {
+        final StringBuilder dump = new StringBuilder();
+        final long last = ringSequence.get();
+        for (long sequence = Math.max(0, last - ring.length()); sequence < last; sequence++) {
+            final Event event = ring.get((int) (sequence & ringMask));
+            if (event != null) {
+                dump.append(event).append(System.lineSeparator());
+            }
+        }
+        return dump.toString();
+    }
+
+    enum Mode {
+        OFF, SAMPLED, RING;
+
+        static Mode of(String mode) {
+            return valueOf(mode.toUpperCase());
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    private static class Event {
+        final long sequence;
+        final long timestamp;
+        final ActorRef entity;
+        final Object message;
+        final Object reply;
+        final ActorRef sender;
+
+        Event(long sequence, long timestamp, ActorRef entity, Object message, Object reply, ActorRef sender) {
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+            this.entity = entity;
+            this.message = message;
+            this.reply = reply;
+            this.sender = sender;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%d %s %s %s <- %s -> %s", sequence, Instant.ofEpochMilli(timestamp), entity.path().name(), message, sender, reply);
+        }
+    }
+
+    static class Id extends AbstractExtensionId<MessageTrace> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public MessageTrace createExtension(ExtendedActorSystem system) {
+            return new MessageTrace(system);
+        }
+    }
+}
@@ -0,0 +1,220 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+// Splits a MultiQuery by shard, sends one ShardQuery per shard and replies with one MultiQueryAck.
+// The ids of shard queries without an answer after hedge-delay are queried once more, each with a Query of its own
+// that reaches its entity without the shard entity, which may be the slow part. The first answer of each id is used.
+// After timeout the reply carries the answers received so far and lists the other ids as unanswered.
+class MultiQueryActor extends AbstractLoggingActor {
+    private final ActorRef shardRegion;
+    private final EntityMessageExtractor messageExtractor;
+    private final Duration hedgeDelay;
+    private final Duration timeout;
+    private final Map<Long, Gather> gathers = new HashMap<>();
+    private final Map<Long, Part> parts = new HashMap<>();
+    private long gatherId;
+    private long requestId;
+    private long hedged;
+
+    private MultiQueryActor(ActorRef shardRegion, EntityMessageExtractor messageExtractor, Config config) {
+        this.shardRegion = shardRegion;
+        this.messageExtractor = messageExtractor;
+        hedgeDelay = config.getDuration("hedge-delay");
+        timeout = config.getDuration("timeout");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.MultiQuery.class, this::multiQuery)
+                .match(EntityMessage.ShardQueryAck.class, this::shardQueryAck)
+                .match(EntityMessage.QueryAck.class, queryAck -> queryAnswered(queryAck.queryId, queryAck.entity.id, queryAck.entity))
+                .match(EntityMessage.QueryAckNotFound.class, queryAck -> queryAnswered(queryAck.queryId, queryAck.id, null))
+                .match(Hedge.class, this::hedge)
+                .match(GatherTimeout.class, gatherTimeout -> complete(gathers.get(gatherTimeout.gatherId)))
+                .build();
+    }
+
+    private void multiQuery(EntityMessage.MultiQuery multiQuery) {
+        final Gather gather = new Gather(++gatherId, multiQuery, sender());
+        final Map<String, List<Entity.Id>> idsByShard = new LinkedHashMap<>();
+        multiQuery.ids.forEach(id -> idsByShard.computeIfAbsent(messageExtractor.shardId(id), shardId -> new ArrayList<>()).add(id));
+        idsByShard.forEach((shardId, ids) -> {
+            final Part part = new Part(gather, shardId, ids);
+            gather.parts.add(part);
+            send(part);
+        });
+        if (gather.parts.isEmpty()) {
+            complete(gather);
+            return;
+        }
+        gathers.put(gather.gatherId, gather);
+        gather.hedge = scheduleOnce(hedgeDelay, new Hedge(gather.gatherId));
+        gather.timeout = scheduleOnce(timeout, new GatherTimeout(gather.gatherId));
+    }
+
+    private void send(Part part) {
+        parts.put(++requestId, part);
+        part.requestIds.add(requestId);
+        shardRegion.tell(new EntityMessage.ShardQuery(requestId, part.shardId, part.ids), self());
+    }
+
+    private void shardQueryAck(EntityMessage.ShardQueryAck shardQueryAck) {
+        final Part part = parts.get(shardQueryAck.requestId);
+        if (part == null) {
+            log().debug("(late) {}", shardQueryAck);
+            return;
+        }
+        final Gather gather = part.gather;
+        shardQueryAck.found.forEach(entity -> gather.found.put(entity.id, entity));
+        gather.notFound.addAll(shardQueryAck.notFound);
+        answered(part);
+    }
+
+    // The answer of a hedged Query, the part is answered when each of its ids is.
+    private void queryAnswered(long queryId, Entity.Id id, Entity entity) {
+        final Part part = parts.get(queryId);
+        if (part == null) {
+            log().debug("(late) query {} {}", queryId, id);
+            return;
+        }
+        parts.remove(queryId);
+        if (entity == null) {
+            part.gather.notFound.add(id);
+        } else {
+            part.gather.found.put(id, entity);
+        }
+        if (part.unanswered.remove(id) && part.unanswered.isEmpty()) {
+            answered(part);
+        }
+    }
+
+    private void answered(Part part) {
+        part.requestIds.forEach(parts::remove);
+        final Gather gather = part.gather;
+        if (++gather.answeredParts == gather.parts.size()) {
+            complete(gather);
+        }
+    }
+
+    private void hedge(Hedge hedge) {
+        final Gather gather = gathers.get(hedge.gatherId);
+        if (gather != null) {
+            gather.parts.stream()
+                    .filter(part -> parts.containsKey(part.requestIds.get(0)))
+                    .forEach(part -> {
+                        hedged++;
+                        part.ids.forEach(id -> {
+                            parts.put(++requestId, part);
+                            part.requestIds.add(requestId);
+                            shardRegion.tell(new EntityMessage.Query(requestId, id), self());
+                        });
+                    });
+        }
+    }
+
+    private void complete(Gather gather) {
+        if (gather == null) {
+            return;
+        }
+        gathers.remove(gather.gatherId);
+        gather.parts.forEach(part -> part.requestIds.forEach(parts::remove));
+        if (gather.hedge != null) {
+            gather.hedge.cancel();
+            gather.timeout.cancel();
+        }
+        final List<Entity.Id> notFound = new ArrayList<>(gather.notFound);
+        final List<Entity.Id> unanswered = new ArrayList<>();
+        gather.query.ids.stream()
+                .filter(id -> !gather.found.containsKey(id) && !gather.notFound.contains(id))
+                .forEach(unanswered::add);
+        gather.sender.tell(new EntityMessage.MultiQueryAck(gather.query.queryId, gather.query.time,
+                new ArrayList<>(gather.found.values()), notFound, unanswered), self());
+    }
+
+    private Cancellable scheduleOnce(Duration delay, Object message) {
+        return context().system().scheduler().scheduleOnce(delay, self(), message, context().dispatcher(), null);
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start, hedge delay {}, timeout {}", hedgeDelay, timeout);
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop, {} hedged shard queries", hedged);
+        gathers.values().forEach(gather -> {
+            gather.hedge.cancel();
+            gather.timeout.cancel();
+        });
+    }
+
+    static Props props(ActorRef shardRegion, EntityMessageExtractor messageExtractor, Config config) {
+        return Props.create(MultiQueryActor.class, shardRegion, messageExtractor, config);
+    }
+
+    private static class Gather {
+        final long gatherId;
+        final EntityMessage.MultiQuery query;
+        final ActorRef sender;
+        final List<Part> parts = new ArrayList<>();
+        final Map<Entity.Id, Entity> found = new LinkedHashMap<>();
+        final Set<Entity.Id> notFound = new HashSet<>();
+        int answeredParts;
+        Cancellable hedge;
+        Cancellable timeout;
+
+        Gather(long gatherId, EntityMessage.MultiQuery query, ActorRef sender) {
+            this.gatherId = gatherId;
+            this.query = query;
+            this.sender = sender;
+        }
+    }
+
+    // The ids of one shard. The first request id is the shard query, a hedged part has one more per id.
+    private static class Part {
+        final Gather gather;
+        final String shardId;
+        final List<Entity.Id> ids;
+        final Set<Entity.Id> unanswered;
+        final List<Long> requestIds = new ArrayList<>(1);
+
+        Part(Gather gather, String shardId, List<Entity.Id> ids) {
+            this.gather = gather;
+            this.shardId = shardId;
+            this.ids = ids;
+            unanswered = new HashSet<>(ids);
+        }
+    }
+
+    private static class Hedge {
+        final long gatherId;
+
+        Hedge(long gatherId) {
+            this.gatherId = gatherId;
+        }
+    }
+
+    private static class GatherTimeout {
+        final long gatherId;
+
+        GatherTimeout(long gatherId) {
+            this.gatherId = gatherId;
+        }
+    }
+}
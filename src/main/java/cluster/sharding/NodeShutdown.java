@@ -0,0 +1,68 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.serialization.Serialization;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Set;
+
+// The settings of the graceful leave of a node and the shard regions that are handing off their shards, as seen by
+// this node. A region is named by its actor path with uid, so a node that restarts on the same port is a new region.
+// The draining regions are replicated by the NodeShutdownActor of every node, the shard coordinator reads them through
+// the DrainingAllocationStrategy.
+class NodeShutdown implements Extension {
+    final Duration drainTimeout;
+    final int handoffParallelism;
+    final Duration handoffTimeout;
+    final Duration pollInterval;
+    private volatile Set<String> drainingRegions = Collections.emptySet();
+
+    private NodeShutdown(ExtendedActorSystem system) {
+        final Config config = system.settings().config().getConfig("entity-shutdown");
+        drainTimeout = config.getDuration("drain-timeout");
+        handoffParallelism = config.getInt("handoff-parallelism");
+        handoffTimeout = config.getDuration("handoff-timeout");
+        pollInterval = config.getDuration("poll-interval");
+    }
+
+    static NodeShutdown get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    // With a parallelism of 0 the shards are handed off by Akka's graceful shutdown of the region, all at once.
+    boolean isThrottled() {
+        return handoffParallelism > 0;
+    }
+
+    boolean isDraining(ActorRef region) {
+        return drainingRegions.contains(Serialization.serializedActorPath(region));
+    }
+
+    void drainingRegions(Set<String> drainingRegions) {
+        this.drainingRegions = drainingRegions;
+    }
+
+    static class Id extends AbstractExtensionId<NodeShutdown> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public NodeShutdown createExtension(ExtendedActorSystem system) {
+            return new NodeShutdown(system);
+        }
+    }
+}
@@ -0,0 +1,338 @@
+package cluster.sharding;
+
+import akka.Done;
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.DeadLetter;
+import akka.actor.Props;
+import akka.actor.Terminated;
+import akka.cluster.Cluster;
+import akka.cluster.ClusterEvent;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.ORSet;
+import akka.cluster.ddata.ORSetKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.sharding.ShardRegion;
+import akka.serialization.Serialization;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+
+// Runs the graceful leave of this node for the coordinated shutdown tasks of the Runner, and replicates the draining
+// regions of all nodes to the NodeShutdown extension. A draining region is withdrawn once it has stopped, and the
+// regions of members that were removed from the cluster are pruned, in case the withdrawal did not get out.
+// Drain: the local load generators stop sending and wait until their in-flight requests are acked or time out.
+// HandOff: with a handoff-parallelism the regions announce that they drain and the coordinators move their shards a
+// few at a time, otherwise Akka's graceful shutdown of the regions that follows hands off all shards at once.
+// AwaitHandOff: waits for the regions to stop and logs the hand-off time and the dropped messages of every shard.
+// The regions are those of every entity type, shards of other types than entity are named <type>-<shard>.
+// Dropped messages are the entity messages that became dead letters on this node from the drain on.
+class NodeShutdownActor extends AbstractLoggingActor {
+    private static final Key<ORSet<String>> drainingRegionsKey = ORSetKey.create("entity-draining-regions");
+
+    private final List<ActorRef> shardRegions;
+    private final List<ActorRef> loadGenerators;
+    private final NodeShutdown nodeShutdown = NodeShutdown.get(context().system());
+    private final Map<String, EntityMessageExtractor> messageExtractors = new HashMap<>();
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final Set<ActorRef> draining = new HashSet<>();
+    private final Set<ActorRef> running = new HashSet<>();
+    private final Set<ActorRef> listed = new HashSet<>();
+    private final Map<ActorRef, Set<String>> hosted = new HashMap<>();
+    private final Map<String, Shard> shards = new TreeMap<>(Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder()));
+    private final Map<String, Long> dropped = new HashMap<>();
+    private Set<String> drainingRegions = new HashSet<>();
+    private ActorRef drainRequester;
+    private ActorRef handoffRequester;
+    private ActorRef awaitRequester;
+    private long drainStart;
+    private long handoffStart;
+    private boolean stopped;
+    private Cancellable drainTimeout;
+    private Cancellable poller;
+
+    private NodeShutdownActor(List<ActorRef> shardRegions, List<ActorRef> loadGenerators) {
+        this.shardRegions = shardRegions;
+        this.loadGenerators = loadGenerators;
+        shardRegions.forEach(shardRegion -> messageExtractors.put(shardRegion.path().name(),
+                EntityMessage.messageExtractor(context().system().settings().config(), shardRegion.path().name())));
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Replicator.Changed.class, this::changed)
+                .match(Drain.class, d -> drain())
+                .match(LoadGenerator.Drained.class, this::drained)
+                .matchEquals("drain-timeout", t -> drainTimeout())
+                .match(DeadLetter.class, this::deadLetter)
+                .match(HandOff.class, h -> handOff())
+                .match(ShardRegion.CurrentShardRegionState.class, this::currentShardRegionState)
+                .matchEquals("poll", p -> poll())
+                .matchEquals("handoff-timeout", t -> handoffTimeout())
+                .match(AwaitHandOff.class, a -> awaitHandOff())
+                .match(Terminated.class, this::regionStopped)
+                .match(ClusterEvent.MemberRemoved.class, this::memberRemoved)
+                .match(Replicator.UpdateSuccess.class, u -> log().info("Draining regions {}", u.getRequest().orElse("")))
+                .match(Replicator.UpdateFailure.class, f -> log().warning("Draining regions {} failed {}", f.getRequest().orElse(""), f))
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void changed(Replicator.Changed<?> changed) {
+        drainingRegions = ((ORSet<String>) changed.dataValue()).getElements();
+        nodeShutdown.drainingRegions(drainingRegions);
+    }
+
+    private void drain() {
+        drainRequester = sender();
+        drainStart = System.nanoTime();
+        context().system().eventStream().subscribe(self(), DeadLetter.class);
+        draining.addAll(loadGenerators);
+        loadGenerators.forEach(loadGenerator -> loadGenerator.tell(LoadGenerator.Drain.instance, self()));
+        log().info("Drain {} load generators", draining.size());
+        drainTimeout = scheduleOnce(nodeShutdown.drainTimeout, "drain-timeout");
+        drainCompleted();
+    }
+
+    private void drained(LoadGenerator.Drained drained) {
+        draining.remove(sender());
+        log().info("{} in {}ms", drained, millis(drainStart));
+        drainCompleted();
+    }
+
+    private void drainTimeout() {
+        draining.forEach(loadGenerator -> log().warning("Load generator {} not drained in {}", loadGenerator.path().name(), nodeShutdown.drainTimeout));
+        draining.clear();
+        drainCompleted();
+    }
+
+    private void drainCompleted() {
+        if (draining.isEmpty() && drainRequester != null) {
+            drainTimeout.cancel();
+            drainRequester.tell(Done.getInstance(), self());
+            drainRequester = null;
+        }
+    }
+
+    // Entity messages that could not be delivered, to stopped entities or dropped by a full region buffer. The entity
+    // type is the name of the region in the recipient path /system/sharding/<type>/<shard>/<entity>.
+    private void deadLetter(DeadLetter deadLetter) {
+        final List<String> path = new ArrayList<>();
+        deadLetter.recipient().path().getElements().forEach(path::add);
+        final String entityType = path.size() > 2 && path.get(1).equals("sharding") ? path.get(2) : EntityMessage.typeName;
+        final EntityMessageExtractor messageExtractor = messageExtractors.get(entityType);
+        final String shardId = messageExtractor == null ? null : messageExtractor.shardId(deadLetter.message());
+        if (shardId != null) {
+            dropped.merge(EntityMessage.shardId(entityType, shardId), 1L, Long::sum);
+        }
+    }
+
+    private void handOff() {
+        handoffRequester = sender();
+        handoffStart = System.nanoTime();
+        shardRegions.forEach(shardRegion -> {
+            context().watch(shardRegion);
+            running.add(shardRegion);
+        });
+        poll();
+        poller = schedule(nodeShutdown.pollInterval, "poll");
+        if (nodeShutdown.isThrottled()) {
+            log().info("Hand off shards of {} regions, parallelism {}", shardRegions.size(), nodeShutdown.handoffParallelism);
+            replicator.tell(new Replicator.Update<>(drainingRegionsKey, ORSet.create(), new Replicator.WriteAll(nodeShutdown.pollInterval.multipliedBy(10)),
+                    Optional.of("announced"), set -> {
+                        ORSet<String> announced = set;
+                        for (ActorRef shardRegion : shardRegions) {
+                            announced = announced.add(node, Serialization.serializedActorPath(shardRegion));
+                        }
+                        return announced;
+                    }), self());
+            scheduleOnce(nodeShutdown.handoffTimeout, "handoff-timeout");
+        }
+    }
+
+    private void poll() {
+        running.forEach(shardRegion -> shardRegion.tell(ShardRegion.getShardRegionStateInstance(), self()));
+    }
+
+    // The first state of a region lists its shards to hand off, a shard is handed off once it is no longer in its
+    // region. The hand-off is completed when no region hosts a shard.
+    private void currentShardRegionState(ShardRegion.CurrentShardRegionState currentShardRegionState) {
+        final long now = System.nanoTime();
+        final ActorRef shardRegion = sender();
+        final String entityType = shardRegion.path().name();
+        final boolean first = listed.add(shardRegion);
+        final Set<String> regionHosted = new HashSet<>();
+        currentShardRegionState.getShards().forEach(shardState -> {
+            final String shardId = EntityMessage.shardId(entityType, shardState.shardId());
+            regionHosted.add(shardId);
+            if (first) {
+                shards.computeIfAbsent(shardId, id -> new Shard(shardRegion, shardState.getEntityIds().size()));
+            }
+        });
+        hosted.put(shardRegion, regionHosted);
+        shards.forEach((shardId, shard) -> {
+            if (shard.handedOff == 0 && shard.shardRegion.equals(shardRegion) && !regionHosted.contains(shardId)) {
+                shard.handedOff = now;
+            }
+        });
+        if (!nodeShutdown.isThrottled() || listed.size() == shardRegions.size() && hosted.values().stream().allMatch(Set::isEmpty)) {
+            handoffCompleted();
+        }
+    }
+
+    private void handoffTimeout() {
+        if (handoffRequester == null) {
+            return;
+        }
+        log().warning("Shards not handed off in {}, the region hands off the rest at once", nodeShutdown.handoffTimeout);
+        handoffCompleted();
+    }
+
+    private void handoffCompleted() {
+        if (handoffRequester != null) {
+            handoffRequester.tell(Done.getInstance(), self());
+            handoffRequester = null;
+        }
+    }
+
+    private void awaitHandOff() {
+        if (stopped) {
+            sender().tell(Done.getInstance(), self());
+        } else {
+            awaitRequester = sender();
+        }
+    }
+
+    private void regionStopped(Terminated terminated) {
+        final long now = System.nanoTime();
+        final ActorRef shardRegion = terminated.actor();
+        running.remove(shardRegion);
+        shards.values().stream().filter(shard -> shard.handedOff == 0 && shard.shardRegion.equals(shardRegion)).forEach(shard -> shard.handedOff = now);
+        if (nodeShutdown.isThrottled()) {
+            replicator.tell(new Replicator.Update<>(drainingRegionsKey, ORSet.create(), Replicator.writeLocal(),
+                    Optional.of("withdrawn"), set -> set.remove(node, Serialization.serializedActorPath(shardRegion))), self());
+        }
+        if (!running.isEmpty()) {
+            return;
+        }
+        stopped = true;
+        poller.cancel();
+        report(now);
+        handoffCompleted();
+        if (awaitRequester != null) {
+            awaitRequester.tell(Done.getInstance(), self());
+        }
+    }
+
+    private void memberRemoved(ClusterEvent.MemberRemoved memberRemoved) {
+        final String address = memberRemoved.member().address().toString() + "/";
+        if (drainingRegions.stream().anyMatch(region -> region.startsWith(address))) {
+            replicator.tell(new Replicator.Update<>(drainingRegionsKey, ORSet.create(), Replicator.writeLocal(),
+                    Optional.of("pruned of " + memberRemoved.member().address()), set -> prune(set, address)), self());
+        }
+    }
+
+    private ORSet<String> prune(ORSet<String> set, String address) {
+        ORSet<String> pruned = set;
+        for (String region : set.getElements()) {
+            if (region.startsWith(address)) {
+                pruned = pruned.remove(node, region);
+            }
+        }
+        return pruned;
+    }
+
+    private void report(long now) {
+        final int entities = shards.values().stream().mapToInt(shard -> shard.entities).sum();
+        final long droppedTotal = dropped.values().stream().mapToLong(Long::longValue).sum();
+        log().info(String.format("Handed off %d shards with %d entities in %dms, %d messages dropped, drain to stop %dms",
+                shards.size(), entities, TimeUnit.NANOSECONDS.toMillis(now - handoffStart), droppedTotal, millis(drainStart)));
+        shards.forEach((shardId, shard) -> log().info("Shard {} with {} entities handed off in {}ms, {} messages dropped",
+                shardId, shard.entities, TimeUnit.NANOSECONDS.toMillis(shard.handedOff - handoffStart), dropped.getOrDefault(shardId, 0L)));
+        final List<String> droppedElsewhere = new ArrayList<>();
+        dropped.forEach((shardId, count) -> {
+            if (!shards.containsKey(shardId)) {
+                droppedElsewhere.add(shardId + "=" + count);
+            }
+        });
+        if (!droppedElsewhere.isEmpty()) {
+            log().info("Messages dropped for shards of other nodes {}", droppedElsewhere);
+        }
+    }
+
+    private static long millis(long start) {
+        return start == 0 ? 0 : TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+    }
+
+    @Override
+    public void preStart() {
+        replicator.tell(new Replicator.Subscribe<>(drainingRegionsKey, self()), self());
+        Cluster.get(context().system()).subscribe(self(), ClusterEvent.MemberRemoved.class);
+    }
+
+    @Override
+    public void postStop() {
+        Cluster.get(context().system()).unsubscribe(self());
+        if (poller != null) {
+            poller.cancel();
+        }
+    }
+
+    private Cancellable schedule(Duration interval, String message) {
+        return context().system().scheduler().schedule(interval, interval, self(), message, context().dispatcher(), null);
+    }
+
+    private Cancellable scheduleOnce(Duration delay, String message) {
+        return context().system().scheduler().scheduleOnce(delay, self(), message, context().dispatcher(), null);
+    }
+
+    static Props props(List<ActorRef> shardRegions, List<ActorRef> loadGenerators) {
+        return Props.create(NodeShutdownActor.class, shardRegions, loadGenerators);
+    }
+
+    private static class Shard {
+        final ActorRef shardRegion;
+        final int entities;
+        long handedOff;
+
+        Shard(ActorRef shardRegion, int entities) {
+            this.shardRegion = shardRegion;
+            this.entities = entities;
+        }
+    }
+
+    static class Drain {
+        static final Drain instance = new Drain();
+
+        private Drain() {
+        }
+    }
+
+    static class HandOff {
+        static final HandOff instance = new HandOff();
+
+        private HandOff() {
+        }
+    }
+
+    static class AwaitHandOff {
+        static final AwaitHandOff instance = new AwaitHandOff();
+
+        private AwaitHandOff() {
+        }
+    }
+}
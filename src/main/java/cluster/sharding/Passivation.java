@@ -0,0 +1,338 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Cancellable;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import com.typesafe.config.Config;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Decides when entities passivate. Every strategy passivates entities that have been idle for idle-timeout.
+// "lru" and "lfu" also cap the number of active entities per shard, starting an entity in a full shard evicts the
+// least recently or least frequently used entity of that shard. With heap eviction on, a fraction of the entities
+// of every shard is evicted in the same order when the used heap exceeds max-used-fraction.
+class Passivation implements Extension {
+    private final LoggingAdapter log;
+    private final Strategy strategy;
+    private final FiniteDuration idleTimeout;
+    private final int maxActiveEntitiesPerShard;
+    private final double heapMaxUsedFraction;
+    private final double heapEvictFraction;
+    private final Map<String, ShardEntities> shards = new ConcurrentHashMap<>();
+    private final Map<Reason, LongAdder> evictions = new EnumMap<>(Reason.class);
+    private final Map<Reason, Long> reportedEvictions = new EnumMap<>(Reason.class);
+
+    private Passivation(ExtendedActorSystem system) {
+        log = Logging.getLogger(system, getClass());
+        final Config config = system.settings().config().getConfig("entity-passivation");
+        strategy = Strategy.valueOf(config.getString("strategy").toUpperCase());
+        idleTimeout = FiniteDuration.create(config.getDuration("idle-timeout").toNanos(), TimeUnit.NANOSECONDS);
+        maxActiveEntitiesPerShard = config.getInt("max-active-entities-per-shard");
+        heapMaxUsedFraction = config.getDouble("heap.max-used-fraction");
+        heapEvictFraction = config.getDouble("heap.evict-fraction");
+        for (Reason reason : Reason.values()) {
+            evictions.put(reason, new LongAdder());
+            reportedEvictions.put(reason, 0L);
+        }
+
+        final List<Cancellable> schedules = new ArrayList<>();
+        if (config.getBoolean("heap.enabled")) {
+            if (strategy == Strategy.IDLE) {
+                throw new IllegalArgumentException("Heap eviction needs the lru or lfu passivation strategy");
+            }
+            final Duration checkInterval = config.getDuration("heap.check-interval");
+            schedules.add(system.scheduler().schedule(checkInterval, checkInterval, this::checkHeap, system.dispatcher()));
+        }
+        final Duration reportInterval = config.getDuration("report-interval");
+        schedules.add(system.scheduler().schedule(reportInterval, reportInterval, this::report, system.dispatcher()));
+        system.registerOnTermination(() -> schedules.forEach(Cancellable::cancel));
+    }
+
+    static Passivation get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    FiniteDuration idleTimeout() {
+        return idleTimeout;
+    }
+
+    boolean tracksEntities() {
+        return strategy != Strategy.IDLE;
+    }
+
+    // The parent of an entity is its shard. Shard entities, which act for the whole shard, are not tracked.
+    // A full shard evicts before the new entity is added, otherwise LFU would evict the new entity, the only one
+    // with a single access, and new entities could never stay.
+    void started(ActorRef entity) {
+        if (EntityMessage.isShardEntityId(entity.path().name())) {
+            return;
+        }
+        final ShardEntities shardEntities = shards.computeIfAbsent(EntityMessage.shardId(entity), id -> strategy == Strategy.LFU ? new Lfu() : new Lru());
+        final ActorRef evicted;
+        synchronized (shardEntities) {
+            evicted = shardEntities.size() > 0 && shardEntities.size() >= maxActiveEntitiesPerShard ? shardEntities.evict() : null;
+            shardEntities.add(entity);
+        }
+        if (evicted != null) {
+            evict(evicted, strategy.reason);
+        }
+    }
+
+    void accessed(ActorRef entity) {
+        final ShardEntities shardEntities = shards.get(EntityMessage.shardId(entity));
+        if (shardEntities != null) {
+            synchronized (shardEntities) {
+                shardEntities.access(entity);
+            }
+        }
+    }
+
+    void stopped(ActorRef entity) {
+        final ShardEntities shardEntities = shards.get(EntityMessage.shardId(entity));
+        if (shardEntities != null) {
+            synchronized (shardEntities) {
+                shardEntities.remove(entity);
+            }
+        }
+    }
+
+    void idle() {
+        evictions.get(Reason.IDLE).increment();
+    }
+
+    private void evict(ActorRef entity, Reason reason) {
+        evictions.get(reason).increment();
+        entity.tell(Evict.instance, ActorRef.noSender());
+    }
+
+    // The used heap includes garbage that is not yet collected, so eviction may run more than once before a
+    // collection shows its effect.
+    private void checkHeap() {
+        final Runtime runtime = Runtime.getRuntime();
+        final long used = runtime.totalMemory() - runtime.freeMemory();
+        if (used > heapMaxUsedFraction * runtime.maxMemory()) {
+            final List<ActorRef> evicted = new ArrayList<>();
+            shards.values().forEach(shardEntities -> {
+                synchronized (shardEntities) {
+                    for (int i = (int) Math.ceil(shardEntities.size() * heapEvictFraction); i > 0 && shardEntities.size() > 0; i--) {
+                        evicted.add(shardEntities.evict());
+                    }
+                }
+            });
+            if (!evicted.isEmpty()) {
+                log.info("Heap used {}MB of {}MB, evicting {} entities", used >> 20, runtime.maxMemory() >> 20, evicted.size());
+            }
+            evicted.forEach(entity -> evict(entity, Reason.HEAP));
+        }
+    }
+
+    private synchronized void report() {
+        final Map<Reason, Long> current = new EnumMap<>(Reason.class);
+        evictions.forEach((reason, count) -> current.put(reason, count.sum()));
+        if (!current.equals(reportedEvictions)) {
+            log.info("Passivation {}, evictions {}", strategy, current);
+            reportedEvictions.putAll(current);
+        }
+    }
+
+    // Sent to an entity that should passivate.
+    enum Evict {
+        instance
+    }
+
+    enum Reason {
+        IDLE, LRU, LFU, HEAP;
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    enum Strategy {
+        IDLE(Reason.IDLE), LRU(Reason.LRU), LFU(Reason.LFU);
+
+        final Reason reason;
+
+        Strategy(Reason reason) {
+            this.reason = reason;
+        }
+
+        @Override
+        public String toString() {
+            return name().toLowerCase();
+        }
+    }
+
+    // The active entities of one shard in eviction order. Callers synchronize on the instance.
+    private interface ShardEntities {
+        void add(ActorRef entity);
+
+        void access(ActorRef entity);
+
+        void remove(ActorRef entity);
+
+        // Removes and returns the next entity to evict.
+        ActorRef evict();
+
+        int size();
+    }
+
+    private static class Lru implements ShardEntities {
+        private final LinkedHashMap<ActorRef, Boolean> entities = new LinkedHashMap<>(16, 0.75f, true);
+
+        @Override
+        public void add(ActorRef entity) {
+            entities.put(entity, Boolean.TRUE);
+        }
+
+        @Override
+        public void access(ActorRef entity) {
+            entities.get(entity);
+        }
+
+        @Override
+        public void remove(ActorRef entity) {
+            entities.remove(entity);
+        }
+
+        @Override
+        public ActorRef evict() {
+            final Iterator<ActorRef> iterator = entities.keySet().iterator();
+            final ActorRef entity = iterator.next();
+            iterator.remove();
+            return entity;
+        }
+
+        @Override
+        public int size() {
+            return entities.size();
+        }
+    }
+
+    // Constant time LFU: entities are kept in buckets by access count, each bucket in insertion order, so ties are
+    // evicted least recently used first. The buckets form a list in ascending count order and empty buckets are
+    // unlinked, so the head is always the least frequently used bucket and no operation searches for it.
+    private static class Lfu implements ShardEntities {
+        private final Map<ActorRef, Bucket> entities = new HashMap<>();
+        private Bucket head;
+
+        @Override
+        public void add(ActorRef entity) {
+            if (entities.containsKey(entity)) {
+                return;
+            }
+            if (head == null || head.count != 1) {
+                head = link(new Bucket(1), null, head);
+            }
+            head.entities.add(entity);
+            entities.put(entity, head);
+        }
+
+        @Override
+        public void access(ActorRef entity) {
+            final Bucket bucket = entities.get(entity);
+            if (bucket != null) {
+                Bucket next = bucket.next;
+                if (next == null || next.count != bucket.count + 1) {
+                    next = link(new Bucket(bucket.count + 1), bucket, next);
+                }
+                next.entities.add(entity);
+                entities.put(entity, next);
+                removeFromBucket(entity, bucket);
+            }
+        }
+
+        @Override
+        public void remove(ActorRef entity) {
+            final Bucket bucket = entities.remove(entity);
+            if (bucket != null) {
+                removeFromBucket(entity, bucket);
+            }
+        }
+
+        @Override
+        public ActorRef evict() {
+            final ActorRef entity = head.entities.iterator().next();
+            remove(entity);
+            return entity;
+        }
+
+        @Override
+        public int size() {
+            return entities.size();
+        }
+
+        private Bucket link(Bucket bucket, Bucket previous, Bucket next) {
+            bucket.previous = previous;
+            bucket.next = next;
+            if (previous != null) {
+                previous.next = bucket;
+            }
+            if (next != null) {
+                next.previous = bucket;
+            }
+            return bucket;
+        }
+
+        private void removeFromBucket(ActorRef entity, Bucket bucket) {
+            bucket.entities.remove(entity);
+            if (bucket.entities.isEmpty()) {
+                if (bucket.previous != null) {
+                    bucket.previous.next = bucket.next;
+                } else {
+                    head = bucket.next;
+                }
+                if (bucket.next != null) {
+                    bucket.next.previous = bucket.previous;
+                }
+            }
+        }
+
+        private static class Bucket {
+            final long count;
+            final LinkedHashSet<ActorRef> entities = new LinkedHashSet<>();
+            Bucket previous;
+            Bucket next;
+
+            Bucket(long count) {
+                this.count = count;
+            }
+        }
+    }
+
+    static class Id extends AbstractExtensionId<Passivation> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public Passivation createExtension(ExtendedActorSystem system) {
+            return new Passivation(system);
+        }
+    }
+}
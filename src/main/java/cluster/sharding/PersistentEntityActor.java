@@ -0,0 +1,212 @@
+package cluster.sharding;
+
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.actor.ReceiveTimeout;
+import akka.cluster.sharding.ShardRegion;
+import akka.event.Logging;
+import akka.event.LoggingAdapter;
+import akka.persistence.AbstractPersistentActor;
+import akka.persistence.DeleteMessagesFailure;
+import akka.persistence.DeleteMessagesSuccess;
+import akka.persistence.DeleteSnapshotsFailure;
+import akka.persistence.DeleteSnapshotsSuccess;
+import akka.persistence.RecoveryCompleted;
+import akka.persistence.SaveSnapshotFailure;
+import akka.persistence.SaveSnapshotSuccess;
+import akka.persistence.SnapshotOffer;
+import akka.persistence.SnapshotSelectionCriteria;
+import com.typesafe.config.Config;
+
+import java.util.concurrent.TimeUnit;
+
+// An EntityActor that persists each command as an Updated event, so the entity survives passivation. The journal is
+// local to the node, so an entity moved to another node by rebalancing starts there without its state. When its shard
+// returns, the local journal misses the updates made on the other node, it is deleted and the entity starts empty.
+// Every snapshot-every events the entity is saved as a snapshot, so recovery replays at most that many events.
+class PersistentEntityActor extends AbstractPersistentActor {
+    private final LoggingAdapter log = Logging.getLogger(context().system(), this);
+    private final MessageTrace messageTrace = MessageTrace.get(context().system());
+    private final WarmStart warmStart = WarmStart.get(context().system());
+    private final Passivation passivation = Passivation.get(context().system());
+    private final ShardLoad shardLoad = ShardLoad.get(context().system());
+    private final ResidentEntities residentEntities = ResidentEntities.get(context().system());
+    private final String shardId = EntityMessage.shardId(self());
+    private final EntityStats entityStats = EntityStats.get(context().system());
+    private final EntityStats.ShardCounters shardStats = entityStats.shard(shardId);
+    private final CommandAcks commandAcks = CommandAcks.get(context().system());
+    private final boolean publishInvalidations = context().system().settings().config().getBoolean("entity-query-cache.enabled");
+    private final int snapshotEvery;
+    private final boolean deleteEventsOnSnapshot;
+    private final long recoveryStart = System.nanoTime();
+    private Deduplication deduplication;
+    private long messages;
+    private Entity entity;
+
+    PersistentEntityActor() {
+        final Config config = context().system().settings().config().getConfig("entity-persistence");
+        snapshotEvery = config.getInt("snapshot-every");
+        deleteEventsOnSnapshot = config.getBoolean("delete-events-on-snapshot");
+    }
+
+    @Override
+    public String persistenceId() {
+        return EntityMessage.entityType(self()) + "-" + self().path().name();
+    }
+
+    @Override
+    public Receive createReceiveRecover() {
+        return receiveBuilder()
+                .match(EntityEvent.Updated.class, this::update)
+                .match(SnapshotOffer.class, snapshotOffer -> entity = (Entity) snapshotOffer.snapshot())
+                .match(RecoveryCompleted.class, recoveryCompleted -> recoveryCompleted())
+                .build();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Command.class, this::command)
+                .match(EntityMessage.Query.class, this::query)
+                .match(EntityMessage.CommandBatch.class, commandBatch -> EntityActor.commandBatch(getContext(), commandBatch))
+                .match(EntityMessage.ShardQuery.class, shardQuery -> EntityActor.shardQuery(getContext(), shardQuery))
+                .match(EntityMessage.Scan.class, scan -> EntityActor.scan(getContext(), scan))
+                .match(EntityMessage.ScanEntity.class, scanEntity -> sender().tell(scanEntity.reply(entity), self()))
+                .match(SaveSnapshotSuccess.class, this::snapshotSaved)
+                .match(SaveSnapshotFailure.class, f -> log.warning("Save snapshot failed {}", f.cause().toString()))
+                .match(DeleteSnapshotsSuccess.class, d -> log.debug("Deleted snapshots {}", d.criteria()))
+                .match(DeleteSnapshotsFailure.class, f -> log.warning("Delete snapshots failed {}", f.cause().toString()))
+                .match(DeleteMessagesSuccess.class, d -> log.debug("Deleted events to {}", d.toSequenceNr()))
+                .match(DeleteMessagesFailure.class, f -> log.warning("Delete events failed {}", f.cause().toString()))
+                .matchEquals(ReceiveTimeout.getInstance(), t -> idle())
+                .matchEquals(Passivation.Evict.instance, e -> passivate())
+                .build();
+    }
+
+    private void command(EntityMessage.Command command) {
+        shardStats.commands.increment();
+        sampleHotKey();
+        if (shardLoad.isEnabled()) {
+            shardLoad.record(shardId);
+        }
+        if (passivation.tracksEntities()) {
+            passivation.accessed(self());
+        }
+        if (command.delivery == EntityMessage.Command.deliveryReliable) {
+            if (deduplication == null) {
+                deduplication = new Deduplication(context().system().settings().config().getConfig("entity-reliable-delivery"));
+            }
+            if (EntityActor.isDuplicate(getContext(), deduplication, command, entityStats)) {
+                return;
+            }
+        }
+        persist(new EntityEvent.Updated(command.entity), updated -> {
+            final boolean init = entity == null;
+            update(updated);
+            final Object commandAck = EntityActor.acknowledge(getContext(), command, init, commandAcks);
+            if (publishInvalidations && !init) {
+                EntityActor.publishInvalidation(getContext(), entity);
+            }
+            if (messageTrace.isEnabled()) {
+                messageTrace.record(self(), command, commandAck, sender());
+            }
+            if (lastSequenceNr() % snapshotEvery == 0) {
+                saveSnapshot(entity.copy());
+            }
+        });
+    }
+
+    private void query(EntityMessage.Query query) {
+        shardStats.queries.increment();
+        sampleHotKey();
+        if (shardLoad.isEnabled()) {
+            shardLoad.record(shardId);
+        }
+        if (passivation.tracksEntities()) {
+            passivation.accessed(self());
+        }
+        final Object queryAck = entity == null
+                ? EntityMessage.QueryAckNotFound.ack(query)
+                : EntityMessage.QueryAck.ack(query, entity.copy());
+        sender().tell(queryAck, self());
+        if (messageTrace.isEnabled()) {
+            messageTrace.record(self(), query, queryAck, sender());
+        }
+    }
+
+    private void update(EntityEvent.Updated updated) {
+        if (entity == null) {
+            entity = updated.entity.copy();
+        } else {
+            entity.update(updated.entity);
+        }
+    }
+
+    private void recoveryCompleted() {
+        final long nanos = System.nanoTime() - recoveryStart;
+        Latencies.get(context().system()).record(Latencies.Outcome.RECOVERY, nanos);
+        if (ShardIncarnations.get(context().system()).isStale(self(), context().parent()) && lastSequenceNr() > 0) {
+            log.info("Discarding the stale journal of {} at sequence number {}, its shard was on another node", persistenceId(), lastSequenceNr());
+            entity = null;
+            deleteMessages(lastSequenceNr());
+            deleteSnapshots(SnapshotSelectionCriteria.create(Long.MAX_VALUE, Long.MAX_VALUE));
+            return;
+        }
+        log.debug("Recovered {} at sequence number {} in {}us", entity == null ? "(not initialized)" : entity.id,
+                lastSequenceNr(), TimeUnit.NANOSECONDS.toMicros(nanos));
+    }
+
+    private void snapshotSaved(SaveSnapshotSuccess saveSnapshotSuccess) {
+        final long sequenceNr = saveSnapshotSuccess.metadata().sequenceNr();
+        deleteSnapshots(SnapshotSelectionCriteria.create(sequenceNr - 1, Long.MAX_VALUE));
+        if (deleteEventsOnSnapshot) {
+            deleteMessages(sequenceNr);
+        }
+    }
+
+    private void sampleHotKey() {
+        if ((++messages & entityStats.sampleMask) == 0) {
+            entityStats.hotKey(self().path().name());
+        }
+    }
+
+    private void idle() {
+        passivation.idle();
+        passivate();
+    }
+
+    private void passivate() {
+        context().parent().tell(new ShardRegion.Passivate(PoisonPill.getInstance()), self());
+    }
+
+    @Override
+    public void preStart() throws Exception {
+        log.debug("Start");
+        context().setReceiveTimeout(passivation.idleTimeout());
+        if (passivation.tracksEntities()) {
+            passivation.started(self());
+        }
+        residentEntities.started(self());
+        if (warmStart.isEnabled()) {
+            warmStart.entityActive(self());
+        }
+        super.preStart();
+    }
+
+    @Override
+    public void postStop() {
+        log.debug("Stop {}", entity == null ? "(not initialized)" : entity.id);
+        if (passivation.tracksEntities()) {
+            passivation.stopped(self());
+        }
+        residentEntities.stopped(self());
+        if (warmStart.isEnabled()) {
+            warmStart.entityActive(self());
+        }
+        super.postStop();
+    }
+
+    static Props props() {
+        return Props.create(PersistentEntityActor.class).withDispatcher("entity-dispatcher");
+    }
+}
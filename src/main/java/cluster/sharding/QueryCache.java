@@ -0,0 +1,145 @@
+package cluster.sharding;
+
+import com.typesafe.config.Config;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+// A size bounded cache of queried entities with a time to live, used by one actor.
+// "lru" evicts the least recently used entry. "tinylfu" also keeps a frequency sketch of all looked up ids and only
+// admits a new entry when it is looked up more often than the entry it would evict, so a scan of cold keys does not
+// flush the hot keys.
+class QueryCache {
+    private final int maxSize;
+    private final long timeToLiveNanos;
+    private final FrequencySketch frequencySketch;
+    private final LinkedHashMap<Entity.Id, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private long hits;
+    private long misses;
+    private long expired;
+    private long evicted;
+    private long rejected;
+    private long invalidated;
+
+    QueryCache(Config config) {
+        maxSize = config.getInt("max-size");
+        timeToLiveNanos = config.getDuration("time-to-live").toNanos();
+        final String eviction = config.getString("eviction");
+        switch (eviction) {
+            case "lru":
+                frequencySketch = null;
+                break;
+            case "tinylfu":
+                frequencySketch = new FrequencySketch(maxSize);
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown query cache eviction '%s'", eviction));
+        }
+    }
+
+    Entity get(Entity.Id id, long now) {
+        if (frequencySketch != null) {
+            frequencySketch.increment(id);
+        }
+        final Entry entry = entries.get(id);
+        if (entry == null) {
+            misses++;
+            return null;
+        }
+        if (now - entry.time > timeToLiveNanos) {
+            entries.remove(id);
+            expired++;
+            misses++;
+            return null;
+        }
+        hits++;
+        return entry.entity;
+    }
+
+    void put(Entity entity, long now) {
+        if (!entries.containsKey(entity.id) && entries.size() >= maxSize) {
+            final Iterator<Map.Entry<Entity.Id, Entry>> eldest = entries.entrySet().iterator();
+            final Entity.Id victim = eldest.next().getKey();
+            if (frequencySketch != null && frequencySketch.frequency(entity.id) <= frequencySketch.frequency(victim)) {
+                rejected++;
+                return;
+            }
+            eldest.remove();
+            evicted++;
+        }
+        entries.put(entity.id, new Entry(entity, now));
+    }
+
+    void invalidate(Entity.Id id) {
+        if (entries.remove(id) != null) {
+            invalidated++;
+        }
+    }
+
+    @Override
+    public String toString() {
+        final long lookups = hits + misses;
+        return String.format("%s[size %d, hits %d (%.1f%%), misses %d, expired %d, evicted %d, rejected %d, invalidated %d]",
+                getClass().getSimpleName(), entries.size(), hits, lookups == 0 ? 0.0 : 100.0 * hits / lookups,
+                misses, expired, evicted, rejected, invalidated);
+    }
+
+    private static class Entry {
+        final Entity entity;
+        final long time;
+
+        Entry(Entity entity, long time) {
+            this.entity = entity;
+            this.time = time;
+        }
+    }
+
+    // A count-min sketch of 4 rows. All counters are halved after 10 * the cache size increments, so the
+    // frequencies follow recent popularity.
+    private static class FrequencySketch {
+        private static final int depth = 4;
+        private static final int[] seeds = { 0x97cb3127, 0xb8e1a0f5, 0x5bd1e995, 0x7feb352d };
+        private final int[][] counters;
+        private final int mask;
+        private final int resetSize;
+        private int size;
+
+        FrequencySketch(int maxSize) {
+            final int width = Integer.highestOneBit(Math.max(16, maxSize - 1)) << 1;
+            counters = new int[depth][width];
+            mask = width - 1;
+            resetSize = 10 * Math.max(1, maxSize);
+        }
+
+        void increment(Entity.Id id) {
+            final int hash = id.hashCode();
+            for (int row = 0; row < depth; row++) {
+                counters[row][index(hash, row)]++;
+            }
+            if (++size >= resetSize) {
+                for (int[] row : counters) {
+                    for (int i = 0; i < row.length; i++) {
+                        row[i] >>>= 1;
+                    }
+                }
+                size /= 2;
+            }
+        }
+
+        int frequency(Entity.Id id) {
+            final int hash = id.hashCode();
+            int frequency = Integer.MAX_VALUE;
+            for (int row = 0; row < depth; row++) {
+                frequency = Math.min(frequency, counters[row][index(hash, row)]);
+            }
+            return frequency;
+        }
+
+        private int index(int hash, int row) {
+            int h = hash * seeds[row];
+            h ^= h >>> 16;
+            return h & mask;
+        }
+    }
+}
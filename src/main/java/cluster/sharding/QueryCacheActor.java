@@ -0,0 +1,142 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.pubsub.DistributedPubSub;
+import akka.cluster.pubsub.DistributedPubSubMediator;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+// Answers queries from the node local QueryCache and forwards misses to the shard region.
+// Entities publish an Invalidated message when a command changes them. A query that was in flight when its entity
+// was invalidated may carry the old entity, so its reply is passed on but not cached.
+class QueryCacheActor extends AbstractLoggingActor {
+    static final String invalidationTopic = "entity-invalidation";
+
+    private final ActorRef shardRegion;
+    private final QueryCache queryCache;
+    private final Latencies latencies = Latencies.get(context().system());
+    private final Duration reportInterval;
+    private final long responseTimeoutNanos;
+    private final Map<Long, Pending> pending = new HashMap<>();
+    private long queryId;
+    private Cancellable expirer;
+    private Cancellable reporter;
+
+    private QueryCacheActor(ActorRef shardRegion, Config config) {
+        this.shardRegion = shardRegion;
+        queryCache = new QueryCache(config);
+        reportInterval = config.getDuration("report-interval");
+        responseTimeoutNanos = config.getDuration("response-timeout").toNanos();
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(EntityMessage.Query.class, this::query)
+                .match(EntityMessage.QueryAck.class, this::queryAck)
+                .match(EntityMessage.QueryAckNotFound.class, this::queryAckNotFound)
+                .match(EntityMessage.Invalidated.class, this::invalidated)
+                .match(DistributedPubSubMediator.SubscribeAck.class, s -> log().info("Subscribed to {}", invalidationTopic))
+                .matchEquals("expire", e -> expire())
+                .matchEquals("report", r -> log().info("{}", queryCache))
+                .build();
+    }
+
+    private void query(EntityMessage.Query query) {
+        final Entity entity = queryCache.get(query.id, System.nanoTime());
+        if (entity != null) {
+            sender().tell(EntityMessage.QueryAck.ack(query, entity), self());
+        } else {
+            pending.put(++queryId, new Pending(query, sender(), System.nanoTime()));
+            shardRegion.tell(new EntityMessage.Query(queryId, query.time, query.id), self());
+        }
+    }
+
+    private void queryAck(EntityMessage.QueryAck queryAck) {
+        final Pending request = pending.remove(queryAck.queryId);
+        if (request != null) {
+            if (!request.invalidated) {
+                queryCache.put(queryAck.entity, System.nanoTime());
+            }
+            request.sender.tell(EntityMessage.QueryAck.ack(request.query, queryAck.entity), self());
+        }
+    }
+
+    private void queryAckNotFound(EntityMessage.QueryAckNotFound queryAckNotFound) {
+        final Pending request = pending.remove(queryAckNotFound.queryId);
+        if (request != null) {
+            request.sender.tell(EntityMessage.QueryAckNotFound.ack(request.query), self());
+        }
+    }
+
+    private void invalidated(EntityMessage.Invalidated invalidated) {
+        latencies.record(Latencies.Outcome.INVALIDATION, TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis() - invalidated.time));
+        queryCache.invalidate(invalidated.id);
+        pending.values().stream()
+                .filter(request -> request.query.id.equals(invalidated.id))
+                .forEach(request -> request.invalidated = true);
+    }
+
+    // Requests without a reply are dropped, the requester has its own timeout.
+    private void expire() {
+        final long now = System.nanoTime();
+        final Iterator<Pending> iterator = pending.values().iterator();
+        while (iterator.hasNext()) {
+            if (now - iterator.next().time > responseTimeoutNanos) {
+                iterator.remove();
+            }
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        DistributedPubSub.get(context().system()).mediator().tell(new DistributedPubSubMediator.Subscribe(invalidationTopic, self()), self());
+        final Duration expireInterval = Duration.ofNanos(responseTimeoutNanos);
+        expirer = schedule(expireInterval, expireInterval, "expire");
+        reporter = schedule(reportInterval, reportInterval, "report");
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        expirer.cancel();
+        reporter.cancel();
+    }
+
+    private Cancellable schedule(Duration initialDelay, Duration interval, String message) {
+        return context().system().scheduler().schedule(
+                initialDelay,
+                interval,
+                self(),
+                message,
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    static Props props(ActorRef shardRegion, Config config) {
+        return Props.create(QueryCacheActor.class, shardRegion, config);
+    }
+
+    private static class Pending {
+        final EntityMessage.Query query;
+        final ActorRef sender;
+        final long time;
+        boolean invalidated;
+
+        Pending(EntityMessage.Query query, ActorRef sender, long time) {
+            this.query = query;
+            this.sender = sender;
+            this.time = time;
+        }
+    }
+}
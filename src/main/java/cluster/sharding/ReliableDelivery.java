@@ -0,0 +1,90 @@
+package cluster.sharding;
+
+import com.typesafe.config.Config;
+
+import java.util.function.Consumer;
+
+// The redelivery buffer of one producer, used by one actor. Commands are numbered from 1 and at most window
+// consecutive ids, from the lowest unacknowledged id on, are outstanding, so the buffer is a fixed ring of window
+// slots. A command without an ack after redelivery-timeout is sent again, each further attempt waits twice as long up
+// to max-backoff. Commands are redelivered until they are acknowledged, a command that cannot be delivered stops the
+// producer once the window is full.
+class ReliableDelivery {
+    private final int window;
+    private final int mask;
+    private final long redeliveryTimeoutNanos;
+    private final long maxBackoffNanos;
+    private final EntityMessage.Command[] commands;
+    private final long[] deadlines;
+    private final int[] attempts;
+    private long ackedBelow = 1;
+    private long highestId;
+    private long redelivered;
+    private long duplicateAcks;
+
+    ReliableDelivery(Config config) {
+        window = config.getInt("window");
+        if (Integer.bitCount(window) != 1) {
+            throw new IllegalArgumentException(String.format("entity-reliable-delivery.window must be a power of two, was %d", window));
+        }
+        mask = window - 1;
+        redeliveryTimeoutNanos = config.getDuration("redelivery-timeout").toNanos();
+        maxBackoffNanos = config.getDuration("max-backoff").toNanos();
+        commands = new EntityMessage.Command[window];
+        deadlines = new long[window];
+        attempts = new int[window];
+    }
+
+    boolean isFull() {
+        return highestId + 1 - ackedBelow >= window;
+    }
+
+    // The id must be the next one after the previously sent id.
+    EntityMessage.Command send(long id, Entity entity, long now) {
+        final EntityMessage.Command command = new EntityMessage.Command(id, now, entity, EntityMessage.Command.deliveryReliable, ackedBelow);
+        final int slot = (int) (id & mask);
+        commands[slot] = command;
+        deadlines[slot] = now + redeliveryTimeoutNanos;
+        attempts[slot] = 0;
+        highestId = id;
+        return command;
+    }
+
+    // Returns false for an ack of a command that is already acknowledged, an ack of a redelivered command.
+    boolean acked(long id) {
+        final int slot = (int) (id & mask);
+        if (id < ackedBelow || commands[slot] == null || commands[slot].id != id) {
+            duplicateAcks++;
+            return false;
+        }
+        commands[slot] = null;
+        while (ackedBelow <= highestId && commands[(int) (ackedBelow & mask)] == null) {
+            ackedBelow++;
+        }
+        return true;
+    }
+
+    // Redelivered commands keep their first send time, so the recorded latency includes the redeliveries.
+    void redeliver(long now, Consumer<EntityMessage.Command> send) {
+        for (long id = ackedBelow; id <= highestId; id++) {
+            final int slot = (int) (id & mask);
+            final EntityMessage.Command command = commands[slot];
+            if (command != null && now - deadlines[slot] >= 0) {
+                final int attempt = ++attempts[slot];
+                deadlines[slot] = now + Math.min(redeliveryTimeoutNanos << Math.min(attempt, 30), maxBackoffNanos);
+                redelivered++;
+                send.accept(new EntityMessage.Command(id, command.time, command.entity, command.delivery, ackedBelow));
+            }
+        }
+    }
+
+    long redelivered() {
+        return redelivered;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s[acked below %d, in window %d, redelivered %d, duplicate acks %d]",
+                getClass().getSimpleName(), ackedBelow, highestId + 1 - ackedBelow, redelivered, duplicateAcks);
+    }
+}
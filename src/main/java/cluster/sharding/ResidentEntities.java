@@ -0,0 +1,65 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The entity actors of each shard that are running on this node, so a shard scan reaches every resident entity of
+// its shard without asking the shard. Entities add themselves when they start and remove themselves when they stop.
+// Shard entities, which act for the whole shard, are not listed.
+class ResidentEntities implements Extension {
+    private final Map<String, Set<ActorRef>> shards = new ConcurrentHashMap<>();
+
+    private ResidentEntities(ExtendedActorSystem system) {
+    }
+
+    static ResidentEntities get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    void started(ActorRef entity) {
+        if (!EntityMessage.isShardEntityId(entity.path().name())) {
+            shards.computeIfAbsent(EntityMessage.shardId(entity), shardId -> ConcurrentHashMap.newKeySet()).add(entity);
+        }
+    }
+
+    void stopped(ActorRef entity) {
+        final Set<ActorRef> entities = shards.get(EntityMessage.shardId(entity));
+        if (entities != null) {
+            entities.remove(entity);
+        }
+    }
+
+    // A snapshot, entities that start later are not included.
+    List<ActorRef> entities(String shardId) {
+        final Set<ActorRef> entities = shards.get(shardId);
+        return entities == null ? Collections.emptyList() : new ArrayList<>(entities);
+    }
+
+    static class Id extends AbstractExtensionId<ResidentEntities> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public ResidentEntities createExtension(ExtendedActorSystem system) {
+            return new ResidentEntities(system);
+        }
+    }
+}
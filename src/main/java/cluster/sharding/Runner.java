@@ -4,15 +4,25 @@ import akka.Done;
 import akka.actor.ActorRef;
 import akka.actor.ActorSystem;
 import akka.actor.CoordinatedShutdown;
+import akka.actor.PoisonPill;
+import akka.actor.Props;
+import akka.cluster.Cluster;
 import akka.cluster.sharding.ClusterSharding;
 import akka.cluster.sharding.ClusterShardingSettings;
+import akka.cluster.sharding.ShardCoordinator;
 import akka.management.javadsl.AkkaManagement;
+import akka.pattern.Patterns;
 import com.typesafe.config.Config;
 import com.typesafe.config.ConfigFactory;
 
+import java.time.Duration;
+import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.List;
-import java.util.concurrent.CompletableFuture;
+import java.util.Map;
+import java.util.Optional;
+import java.util.TreeMap;
+import java.util.stream.Collectors;
 
 public class Runner {
     public static void main(String[] args) {
@@ -26,48 +36,225 @@ public class Runner {
     private static void startupClusterNodes(List<String> ports) {
         System.out.printf("Start cluster on port(s) %s%n", ports);
 
-        ports.forEach(port -> {
-            ActorSystem actorSystem = ActorSystem.create("sharding", setupClusterNodeConfig(port));
+        ports.forEach(port -> startupClusterNode(port, port.equals(ports.get(0)), ConfigFactory.empty()));
+    }
+
+    // Starts one node. The settings in config take precedence over the node's configuration. Only the ingest node
+    // runs the command ingestion stream. Nodes with the entity-placement.host-role host the entities, the other nodes
+    // route through shard region proxies, and only nodes with the entity-placement.load-role run the load generators.
+    static ActorSystem startupClusterNode(String port, boolean ingest, Config config) {
+        ActorSystem actorSystem = ActorSystem.create("sharding", setupClusterNodeConfig(port, config));
 
-            AkkaManagement.get(actorSystem).start();
+        AkkaManagement.get(actorSystem).start();
 
-            actorSystem.actorOf(ClusterListenerActor.props(), "clusterListener");
+        actorSystem.actorOf(ClusterListenerActor.props(), "clusterListener");
 
-            ActorRef shardingRegion = setupClusterSharding(actorSystem);
+        Config placement = actorSystem.settings().config().getConfig("entity-placement");
+        boolean host = hasRole(actorSystem, placement.getString("host-role"));
+        if (host && ShardLoad.get(actorSystem).isEnabled()) {
+            actorSystem.actorOf(ShardLoadActor.props(), "shardLoad");
+        }
+        ActorRef shardingRegion = setupClusterSharding(actorSystem, EntityMessage.typeName,
+                actorSystem.settings().config().getConfig("entity-sharding"), host);
+        Map<String, ActorRef> entityTypeRegions = setupEntityTypes(actorSystem, host);
+        if (host) {
+            setupWarmStart(actorSystem, shardingRegion);
+        }
 
-            actorSystem.actorOf(EntityCommandActor.props(shardingRegion), "entityCommand");
-            actorSystem.actorOf(EntityQueryActor.props(shardingRegion), "entityQuery");
+        List<ActorRef> loadGenerators = new ArrayList<>();
+        ActorRef queryRegion = setupQueryCache(actorSystem, shardingRegion);
+        boolean load = hasRole(actorSystem, placement.getString("load-role"));
+        if (load) {
+            loadGenerators.add(actorSystem.actorOf(EntityCommandActor.props(setupCommandBatching(actorSystem, shardingRegion)), "entityCommand"));
+            loadGenerators.add(actorSystem.actorOf(EntityQueryActor.props(queryRegion), "entityQuery"));
+            entityTypeRegions.forEach((entityType, region) ->
+                    loadGenerators.add(actorSystem.actorOf(EntityCommandActor.props(region), "entityCommand-" + entityType)));
+        }
+        setupMultiQuery(actorSystem, shardingRegion, load, loadGenerators);
+        if (ingest) {
+            setupCommandIngestion(actorSystem, shardingRegion);
+        }
 
-            addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShutdown());
+        List<ActorRef> shardRegions = new ArrayList<>();
+        shardRegions.add(shardingRegion);
+        shardRegions.addAll(entityTypeRegions.values());
+        setupNodeShutdown(actorSystem, shardRegions, loadGenerators);
 
-            actorSystem.log().info("Akka node {}", actorSystem.provider().getDefaultAddress());
-        });
+        actorSystem.log().info("Akka node {}", actorSystem.provider().getDefaultAddress());
+        return actorSystem;
     }
 
-    private static Config setupClusterNodeConfig(String port) {
-        return ConfigFactory.parseString(
+    // The port, persistence and remoting settings are derived from the configuration the node starts with, config
+    // included, and config takes precedence over them.
+    private static Config setupClusterNodeConfig(String port, Config config) {
+        Config nodeConfig = config.withFallback(ConfigFactory.load());
+        String persistenceDir = String.format("%s/node-%s", nodeConfig.getString("entity-persistence.dir"), port);
+        return config.withFallback(ConfigFactory.parseString(
                 String.format("akka.remote.netty.tcp.port=%s%n", port) +
-                        String.format("akka.remote.artery.canonical.port=%s%n", port))
+                        String.format("akka.remote.artery.canonical.port=%s%n", port) +
+                        String.format("entity-persistence.journal.dir=\"%s/journal\"%n", persistenceDir) +
+                        String.format("akka.persistence.snapshot-store.local.dir=\"%s/snapshots\"%n", persistenceDir) +
+                        setupRemotingConfig(nodeConfig)))
                 .withFallback(ConfigFactory.load());
     }
 
-    private static ActorRef setupClusterSharding(ActorSystem actorSystem) {
-        ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem);
+    // Artery node addresses use the akka:// protocol, so the seed nodes are rewritten from akka.tcp:// to akka://.
+    private static String setupRemotingConfig(Config config) {
+        String transport = config.getString("entity-remoting.transport");
+        switch (transport) {
+            case "classic":
+                return "";
+            case "artery-tcp":
+            case "artery-aeron":
+                return String.format("akka.remote.artery.enabled=on%n") +
+                        String.format("akka.remote.artery.transport=%s%n", transport.equals("artery-tcp") ? "tcp" : "aeron-udp") +
+                        String.format("akka.cluster.seed-nodes=[%s]%n", config.getStringList("akka.cluster.seed-nodes").stream()
+                                .map(seedNode -> String.format("\"%s\"", seedNode.replace("akka.tcp://", "akka://")))
+                                .collect(Collectors.joining(",")));
+            default:
+                throw new IllegalArgumentException(String.format("Unknown remoting transport '%s'", transport));
+        }
+    }
+
+    // A node without the host role starts a proxy, which routes the messages to the regions of the host nodes.
+    private static ActorRef setupClusterSharding(ActorSystem actorSystem, String entityType, Config sharding, boolean host) {
+        String hostRole = actorSystem.settings().config().getString("entity-placement.host-role");
+        Optional<String> role = hostRole.isEmpty() ? Optional.empty() : Optional.of(hostRole);
+        if (!host) {
+            return ClusterSharding.get(actorSystem).startProxy(entityType, role, EntityMessageExtractor.create(sharding));
+        }
+        ClusterShardingSettings settings = ClusterShardingSettings.create(actorSystem).withRole(hostRole);
+        Props entityProps = setupEntityMailbox(actorSystem, actorSystem.settings().config().getBoolean("entity-persistence.enabled"));
+        ShardCoordinator.ShardAllocationStrategy allocationStrategy = setupAllocationStrategy(actorSystem, entityType);
+        if (allocationStrategy == null) {
+            return ClusterSharding.get(actorSystem).start(
+                    entityType,
+                    entityProps,
+                    settings,
+                    EntityMessageExtractor.create(sharding)
+            );
+        }
         return ClusterSharding.get(actorSystem).start(
-                "entity",
-                EntityActor.props(),
+                entityType,
+                entityProps,
                 settings,
-                EntityMessage.messageExtractor()
+                EntityMessageExtractor.create(sharding),
+                allocationStrategy,
+                PoisonPill.getInstance()
         );
     }
 
-    private static void addCoordinatedShutdownTask(ActorSystem actorSystem, String coordindateShutdownPhase) {
-        CoordinatedShutdown.get(actorSystem).addTask(
-                coordindateShutdownPhase,
-                coordindateShutdownPhase,
-                () -> {
-                    actorSystem.log().warning("Coordinated shutdown phase {}", coordindateShutdownPhase);
-                    return CompletableFuture.completedFuture(Done.getInstance());
-                });
+    // The entity types besides the entity type, each with the shard count and shard id strategy of its entity-types
+    // entry. Their entities are entity actors too.
+    private static Map<String, ActorRef> setupEntityTypes(ActorSystem actorSystem, boolean host) {
+        Config config = actorSystem.settings().config();
+        Map<String, ActorRef> regions = new TreeMap<>();
+        config.getConfig("entity-types").root().keySet().forEach(entityType -> regions.put(entityType,
+                setupClusterSharding(actorSystem, entityType, EntityMessage.shardingConfig(config, entityType), host)));
+        return regions;
+    }
+
+    private static boolean hasRole(ActorSystem actorSystem, String role) {
+        return role.isEmpty() || Cluster.get(actorSystem).getSelfRoles().contains(role);
+    }
+
+    // Null for Akka's default strategy. A throttled hand-off wraps the strategy, the default one is created from
+    // akka.cluster.sharding.least-shard-allocation-strategy as ClusterSharding does.
+    private static ShardCoordinator.ShardAllocationStrategy setupAllocationStrategy(ActorSystem actorSystem, String entityType) {
+        ShardCoordinator.ShardAllocationStrategy allocationStrategy = null;
+        if (ShardLoad.get(actorSystem).isEnabled()) {
+            allocationStrategy = new LoadAwareAllocationStrategy(actorSystem, entityType);
+        }
+        NodeShutdown nodeShutdown = NodeShutdown.get(actorSystem);
+        if (!nodeShutdown.isThrottled()) {
+            return allocationStrategy;
+        }
+        if (allocationStrategy == null) {
+            Config config = actorSystem.settings().config().getConfig("akka.cluster.sharding.least-shard-allocation-strategy");
+            allocationStrategy = new ShardCoordinator.LeastShardAllocationStrategy(
+                    config.getInt("rebalance-threshold"),
+                    config.getInt("max-simultaneous-rebalance"));
+        }
+        return new DrainingAllocationStrategy(allocationStrategy, nodeShutdown);
+    }
+
+    private static Props setupEntityMailbox(ActorSystem actorSystem, boolean persistent) {
+        String mailbox = actorSystem.settings().config().getString("entity-mailbox");
+        if (persistent) {
+            // Persistent entities stash commands while persisting, which requires a deque based mailbox.
+            mailbox = mailbox.equals("bounded") ? "bounded-deque" : "unbounded-deque";
+        }
+        return (persistent ? PersistentEntityActor.props() : EntityActor.props()).withMailbox("entity-mailboxes." + mailbox);
+    }
+
+    private static void setupWarmStart(ActorSystem actorSystem, ActorRef shardingRegion) {
+        if (WarmStart.get(actorSystem).isEnabled()) {
+            actorSystem.actorOf(WarmStartActor.props(shardingRegion), "warmStart");
+        } else if (actorSystem.settings().config().getBoolean("entity-warm-start.enabled")) {
+            actorSystem.log().warning("Warm start is only used with entity persistence, entity-persistence.enabled is off");
+        }
+    }
+
+    private static ActorRef setupCommandBatching(ActorSystem actorSystem, ActorRef shardingRegion) {
+        Config config = actorSystem.settings().config();
+        if (config.getBoolean("entity-command-batching.enabled")) {
+            // A batch is acknowledged as a whole with full acks, so batching only applies to full delivery.
+            if (!"full".equals(config.getString("entity-command-load.delivery"))) {
+                actorSystem.log().warning("Command batching is only used with full delivery, delivery is {}",
+                        config.getString("entity-command-load.delivery"));
+                return shardingRegion;
+            }
+            return actorSystem.actorOf(CommandBatcher.props(
+                    shardingRegion,
+                    EntityMessage.messageExtractor(config),
+                    config.getConfig("entity-command-batching")), "commandBatcher");
+        } else {
+            return shardingRegion;
+        }
+    }
+
+    private static ActorRef setupQueryCache(ActorSystem actorSystem, ActorRef shardingRegion) {
+        Config config = actorSystem.settings().config();
+        if (config.getBoolean("entity-query-cache.enabled")) {
+            return actorSystem.actorOf(QueryCacheActor.props(shardingRegion, config.getConfig("entity-query-cache")), "queryCache");
+        } else {
+            return shardingRegion;
+        }
+    }
+
+    private static void setupMultiQuery(ActorSystem actorSystem, ActorRef shardingRegion, boolean load, List<ActorRef> loadGenerators) {
+        Config config = actorSystem.settings().config();
+        ActorRef multiQuery = actorSystem.actorOf(MultiQueryActor.props(
+                shardingRegion,
+                EntityMessage.messageExtractor(config),
+                config.getConfig("entity-multi-query")), "multiQuery");
+        if (load && config.getBoolean("entity-multi-query-load.enabled")) {
+            loadGenerators.add(actorSystem.actorOf(EntityMultiQueryActor.props(multiQuery), "entityMultiQuery"));
+        }
+    }
+
+    private static void setupCommandIngestion(ActorSystem actorSystem, ActorRef shardingRegion) {
+        Config config = actorSystem.settings().config();
+        if (config.getBoolean("entity-ingestion.enabled")) {
+            CommandIngestion.start(actorSystem, shardingRegion, config.getConfig("entity-ingestion"));
+        }
+    }
+
+    // The node leaves in three steps: the load generators drain, the shards are handed off, and the regions stop.
+    // The hand-off runs before Akka's graceful shutdown of the regions and reports once every region has stopped.
+    private static void setupNodeShutdown(ActorSystem actorSystem, List<ActorRef> shardRegions, List<ActorRef> loadGenerators) {
+        ActorRef nodeShutdown = actorSystem.actorOf(NodeShutdownActor.props(shardRegions, loadGenerators), "nodeShutdown");
+        addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseServiceRequestsDone(), nodeShutdown, NodeShutdownActor.Drain.instance);
+        addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseBeforeClusterShutdown(), nodeShutdown, NodeShutdownActor.HandOff.instance);
+        addCoordinatedShutdownTask(actorSystem, CoordinatedShutdown.PhaseClusterShardingShutdownRegion(), nodeShutdown, NodeShutdownActor.AwaitHandOff.instance);
+    }
+
+    private static void addCoordinatedShutdownTask(ActorSystem actorSystem, String coordinatedShutdownPhase, ActorRef nodeShutdown, Object message) {
+        CoordinatedShutdown coordinatedShutdown = CoordinatedShutdown.get(actorSystem);
+        Duration timeout = Duration.ofMillis(coordinatedShutdown.timeout(coordinatedShutdownPhase).toMillis());
+        coordinatedShutdown.addTask(
+                coordinatedShutdownPhase,
+                message.getClass().getSimpleName(),
+                () -> Patterns.ask(nodeShutdown, message, timeout).thenApply(done -> Done.getInstance()));
     }
 }
@@ -0,0 +1,187 @@
+package cluster.sharding;
+
+import akka.NotUsed;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.cluster.sharding.ClusterSharding;
+import akka.http.javadsl.model.ContentType;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpCharsets;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.MediaTypes;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import akka.pattern.Patterns;
+import akka.stream.javadsl.Source;
+import akka.util.ByteString;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.PriorityQueue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Collectors;
+
+// GET /entity-scan?aggregate=count|filter|top&filter=<text>&limit=<n>  scan every resident entity of the cluster
+// The scan is sent to every shard, at most parallelism shards at a time, and each shard answers with the aggregate of
+// its entities, so entities never leave their node in bulk. The answers are streamed as they arrive, one JSON line
+// per shard, and the next shards are asked only as the client reads, so a slow client slows the scan down instead of
+// buffering answers. Shards that do not answer within ask-timeout are reported unanswered, and after timeout the scan
+// ends with the shards answered so far. The last line is the total, its complete flag tells whether every shard and
+// every entity answered. Shards without a region are allocated by the scan, their entities are not started.
+public class ScanRoutes extends AllDirectives implements ManagementRouteProvider {
+    private static final ContentType jsonLines = MediaTypes.applicationWithFixedCharset("x-ndjson", HttpCharsets.UTF_8).toContentType();
+
+    private final ActorSystem system;
+    private final List<String> shardIds;
+    private final int parallelism;
+    private final Duration askTimeout;
+    private final Duration timeout;
+    private final int defaultLimit;
+    private final int maxLimit;
+    private final AtomicLong scanId = new AtomicLong();
+
+    public ScanRoutes(ExtendedActorSystem system) {
+        this.system = system;
+        shardIds = EntityMessage.messageExtractor(system.settings().config()).shardIds();
+        final Config config = system.settings().config().getConfig("entity-scan");
+        parallelism = config.getInt("parallelism");
+        askTimeout = config.getDuration("ask-timeout");
+        timeout = config.getDuration("timeout");
+        defaultLimit = config.getInt("default-limit");
+        maxLimit = config.getInt("max-limit");
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return get(() -> path("entity-scan", () ->
+                parameterOptional("aggregate", aggregate ->
+                        parameterOptional("filter", filter ->
+                                parameterOptional("limit", limit ->
+                                        complete(scan(aggregate.orElse("count"), filter.orElse(""), limit)))))));
+    }
+
+    private HttpResponse scan(String aggregate, String filter, Optional<String> limit) {
+        final EntityMessage.Scan scan;
+        try {
+            scan = new EntityMessage.Scan(scanId.incrementAndGet(), null, EntityMessage.Scan.aggregate(aggregate), filter,
+                    Math.min(limit.map(Integer::parseInt).orElse(defaultLimit), maxLimit));
+        } catch (IllegalArgumentException e) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST)
+                    .withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, String.format("{\"error\": %s}", EntityRoutes.json(e.getMessage()))));
+        }
+        if (scan.limit < 0) {
+            return HttpResponse.create().withStatus(StatusCodes.BAD_REQUEST)
+                    .withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, "{\"error\": \"The limit must not be negative\"}"));
+        }
+        return HttpResponse.create().withEntity(HttpEntities.createChunked(jsonLines, lines(scan)));
+    }
+
+    // A new total for every materialization, the response entity is run once per request. The end of the shard
+    // answers is marked with an empty element, so the total line is written after the last answer.
+    private Source<ByteString, NotUsed> lines(EntityMessage.Scan scan) {
+        return Source.lazily(() -> {
+            final Total total = new Total(scan);
+            return Source.from(shardIds)
+                    .mapAsyncUnordered(parallelism, shardId -> scanShard(scan.shard(shardId)))
+                    .takeWithin(timeout)
+                    .map(Optional::of)
+                    .concat(Source.single(Optional.empty()))
+                    .map(shard -> line(shard.map(total::add).orElseGet(total::json)));
+        }).mapMaterializedValue(m -> NotUsed.getInstance());
+    }
+
+    private CompletionStage<Shard> scanShard(EntityMessage.Scan scan) {
+        return Patterns.ask(shardRegion(), scan, askTimeout)
+                .handle((reply, e) -> new Shard(scan.shardId, reply instanceof EntityMessage.ScanAck ? (EntityMessage.ScanAck) reply : null));
+    }
+
+    private ActorRef shardRegion() {
+        return ClusterSharding.get(system).shardRegion(EntityMessage.typeName);
+    }
+
+    private static ByteString line(String json) {
+        return ByteString.fromString(json + "\n");
+    }
+
+    private static String json(List<Entity> entities) {
+        return entities.stream().map(EntityRoutes::json).collect(Collectors.joining(", ", "[", "]"));
+    }
+
+    // The answer of one shard, without a ScanAck when the shard did not answer in time.
+    private static class Shard {
+        final String shardId;
+        final EntityMessage.ScanAck scanAck;
+
+        Shard(String shardId, EntityMessage.ScanAck scanAck) {
+            this.shardId = shardId;
+            this.scanAck = scanAck;
+        }
+    }
+
+    // Merges the shard answers. Filter scans keep the first limit entities, top scans the limit highest values.
+    private class Total {
+        final EntityMessage.Scan scan;
+        final List<Entity> filtered = new ArrayList<>();
+        final PriorityQueue<Entity> top;
+        int shardsAnswered;
+        int shardsUnanswered;
+        boolean complete = true;
+        long resident;
+        long answered;
+        long matched;
+
+        Total(EntityMessage.Scan scan) {
+            this.scan = scan;
+            top = new PriorityQueue<>(Math.max(1, scan.limit), EntityMessage.Scan.byValueDescending.reversed());
+        }
+
+        String add(Shard shard) {
+            final EntityMessage.ScanAck scanAck = shard.scanAck;
+            if (scanAck == null) {
+                shardsUnanswered++;
+                complete = false;
+                return String.format("{\"shard\": %s, \"answered\": false}", EntityRoutes.json(shard.shardId));
+            }
+            shardsAnswered++;
+            complete &= scanAck.isComplete();
+            resident += scanAck.resident;
+            answered += scanAck.answered;
+            matched += scanAck.matched;
+            scanAck.entities.forEach(this::merge);
+            return String.format("{\"shard\": %s, \"answered\": true, \"complete\": %b, \"resident\": %d, \"answered-entities\": %d, \"matched\": %d, \"entities\": %s}",
+                    EntityRoutes.json(shard.shardId), scanAck.isComplete(), scanAck.resident, scanAck.answered, scanAck.matched, ScanRoutes.json(scanAck.entities));
+        }
+
+        private void merge(Entity entity) {
+            if (scan.aggregate == EntityMessage.Scan.aggregateFilter && filtered.size() < scan.limit) {
+                filtered.add(entity);
+            } else if (scan.aggregate == EntityMessage.Scan.aggregateTop && scan.limit > 0) {
+                top.add(entity);
+                if (top.size() > scan.limit) {
+                    top.poll();
+                }
+            }
+        }
+
+        // Shards not asked before the timeout count as unanswered.
+        String json() {
+            final List<Entity> entities = new ArrayList<>(scan.aggregate == EntityMessage.Scan.aggregateTop ? top : filtered);
+            if (scan.aggregate == EntityMessage.Scan.aggregateTop) {
+                entities.sort(EntityMessage.Scan.byValueDescending);
+            }
+            final int notAsked = shardIds.size() - shardsAnswered - shardsUnanswered;
+            return String.format("{\"scan\": %d, \"complete\": %b, \"shards\": %d, \"shards-answered\": %d, \"shards-unanswered\": %d, \"resident\": %d, \"answered-entities\": %d, \"matched\": %d, \"entities\": %s}",
+                    scan.scanId, complete && notAsked == 0, shardIds.size(), shardsAnswered, shardsUnanswered + notAsked,
+                    resident, answered, matched, ScanRoutes.json(entities));
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+// The shard actor each shard of this node runs in. A shard that was handed off and later allocated to this node
+// again runs in a new shard actor, while it was away its entities may have been updated on another node, so the
+// local journal of each of its entities is stale. Every entity of a returned shard is reported stale once, on its
+// first start after the return. A shard that returns after a restart of this node is not detected.
+class ShardIncarnations implements Extension {
+    private final Map<String, Incarnation> shards = new ConcurrentHashMap<>();
+
+    private ShardIncarnations(ExtendedActorSystem system) {
+    }
+
+    static ShardIncarnations get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    // True when the entity's shard has returned to this node and the entity has not started since.
+    boolean isStale(ActorRef entity, ActorRef shard) {
+        final Incarnation incarnation = shards.compute(EntityMessage.shardId(entity), (shardId, current) -> {
+            if (current == null) {
+                return new Incarnation(shard, false);
+            }
+            return current.shard.equals(shard) ? current : new Incarnation(shard, true);
+        });
+        return incarnation.returned && incarnation.started.add(entity.path().name());
+    }
+
+    private static class Incarnation {
+        final ActorRef shard;
+        final boolean returned;
+        final Set<String> started = ConcurrentHashMap.newKeySet();
+
+        Incarnation(ActorRef shard, boolean returned) {
+            this.shard = shard;
+            this.returned = returned;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<ShardIncarnations> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public ShardIncarnations createExtension(ExtendedActorSystem system) {
+            return new ShardIncarnations(system);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+
+// Message counts of the shards hosted on this node, and the latest cluster wide view of node capacities and shard
+// message rates maintained by the ShardLoadActor, which the LoadAwareAllocationStrategy reads.
+class ShardLoad implements Extension {
+    private final boolean enabled;
+    private final Map<String, LongAdder> messageCounts = new ConcurrentHashMap<>();
+    private volatile Map<Address, Double> nodeCapacities = Collections.emptyMap();
+    private volatile Map<String, Long> shardRates = Collections.emptyMap();
+
+    private ShardLoad(ExtendedActorSystem system) {
+        enabled = system.settings().config().getString("entity-shard-allocation.strategy").equals("load-aware");
+    }
+
+    static ShardLoad get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    void record(String shardId) {
+        LongAdder messageCount = messageCounts.get(shardId);
+        if (messageCount == null) {
+            messageCount = messageCounts.computeIfAbsent(shardId, id -> new LongAdder());
+        }
+        messageCount.increment();
+    }
+
+    // Returns and resets the message counts since the last call. Shards without messages are dropped.
+    Map<String, Long> drainMessageCounts() {
+        final Map<String, Long> counts = new HashMap<>();
+        messageCounts.forEach((shardId, messageCount) -> {
+            final long count = messageCount.sumThenReset();
+            if (count == 0) {
+                messageCounts.remove(shardId, messageCount);
+            }
+            counts.put(shardId, count);
+        });
+        return counts;
+    }
+
+    // Capacity is between 0, fully loaded, and 1, idle. Nodes without metrics are missing.
+    Map<Address, Double> nodeCapacities() {
+        return nodeCapacities;
+    }
+
+    void nodeCapacities(Map<Address, Double> nodeCapacities) {
+        this.nodeCapacities = nodeCapacities;
+    }
+
+    // Messages per minute per shard.
+    Map<String, Long> shardRates() {
+        return shardRates;
+    }
+
+    void shardRates(Map<String, Long> shardRates) {
+        this.shardRates = shardRates;
+    }
+
+    static class Id extends AbstractExtensionId<ShardLoad> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public ShardLoad createExtension(ExtendedActorSystem system) {
+            return new ShardLoad(system);
+        }
+    }
+}
@@ -0,0 +1,129 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Address;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.LWWMap;
+import akka.cluster.ddata.LWWMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.metrics.ClusterMetricsChanged;
+import akka.cluster.metrics.ClusterMetricsExtension;
+import akka.cluster.metrics.MixMetricsSelector;
+import scala.collection.JavaConverters;
+
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+// Keeps the ShardLoad view up to date on every node. Node capacities come from the cluster metrics, combining heap
+// and cpu usage. Shard message rates are published by the node that hosts the shard in a replicated map. A shard
+// without messages since the last publish has no rate: its entry is removed, as are all entries of a node that
+// stops. An entry that another node has since published, a shard that moved, is kept.
+class ShardLoadActor extends AbstractLoggingActor {
+    private static final Key<LWWMap<String, Long>> shardRatesKey = LWWMapKey.create("entity-shard-rates");
+
+    private final ShardLoad shardLoad = ShardLoad.get(context().system());
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final Duration publishInterval;
+    private final Map<String, Long> published = new HashMap<>();
+    private long lastPublish = System.nanoTime();
+    private Cancellable publisher;
+
+    private ShardLoadActor() {
+        publishInterval = context().system().settings().config().getDuration("entity-shard-allocation.publish-interval");
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("publish", p -> publish())
+                .match(ClusterMetricsChanged.class, this::clusterMetricsChanged)
+                .match(Replicator.Changed.class, this::changed)
+                .match(Replicator.UpdateSuccess.class, u -> {})
+                .match(Replicator.UpdateFailure.class, f -> log().warning("Publish shard rates failed {}", f))
+                .build();
+    }
+
+    private void clusterMetricsChanged(ClusterMetricsChanged clusterMetricsChanged) {
+        final Map<Address, Double> nodeCapacities = new HashMap<>();
+        JavaConverters.mapAsJavaMapConverter(MixMetricsSelector.getInstance().capacity(clusterMetricsChanged.nodeMetrics()))
+                .asJava()
+                .forEach((address, capacity) -> nodeCapacities.put(address, (Double) capacity));
+        shardLoad.nodeCapacities(nodeCapacities);
+    }
+
+    @SuppressWarnings("unchecked")
+    private void changed(Replicator.Changed<?> changed) {
+        shardLoad.shardRates(((LWWMap<String, Long>) changed.dataValue()).getEntries());
+    }
+
+    private void publish() {
+        final long now = System.nanoTime();
+        final double minutes = (now - lastPublish) / 60e9;
+        lastPublish = now;
+        final Map<String, Long> rates = new HashMap<>();
+        shardLoad.drainMessageCounts().forEach((shardId, count) -> {
+            if (count > 0) {
+                rates.put(shardId, Math.round(count / minutes));
+            }
+        });
+        final Map<String, Long> silent = new HashMap<>(published);
+        silent.keySet().removeAll(rates.keySet());
+        published.keySet().removeAll(silent.keySet());
+        published.putAll(rates);
+        if (!rates.isEmpty() || !silent.isEmpty()) {
+            replicator.tell(update(rates, silent), self());
+        }
+    }
+
+    private Replicator.Update<LWWMap<String, Long>> update(Map<String, Long> rates, Map<String, Long> removed) {
+        return new Replicator.Update<>(shardRatesKey, LWWMap.create(), Replicator.writeLocal(), map -> {
+            final Map<String, Long> entries = map.getEntries();
+            LWWMap<String, Long> updated = map;
+            for (Map.Entry<String, Long> rate : rates.entrySet()) {
+                updated = updated.put(node, rate.getKey(), rate.getValue());
+            }
+            for (Map.Entry<String, Long> entry : removed.entrySet()) {
+                if (entry.getValue().equals(entries.get(entry.getKey()))) {
+                    updated = updated.remove(node, entry.getKey());
+                }
+            }
+            return updated;
+        });
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        ClusterMetricsExtension.get(context().system()).subscribe(self());
+        replicator.tell(new Replicator.Subscribe<>(shardRatesKey, self()), self());
+        publisher = context().system().scheduler().schedule(
+                publishInterval,
+                publishInterval,
+                self(),
+                "publish",
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        ClusterMetricsExtension.get(context().system()).unsubscribe(self());
+        publisher.cancel();
+        if (!published.isEmpty()) {
+            replicator.tell(update(new HashMap<>(), new HashMap<>(published)), ActorRef.noSender());
+        }
+    }
+
+    static Props props() {
+        return Props.create(ShardLoadActor.class);
+    }
+}
@@ -0,0 +1,101 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.PriorityQueue;
+
+// Runs one scan of one shard as a child of the shard entity: asks every resident entity of the shard, aggregates
+// the answers and replies with one ScanAck. Only the aggregate leaves the node, at most limit entities. Entities that
+// do not answer within entity-scan.shard-timeout are left out and make the result of the shard partial.
+class ShardScanActor extends AbstractLoggingActor {
+    private final EntityMessage.Scan scan;
+    private final ActorRef requester;
+    private final String shardKey;
+    private final Duration shardTimeout;
+    private final List<Entity> filtered = new ArrayList<>();
+    private final PriorityQueue<Entity> top;
+    private int resident;
+    private int answered;
+    private int matched;
+    private Cancellable timeout;
+
+    private ShardScanActor(EntityMessage.Scan scan, ActorRef requester, String shardKey) {
+        this.scan = scan;
+        this.requester = requester;
+        this.shardKey = shardKey;
+        shardTimeout = context().system().settings().config().getDuration("entity-scan.shard-timeout");
+        // The head is the lowest of the top entities, the one to replace.
+        top = new PriorityQueue<>(Math.max(1, scan.limit), EntityMessage.Scan.byValueDescending.reversed());
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .match(Entity.class, this::matched)
+                .matchEquals(EntityMessage.ScanEntity.matched, m -> matched(null))
+                .matchEquals(EntityMessage.ScanEntity.noMatch, n -> answered())
+                .matchEquals("timeout", t -> reply())
+                .build();
+    }
+
+    private void matched(Entity entity) {
+        matched++;
+        if (entity != null && scan.aggregate == EntityMessage.Scan.aggregateFilter && filtered.size() < scan.limit) {
+            filtered.add(entity);
+        } else if (entity != null && scan.aggregate == EntityMessage.Scan.aggregateTop && scan.limit > 0) {
+            top.add(entity);
+            if (top.size() > scan.limit) {
+                top.poll();
+            }
+        }
+        answered();
+    }
+
+    private void answered() {
+        if (++answered == resident) {
+            reply();
+        }
+    }
+
+    private void reply() {
+        final List<Entity> entities = new ArrayList<>(scan.aggregate == EntityMessage.Scan.aggregateTop ? top : filtered);
+        if (scan.aggregate == EntityMessage.Scan.aggregateTop) {
+            entities.sort(EntityMessage.Scan.byValueDescending);
+        }
+        requester.tell(new EntityMessage.ScanAck(scan.scanId, scan.shardId, resident, answered, matched, entities), self());
+        context().stop(self());
+    }
+
+    @Override
+    public void preStart() {
+        final List<ActorRef> entities = ResidentEntities.get(context().system()).entities(shardKey);
+        resident = entities.size();
+        if (resident == 0) {
+            reply();
+            return;
+        }
+        final EntityMessage.ScanEntity scanEntity = new EntityMessage.ScanEntity(scan);
+        entities.forEach(entity -> entity.tell(scanEntity, self()));
+        timeout = context().system().scheduler().scheduleOnce(shardTimeout, self(), "timeout", context().dispatcher(), null);
+    }
+
+    @Override
+    public void postStop() {
+        if (timeout != null) {
+            timeout.cancel();
+        }
+        if (answered < resident) {
+            log().debug("{} of {} entities of shard {} did not answer {}", resident - answered, resident, scan.shardId, scan);
+        }
+    }
+
+    static Props props(EntityMessage.Scan scan, ActorRef requester, String shardKey) {
+        return Props.create(ShardScanActor.class, scan, requester, shardKey).withDispatcher("entity-dispatcher");
+    }
+}
@@ -0,0 +1,360 @@
+package cluster.sharding;
+
+import akka.actor.AbstractActor;
+import akka.actor.ActorSystem;
+import akka.actor.Address;
+import akka.actor.CoordinatedShutdown;
+import akka.actor.DeadLetter;
+import akka.actor.Props;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.pattern.Patterns;
+import com.typesafe.config.Config;
+import com.typesafe.config.ConfigFactory;
+import org.HdrHistogram.Histogram;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+// Runs a cluster of N nodes in one JVM with a configurable workload and adds, removes or crashes nodes at set times to
+// trigger rebalancing. Every report interval it prints the node count, shards per node, commands and queries per
+// second, their latency percentiles, the dead letters and the reliable delivery redeliveries and duplicates. At the end
+// it prints the totals and, for every node change, how long the shard allocation took to settle, how many shards moved
+// and the commands per second before and after the change.
+public class Simulation {
+    private static final double nanosPerMilli = 1e6;
+
+    private final Config config;
+    private final int initialNodes;
+    private final Duration duration;
+    private final Duration reportInterval;
+    private final Duration settleTime;
+    private final List<Event> events = new ArrayList<>();
+    private final Map<String, ActorSystem> nodes = new LinkedHashMap<>();
+    private final Map<String, LongAdder> deadLetters = new HashMap<>();
+    private final Map<String, Totals> removedTotals = new HashMap<>();
+    private final List<Rebalance> rebalances = new ArrayList<>();
+    private Map<String, Address> allocation = new HashMap<>();
+    private long allocationChanged;
+    private double commandsPerSecond;
+    private int nextPort;
+    private long start;
+
+    private Simulation(Config config) {
+        this.config = config;
+        initialNodes = config.getInt("nodes");
+        duration = config.getDuration("duration");
+        reportInterval = config.getDuration("report-interval");
+        settleTime = config.getDuration("rebalance-settle-time");
+        config.getConfigList("events").forEach(event -> events.add(new Event(event.getDuration("at"), event.getString("action"))));
+        events.sort(Comparator.comparing(event -> event.at));
+        nextPort = config.getInt("first-port");
+    }
+
+    public static void main(String[] args) throws Exception {
+        new Simulation(ConfigFactory.load().getConfig(args.length > 0 ? args[0] : "entity-simulation")).run();
+    }
+
+    private void run() throws Exception {
+        System.out.printf("Simulation of %d nodes for %s, events %s%n", initialNodes, duration, events);
+        for (int i = 0; i < initialNodes; i++) {
+            addNode();
+        }
+        start = System.nanoTime();
+        long nextReport = reportInterval.toNanos();
+        Totals reported = totals();
+        while (elapsed() < duration.toNanos()) {
+            Thread.sleep(1000);
+            while (!events.isEmpty() && elapsed() >= events.get(0).at.toNanos()) {
+                membershipChange(events.remove(0));
+            }
+            pollAllocation();
+            pollThroughput();
+            if (elapsed() >= nextReport) {
+                final Totals totals = totals();
+                final Totals interval = totals.minus(reported);
+                commandsPerSecond = interval.commands.getTotalCount() * 1e9 / reportInterval.toNanos();
+                report(interval, reportInterval.toNanos());
+                reported = totals;
+                nextReport += reportInterval.toNanos();
+            }
+        }
+        finalReport(totals());
+        new ArrayList<>(nodes.keySet()).forEach(this::removeNode);
+        System.exit(0);
+    }
+
+    private void addNode() {
+        final String port = String.valueOf(nextPort++);
+        final Config workload = config.getConfig("workload");
+        final String loadConfig = String.format("rate = %s, max-outstanding = %d, keys { from = 1, to = %d }",
+                workload.getDouble("rate"), workload.getInt("max-outstanding"), workload.getInt("entities"));
+        // Terminating a node does not run coordinated shutdown, so a crashed node does not leave the cluster.
+        final ActorSystem actorSystem = Runner.startupClusterNode(port, false, config.getConfig("node-config").withFallback(ConfigFactory.parseString(
+                String.format("entity-command-load { %s, delivery = \"%s\" }%n", loadConfig, workload.getString("delivery")) +
+                        String.format("akka.coordinated-shutdown.run-by-actor-system-terminate = off%n") +
+                        String.format("entity-query-load { %s }%n", loadConfig) +
+                        String.format("entity-latency.publish-interval = 1s%n") +
+                        String.format("akka.management.http.port = %d%n", Integer.parseInt(port) + 6000))));
+        final LongAdder counter = new LongAdder();
+        actorSystem.eventStream().subscribe(actorSystem.actorOf(DeadLetterCounter.props(counter), "deadLetterCounter"), DeadLetter.class);
+        nodes.put(port, actorSystem);
+        deadLetters.put(port, counter);
+    }
+
+    // The newest node leaves the cluster gracefully, so its shards are handed off. The seed nodes are never removed.
+    private void removeNode(String port) {
+        final ActorSystem actorSystem = nodes.remove(port);
+        removedTotals.put(port, totals(port, actorSystem));
+        try {
+            CoordinatedShutdown.get(actorSystem).runAll(CoordinatedShutdown.unknownReason()).toCompletableFuture().get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.printf("Node %s did not shut down in time, %s%n", port, e);
+        }
+    }
+
+    // The newest node stops without leaving the cluster or handing off its shards. It is then downed from the first node,
+    // as a downing provider would, and its shards are allocated again. Messages to its shards until then are lost.
+    private void crashNode(String port) {
+        final ActorSystem actorSystem = nodes.remove(port);
+        removedTotals.put(port, totals(port, actorSystem));
+        final Address address = Cluster.get(actorSystem).selfAddress();
+        try {
+            actorSystem.terminate();
+            actorSystem.getWhenTerminated().toCompletableFuture().get(30, TimeUnit.SECONDS);
+        } catch (Exception e) {
+            System.out.printf("Node %s did not stop in time, %s%n", port, e);
+        }
+        Cluster.get(nodes.values().iterator().next()).down(address);
+    }
+
+    private void membershipChange(Event event) {
+        final Rebalance rebalance = new Rebalance(event, System.nanoTime(), new HashMap<>(allocation), totals().commands.getTotalCount(), commandsPerSecond);
+        switch (event.action) {
+            case "add":
+                addNode();
+                break;
+            case "remove":
+            case "crash":
+                final List<String> ports = new ArrayList<>(nodes.keySet());
+                if (ports.size() <= 2) {
+                    System.out.printf("%s skipped, the seed nodes are not removed%n", event);
+                    return;
+                }
+                if (event.action.equals("remove")) {
+                    removeNode(ports.get(ports.size() - 1));
+                } else {
+                    crashNode(ports.get(ports.size() - 1));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException(String.format("Unknown simulation event action '%s'", event.action));
+        }
+        rebalances.add(rebalance);
+        System.out.printf("%s, %d nodes%n", event, nodes.size());
+    }
+
+    // The allocation is settled when it has not changed for the settle time. The rebalance duration is the time from
+    // the node change to the last allocation change.
+    private void pollAllocation() {
+        final Map<String, Address> current = allocation();
+        final long now = System.nanoTime();
+        if (current == null) {
+            return;
+        }
+        if (!current.equals(allocation)) {
+            allocation = current;
+            allocationChanged = now;
+        }
+        rebalances.stream()
+                .filter(rebalance -> rebalance.settled < 0 && now - allocationChanged >= settleTime.toNanos() && now - rebalance.start >= settleTime.toNanos())
+                .forEach(rebalance -> {
+                    rebalance.settled = Math.max(rebalance.start, allocationChanged);
+                    rebalance.moved = (int) allocation.entrySet().stream()
+                            .filter(shard -> rebalance.before.containsKey(shard.getKey()) && !shard.getValue().equals(rebalance.before.get(shard.getKey())))
+                            .count();
+                });
+    }
+
+    // The commands per second over the settle time after each node change.
+    private void pollThroughput() {
+        final long now = System.nanoTime();
+        rebalances.stream()
+                .filter(rebalance -> rebalance.commandsPerSecondAfter < 0 && now - rebalance.start >= settleTime.toNanos())
+                .forEach(rebalance -> rebalance.commandsPerSecondAfter =
+                        (totals().commands.getTotalCount() - rebalance.commandsAtStart) * 1e9 / (now - rebalance.start));
+    }
+
+    // The node of each allocated shard, from the sharding stats of the first node.
+    private Map<String, Address> allocation() {
+        if (nodes.isEmpty()) {
+            return null;
+        }
+        final ActorSystem actorSystem = nodes.values().iterator().next();
+        try {
+            final ShardRegion.ClusterShardingStats stats = (ShardRegion.ClusterShardingStats) Patterns.ask(
+                    ClusterSharding.get(actorSystem).shardRegion(EntityMessage.typeName),
+                    new ShardRegion.GetClusterShardingStats(FiniteDuration.create(3, TimeUnit.SECONDS)),
+                    Duration.ofSeconds(5)).toCompletableFuture().get(5, TimeUnit.SECONDS);
+            final Map<String, Address> shards = new HashMap<>();
+            stats.getRegions().forEach((address, regionStats) -> regionStats.getStats().keySet().forEach(shardId -> shards.put(shardId, address)));
+            return shards;
+        } catch (Exception e) {
+            return null;
+        }
+    }
+
+    private Totals totals() {
+        final Totals totals = new Totals();
+        removedTotals.values().forEach(totals::add);
+        nodes.forEach((port, actorSystem) -> totals.add(totals(port, actorSystem)));
+        return totals;
+    }
+
+    private Totals totals(String port, ActorSystem actorSystem) {
+        final Totals totals = new Totals();
+        final Latencies latencies = Latencies.get(actorSystem);
+        totals.commands.add(latencies.cumulative(Latencies.Outcome.INIT));
+        totals.commands.add(latencies.cumulative(Latencies.Outcome.UPDATE));
+        totals.commands.add(latencies.cumulative(Latencies.Outcome.CUMULATIVE_ACK));
+        totals.queries.add(latencies.cumulative(Latencies.Outcome.QUERY_HIT));
+        totals.queries.add(latencies.cumulative(Latencies.Outcome.QUERY_MISS));
+        totals.deadLetters = deadLetters.get(port).sum();
+        final EntityStats entityStats = EntityStats.get(actorSystem);
+        totals.redelivered = entityStats.redelivered.sum();
+        totals.duplicates = entityStats.duplicates.sum();
+        return totals;
+    }
+
+    private void report(Totals interval, long nanos) {
+        final Map<Address, Integer> shardsPerNode = new TreeMap<>(Comparator.comparing(Address::toString));
+        allocation.values().forEach(address -> shardsPerNode.merge(address, 1, Integer::sum));
+        System.out.printf("%4ds nodes %d, shards per node %s, commands %s, queries %s, dead letters %d, redelivered %d, duplicates %d%n",
+                TimeUnit.NANOSECONDS.toSeconds(elapsed()), nodes.size(), shardsPerNode.values(),
+                summary(interval.commands, nanos), summary(interval.queries, nanos), interval.deadLetters,
+                interval.redelivered, interval.duplicates);
+    }
+
+    private void finalReport(Totals totals) {
+        final long nanos = elapsed();
+        System.out.printf("%nSimulation report, %ds, %d to %d nodes, %d entities%n", TimeUnit.NANOSECONDS.toSeconds(nanos),
+                initialNodes, nodes.size(), config.getInt("workload.entities"));
+        System.out.printf("  commands     %s%n", summary(totals.commands, nanos));
+        System.out.printf("  queries      %s%n", summary(totals.queries, nanos));
+        System.out.printf("  dead letters %d%n", totals.deadLetters);
+        System.out.printf("  redelivered  %d commands, %d duplicates suppressed%n", totals.redelivered, totals.duplicates);
+        rebalances.forEach(rebalance -> System.out.printf("  %s: %s, %s%n", rebalance.event, rebalance.settled < 0
+                ? "allocation not settled by the end of the run"
+                : String.format("allocation settled after %.1fs, %d shards moved",
+                (rebalance.settled - rebalance.start) / 1e9, rebalance.moved),
+                rebalance.commandsPerSecondAfter < 0 || rebalance.commandsPerSecondBefore <= 0
+                        ? "no throughput comparison"
+                        : String.format("commands %.0f/s before, %.0f/s in the %ds after (%+.1f%%)",
+                        rebalance.commandsPerSecondBefore, rebalance.commandsPerSecondAfter, settleTime.getSeconds(),
+                        100.0 * (rebalance.commandsPerSecondAfter / rebalance.commandsPerSecondBefore - 1))));
+    }
+
+    private static String summary(Histogram histogram, long nanos) {
+        return String.format("%.0f/s p50 %.3fms p99 %.3fms p99.9 %.3fms max %.3fms",
+                histogram.getTotalCount() * 1e9 / nanos,
+                histogram.getValueAtPercentile(50.0) / nanosPerMilli,
+                histogram.getValueAtPercentile(99.0) / nanosPerMilli,
+                histogram.getValueAtPercentile(99.9) / nanosPerMilli,
+                histogram.getMaxValue() / nanosPerMilli);
+    }
+
+    private long elapsed() {
+        return System.nanoTime() - start;
+    }
+
+    private static class Event {
+        final Duration at;
+        final String action;
+
+        Event(Duration at, String action) {
+            this.at = at;
+            this.action = action;
+        }
+
+        @Override
+        public String toString() {
+            return String.format("%s at %ds", action, at.getSeconds());
+        }
+    }
+
+    private static class Rebalance {
+        final Event event;
+        final long start;
+        final Map<String, Address> before;
+        final long commandsAtStart;
+        final double commandsPerSecondBefore;
+        long settled = -1;
+        int moved;
+        double commandsPerSecondAfter = -1;
+
+        Rebalance(Event event, long start, Map<String, Address> before, long commandsAtStart, double commandsPerSecondBefore) {
+            this.event = event;
+            this.start = start;
+            this.before = before;
+            this.commandsAtStart = commandsAtStart;
+            this.commandsPerSecondBefore = commandsPerSecondBefore;
+        }
+    }
+
+    // Cumulative counts of all nodes. Histograms have the same range as the Latencies histograms.
+    private static class Totals {
+        final Histogram commands = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+        final Histogram queries = new Histogram(TimeUnit.MINUTES.toNanos(1), 3);
+        long deadLetters;
+        long redelivered;
+        long duplicates;
+
+        void add(Totals totals) {
+            commands.add(totals.commands);
+            queries.add(totals.queries);
+            deadLetters += totals.deadLetters;
+            redelivered += totals.redelivered;
+            duplicates += totals.duplicates;
+        }
+
+        Totals minus(Totals totals) {
+            final Totals difference = new Totals();
+            difference.add(this);
+            difference.commands.subtract(totals.commands);
+            difference.queries.subtract(totals.queries);
+            difference.deadLetters -= totals.deadLetters;
+            difference.redelivered -= totals.redelivered;
+            difference.duplicates -= totals.duplicates;
+            return difference;
+        }
+    }
+
+    private static class DeadLetterCounter extends AbstractActor {
+        private final LongAdder counter;
+
+        private DeadLetterCounter(LongAdder counter) {
+            this.counter = counter;
+        }
+
+        @Override
+        public Receive createReceive() {
+            return receiveBuilder()
+                    .match(DeadLetter.class, deadLetter -> counter.increment())
+                    .build();
+        }
+
+        static Props props(LongAdder counter) {
+            return Props.create(DeadLetterCounter.class, counter);
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.cluster.Cluster;
+import akka.cluster.sharding.ClusterSharding;
+import akka.cluster.sharding.ShardRegion;
+import akka.http.javadsl.model.ContentTypes;
+import akka.http.javadsl.model.HttpEntities;
+import akka.http.javadsl.model.HttpResponse;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+import akka.pattern.Patterns;
+import scala.concurrent.duration.FiniteDuration;
+
+import java.time.Duration;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Collectors;
+
+// GET /stats          the shards of this node with their entity counts, command and query rates, and the hot keys
+// GET /stats/cluster  the shards and entity counts of every node, from the cluster sharding stats
+public class StatsRoutes extends AllDirectives implements ManagementRouteProvider {
+    private static final Duration timeout = Duration.ofSeconds(5);
+
+    private final ActorSystem system;
+    private final EntityStats entityStats;
+
+    public StatsRoutes(ExtendedActorSystem system) {
+        this.system = system;
+        entityStats = EntityStats.get(system);
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        return get(() -> concat(
+                path("stats", () -> completeWithFuture(nodeStats())),
+                pathPrefix("stats", () -> path("cluster", () -> completeWithFuture(clusterStats())))));
+    }
+
+    private CompletionStage<HttpResponse> nodeStats() {
+        final EntityStats.Snapshot snapshot = entityStats.snapshot();
+        return Patterns.ask(shardRegion(), ShardRegion.getShardRegionStateInstance(), timeout).handle((reply, e) -> {
+            if (!(reply instanceof ShardRegion.CurrentShardRegionState)) {
+                return unavailable();
+            }
+            final Map<String, Integer> entities = new TreeMap<>();
+            ((ShardRegion.CurrentShardRegionState) reply).getShards()
+                    .forEach(shard -> entities.put(shard.shardId(), shard.getEntityIds().size()));
+            snapshot.shards.keySet().forEach(shardId -> entities.putIfAbsent(shardId, 0));
+
+            final double commands = snapshot.shards.values().stream().mapToDouble(rates -> rates.commandsPerSecond).sum();
+            final double queries = snapshot.shards.values().stream().mapToDouble(rates -> rates.queriesPerSecond).sum();
+            final String shards = entities.entrySet().stream()
+                    .map(shard -> {
+                        final EntityStats.Rates rates = snapshot.shards.getOrDefault(shard.getKey(), new EntityStats.Rates(0, 0));
+                        return String.format(Locale.ROOT, "{\"id\": %s, \"entities\": %d, \"commands-per-second\": %.1f, \"queries-per-second\": %.1f}",
+                                EntityRoutes.json(shard.getKey()), shard.getValue(), rates.commandsPerSecond, rates.queriesPerSecond);
+                    })
+                    .collect(Collectors.joining(", "));
+            final String hotKeys = snapshot.hotKeys.stream()
+                    .map(hotKey -> String.format(Locale.ROOT, "{\"id\": %s, \"messages-per-second\": %.1f, \"error-per-second\": %.1f}",
+                            EntityRoutes.json(hotKey.id), hotKey.perSecond, hotKey.errorPerSecond))
+                    .collect(Collectors.joining(", "));
+            return json(String.format(Locale.ROOT,
+                    "{\"node\": %s, \"entities\": %d, \"commands-per-second\": %.1f, \"queries-per-second\": %.1f, \"redelivered\": %d, \"duplicates\": %d, \"shards\": [%s], \"hot-keys\": [%s]}",
+                    EntityRoutes.json(Cluster.get(system).selfAddress().toString()),
+                    entities.values().stream().mapToInt(Integer::intValue).sum(), commands, queries,
+                    entityStats.redelivered.sum(), entityStats.duplicates.sum(), shards, hotKeys));
+        });
+    }
+
+    private CompletionStage<HttpResponse> clusterStats() {
+        final ShardRegion.GetClusterShardingStats getStats = new ShardRegion.GetClusterShardingStats(
+                FiniteDuration.create(timeout.toMillis() - 1000, TimeUnit.MILLISECONDS));
+        return Patterns.ask(shardRegion(), getStats, timeout).handle((reply, e) -> {
+            if (!(reply instanceof ShardRegion.ClusterShardingStats)) {
+                return unavailable();
+            }
+            final Map<String, ShardRegion.ShardRegionStats> regions = new TreeMap<>();
+            ((ShardRegion.ClusterShardingStats) reply).getRegions().forEach((address, stats) -> regions.put(address.toString(), stats));
+            return json(String.format("{\"nodes\": [%s]}", regions.entrySet().stream()
+                    .map(region -> {
+                        final Map<String, Object> shards = new TreeMap<>(region.getValue().getStats());
+                        return String.format("{\"node\": %s, \"shards\": %d, \"entities\": %d, \"entities-per-shard\": {%s}}",
+                                EntityRoutes.json(region.getKey()), shards.size(),
+                                shards.values().stream().mapToInt(count -> (Integer) count).sum(),
+                                shards.entrySet().stream()
+                                        .map(shard -> String.format("%s: %s", EntityRoutes.json(shard.getKey()), shard.getValue()))
+                                        .collect(Collectors.joining(", ")));
+                    })
+                    .collect(Collectors.joining(", "))));
+        });
+    }
+
+    private ActorRef shardRegion() {
+        return ClusterSharding.get(system).shardRegion(EntityMessage.typeName);
+    }
+
+    private static HttpResponse json(String json) {
+        return HttpResponse.create().withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, json));
+    }
+
+    private static HttpResponse unavailable() {
+        return HttpResponse.create().withStatus(StatusCodes.SERVICE_UNAVAILABLE)
+                .withEntity(HttpEntities.create(ContentTypes.APPLICATION_JSON, "{\"error\": \"No sharding stats within the timeout\"}"));
+    }
+}
@@ -0,0 +1,40 @@
+package cluster.sharding;
+
+import akka.actor.ExtendedActorSystem;
+import akka.http.javadsl.model.StatusCodes;
+import akka.http.javadsl.server.AllDirectives;
+import akka.http.javadsl.server.PathMatchers;
+import akka.http.javadsl.server.Route;
+import akka.management.javadsl.ManagementRouteProvider;
+import akka.management.javadsl.ManagementRouteProviderSettings;
+
+import java.util.Arrays;
+
+public class TraceRoutes extends AllDirectives implements ManagementRouteProvider {
+    private final MessageTrace messageTrace;
+
+    public TraceRoutes(ExtendedActorSystem system) {
+        messageTrace = MessageTrace.get(system);
+    }
+
+    @Override
+    public Route routes(ManagementRouteProviderSettings settings) {
+        final Route dump = path("trace", () ->
+                get(() -> complete(String.format("mode %s%n%s", messageTrace.mode(), messageTrace.dump()))));
+
+        if (settings.readOnly()) {
+            return dump;
+        }
+
+        final Route switchMode = path(PathMatchers.segment("trace").slash("mode").slash(PathMatchers.segment()), mode ->
+                put(() -> {
+                    if (Arrays.stream(MessageTrace.Mode.values()).noneMatch(m -> m.toString().equals(mode))) {
+                        return complete(StatusCodes.BAD_REQUEST, String.format("Unknown trace mode '%s'", mode));
+                    }
+                    messageTrace.mode(MessageTrace.Mode.of(mode));
+                    return complete(String.format("mode %s%n", messageTrace.mode()));
+                }));
+
+        return concat(dump, switchMode);
+    }
+}
@@ -0,0 +1,101 @@
+package cluster.sharding;
+
+import akka.actor.AbstractExtensionId;
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.ExtendedActorSystem;
+import akka.actor.Extension;
+import akka.actor.ExtensionIdProvider;
+import com.typesafe.config.Config;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Set;
+
+// The most recently active entities of each shard hosted on this node, at most max-entities-per-shard per shard.
+// Entities report when they start and stop, the WarmStartActor publishes the changed shards.
+class WarmStart implements Extension {
+    private final boolean enabled;
+    private final int maxEntitiesPerShard;
+    private final Map<String, LinkedHashMap<String, Boolean>> recentEntities = new HashMap<>();
+    private final Set<String> changedShards = new HashSet<>();
+
+    private WarmStart(ExtendedActorSystem system) {
+        final Config config = system.settings().config().getConfig("entity-warm-start");
+        // Without persistence a warm started entity has no state to recover, starting it early saves next to nothing.
+        enabled = config.getBoolean("enabled") && system.settings().config().getBoolean("entity-persistence.enabled");
+        maxEntitiesPerShard = config.getInt("max-entities-per-shard");
+    }
+
+    static WarmStart get(ActorSystem system) {
+        return Id.instance.get(system);
+    }
+
+    boolean isEnabled() {
+        return enabled;
+    }
+
+    // The entity actor name is its URL encoded entity id and its parent is the shard, named by the shard id.
+    // Warm starts go through the shard region of the entity type, the other entity types are not tracked.
+    void entityActive(ActorRef entity) {
+        final String entityId = decode(entity.path().name());
+        if (EntityMessage.isShardEntityId(entityId) || !EntityMessage.entityType(entity).equals(EntityMessage.typeName)) {
+            return;
+        }
+        entityActive(entity.path().parent().name(), entityId);
+    }
+
+    private synchronized void entityActive(String shardId, String entityId) {
+        final LinkedHashMap<String, Boolean> entities = recentEntities.computeIfAbsent(shardId, id -> new LinkedHashMap<>(16, 0.75f, true));
+        if (entities.put(entityId, Boolean.TRUE) == null) {
+            if (entities.size() > maxEntitiesPerShard) {
+                entities.remove(entities.keySet().iterator().next());
+            }
+            changedShards.add(shardId);
+        }
+    }
+
+    // Returns the current entities of the shards that changed since the last call, most recently active last.
+    synchronized Map<String, Set<String>> changes() {
+        final Map<String, Set<String>> changes = new HashMap<>();
+        changedShards.forEach(shardId -> changes.put(shardId, new LinkedHashSet<>(recentEntities.get(shardId).keySet())));
+        changedShards.clear();
+        return changes;
+    }
+
+    synchronized void forget(String shardId) {
+        recentEntities.remove(shardId);
+        changedShards.remove(shardId);
+    }
+
+    private static String decode(String name) {
+        try {
+            return URLDecoder.decode(name, StandardCharsets.UTF_8.name());
+        } catch (UnsupportedEncodingException e) {
+            return name;
+        }
+    }
+
+    static class Id extends AbstractExtensionId<WarmStart> implements ExtensionIdProvider {
+        static final Id instance = new Id();
+
+        private Id() {
+        }
+
+        @Override
+        public Id lookup() {
+            return instance;
+        }
+
+        @Override
+        public WarmStart createExtension(ExtendedActorSystem system) {
+            return new WarmStart(system);
+        }
+    }
+}
@@ -0,0 +1,176 @@
+package cluster.sharding;
+
+import akka.actor.AbstractLoggingActor;
+import akka.actor.ActorRef;
+import akka.actor.Cancellable;
+import akka.actor.Props;
+import akka.cluster.ddata.DistributedData;
+import akka.cluster.ddata.Key;
+import akka.cluster.ddata.ORMultiMap;
+import akka.cluster.ddata.ORMultiMapKey;
+import akka.cluster.ddata.Replicator;
+import akka.cluster.ddata.SelfUniqueAddress;
+import akka.cluster.sharding.ShardRegion;
+import com.typesafe.config.Config;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+// Pre-starts the recently active entities of shards that are allocated to this node.
+// Each node publishes the recent entities of its shards in a replicated map, so when a shard moves to another node,
+// after a rebalance or a restart, the new node starts the entities that were active at the old node. Entity starts
+// are rate limited so that taking over many shards does not start all their entities at once, and the pending starts
+// of a shard are dropped when the shard leaves this node before they are due.
+// The map is not durable, the entities are forgotten when the whole cluster is restarted.
+class WarmStartActor extends AbstractLoggingActor {
+    private static final Key<ORMultiMap<String, String>> recentEntitiesKey = ORMultiMapKey.create("entity-warm-start");
+
+    private final ActorRef shardRegion;
+    private final WarmStart warmStart = WarmStart.get(context().system());
+    private final ActorRef replicator = DistributedData.get(context().system()).replicator();
+    private final SelfUniqueAddress node = DistributedData.get(context().system()).selfUniqueAddress();
+    private final Duration shardCheckInterval;
+    private final Duration publishInterval;
+    private final Duration startInterval;
+    private final double startsPerInterval;
+    private Map<String, Set<String>> recentEntities = Collections.emptyMap();
+    private Set<String> shards = Collections.emptySet();
+    private final Map<String, Queue<String>> pendingStarts = new LinkedHashMap<>();
+    private final Map<String, long[]> warmingShards = new HashMap<>();
+    private double startBudget;
+    private Cancellable shardChecker;
+    private Cancellable publisher;
+    private Cancellable starter;
+
+    private WarmStartActor(ActorRef shardRegion) {
+        this.shardRegion = shardRegion;
+        final Config config = context().system().settings().config().getConfig("entity-warm-start");
+        shardCheckInterval = config.getDuration("shard-check-interval");
+        publishInterval = config.getDuration("publish-interval");
+        startInterval = config.getDuration("start-interval");
+        startsPerInterval = config.getDouble("starts-per-second") * startInterval.toNanos() / 1e9;
+    }
+
+    @Override
+    public Receive createReceive() {
+        return receiveBuilder()
+                .matchEquals("checkShards", c -> shardRegion.tell(ShardRegion.getShardRegionStateInstance(), self()))
+                .matchEquals("publish", p -> publish())
+                .matchEquals("start", s -> start())
+                .match(ShardRegion.CurrentShardRegionState.class, this::shardRegionState)
+                .match(Replicator.Changed.class, this::changed)
+                .match(Replicator.UpdateSuccess.class, u -> {})
+                .match(Replicator.UpdateFailure.class, f -> log().warning("Publish recent entities failed {}", f))
+                .match(ShardRegion.StartEntityAck.class, this::started)
+                .build();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void changed(Replicator.Changed<?> changed) {
+        recentEntities = ((ORMultiMap<String, String>) changed.dataValue()).getEntries();
+    }
+
+    private void shardRegionState(ShardRegion.CurrentShardRegionState state) {
+        final Set<String> current = state.getShards().stream().map(ShardRegion.ShardState::shardId).collect(Collectors.toSet());
+        shards.stream().filter(shardId -> !current.contains(shardId)).forEach(shardId -> {
+            warmStart.forget(shardId);
+            warmingShards.remove(shardId);
+            final Queue<String> dropped = pendingStarts.remove(shardId);
+            if (dropped != null) {
+                log().info("Shard {} left, {} warm starts dropped", shardId, dropped.size());
+            }
+        });
+        current.stream().filter(shardId -> !shards.contains(shardId)).forEach(this::warm);
+        shards = current;
+    }
+
+    private void warm(String shardId) {
+        final Set<String> entityIds = recentEntities.getOrDefault(shardId, Collections.emptySet());
+        if (!entityIds.isEmpty()) {
+            log().info("Warm start shard {} with {} entities", shardId, entityIds.size());
+            pendingStarts.put(shardId, new ArrayDeque<>(entityIds));
+            warmingShards.put(shardId, new long[] { System.nanoTime(), entityIds.size() });
+        }
+    }
+
+    // Shards are warmed in the order they were allocated.
+    private void start() {
+        startBudget = Math.min(startBudget + startsPerInterval, Math.max(1.0, startsPerInterval));
+        final Iterator<Queue<String>> shardStarts = pendingStarts.values().iterator();
+        while (startBudget >= 1.0 && shardStarts.hasNext()) {
+            final Queue<String> entityIds = shardStarts.next();
+            while (startBudget >= 1.0 && !entityIds.isEmpty()) {
+                shardRegion.tell(new ShardRegion.StartEntity(entityIds.poll()), self());
+                startBudget -= 1.0;
+            }
+            if (entityIds.isEmpty()) {
+                shardStarts.remove();
+            }
+        }
+    }
+
+    // Warming holds the start time and the number of entities not yet started.
+    private void started(ShardRegion.StartEntityAck startEntityAck) {
+        final long[] warming = warmingShards.get(startEntityAck.shardId());
+        if (warming != null && --warming[1] == 0) {
+            warmingShards.remove(startEntityAck.shardId());
+            log().info("Warm started shard {} in {}ms", startEntityAck.shardId(), (System.nanoTime() - warming[0]) / 1000000);
+        }
+    }
+
+    private void publish() {
+        final Map<String, Set<String>> changes = warmStart.changes();
+        changes.keySet().retainAll(shards);
+        if (!changes.isEmpty()) {
+            replicator.tell(new Replicator.Update<>(recentEntitiesKey, ORMultiMap.create(), Replicator.writeLocal(),
+                    map -> {
+                        ORMultiMap<String, String> updated = map;
+                        for (Map.Entry<String, Set<String>> shard : changes.entrySet()) {
+                            updated = updated.put(node, shard.getKey(), new HashSet<>(shard.getValue()));
+                        }
+                        return updated;
+                    }), self());
+        }
+    }
+
+    @Override
+    public void preStart() {
+        log().info("Start");
+        replicator.tell(new Replicator.Subscribe<>(recentEntitiesKey, self()), self());
+        shardChecker = schedule(shardCheckInterval, shardCheckInterval, "checkShards");
+        publisher = schedule(publishInterval, publishInterval, "publish");
+        starter = schedule(startInterval, startInterval, "start");
+    }
+
+    @Override
+    public void postStop() {
+        log().info("Stop");
+        shardChecker.cancel();
+        publisher.cancel();
+        starter.cancel();
+    }
+
+    private Cancellable schedule(Duration initialDelay, Duration interval, String message) {
+        return context().system().scheduler().schedule(
+                initialDelay,
+                interval,
+                self(),
+                message,
+                context().system().dispatcher(),
+                null
+        );
+    }
+
+    static Props props(ActorRef shardRegion) {
+        return Props.create(WarmStartActor.class, shardRegion);
+    }
+}
@@ -0,0 +1,136 @@
+package cluster.sharding;
+
+import akka.actor.ActorRef;
+import akka.actor.ActorSystem;
+import akka.actor.Props;
+import com.typesafe.config.ConfigFactory;
+import org.junit.jupiter.api.AfterAll;
+import org.junit.jupiter.api.BeforeAll;
+import org.junit.jupiter.api.Test;
+
+import java.time.Duration;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class DeduplicationTest {
+    private static final int window = 128;
+    private static final Duration idleTimeout = Duration.ofSeconds(32);
+    private static ActorSystem system;
+    private static ActorRef producer;
+    private static ActorRef otherProducer;
+
+    @BeforeAll
+    static void start() {
+        system = ActorSystem.create("deduplication", ConfigFactory.parseString("akka.actor.provider = local")
+                .withFallback(ConfigFactory.defaultReference()));
+        producer = system.actorOf(Props.empty());
+        otherProducer = system.actorOf(Props.empty());
+    }
+
+    @AfterAll
+    static void stop() {
+        system.terminate();
+    }
+
+    private static Deduplication deduplication() {
+        return new Deduplication(window, idleTimeout);
+    }
+
+    @Test
+    void inOrderIdsAreNotDuplicates() {
+        final Deduplication deduplication = deduplication();
+        for (long id = 1; id <= 10 * window; id++) {
+            assertFalse(deduplication.isDuplicate(producer, id, Math.max(1, id - window + 1), 0), "id " + id);
+        }
+    }
+
+    @Test
+    void handledIdsAreDuplicates() {
+        final Deduplication deduplication = deduplication();
+        assertFalse(deduplication.isDuplicate(producer, 1, 1, 0));
+        assertFalse(deduplication.isDuplicate(producer, 2, 1, 0));
+        assertTrue(deduplication.isDuplicate(producer, 1, 1, 0));
+        assertTrue(deduplication.isDuplicate(producer, 2, 1, 0));
+        assertTrue(deduplication.isDuplicate(producer, 2, 1, 0));
+    }
+
+    @Test
+    void outOfOrderIdsWithinTheWindowAreNotDuplicates() {
+        final Deduplication deduplication = deduplication();
+        assertFalse(deduplication.isDuplicate(producer, 5, 1, 0));
+        assertFalse(deduplication.isDuplicate(producer, window, 1, 0));
+        assertFalse(deduplication.isDuplicate(producer, 3, 1, 0));
+        assertFalse(deduplication.isDuplicate(producer, 1, 1, 0));
+        assertTrue(deduplication.isDuplicate(producer, 5, 1, 0));
+        assertTrue(deduplication.isDuplicate(producer, window, 1, 0));
+        assertFalse(deduplication.isDuplicate(producer, 4, 1, 0));
+    }
+
+    @Test
+    void idsBelowAckedBelowAreDuplicates() {
+        final Deduplication deduplication = deduplication();
+        assertFalse(deduplication.isDuplicate(producer, 10, 10, 0));
+        // Ids 1 to 9 were acknowledged by this entity or another incarnation of it.
+        assertTrue(deduplication.isDuplicate(producer, 3, 10, 0));
+        assertTrue(deduplication.isDuplicate(producer, 9, 1, 0));
+    }
+
+    @Test
+    void slidingTheWindowFreesTheBitsOfAcknowledgedIds() {
+        final Deduplication deduplication = deduplication();
+        for (long id = 1; id <= window; id++) {
+            assertFalse(deduplication.isDuplicate(producer, id, 1, 0));
+        }
+        // Id window + 1 shares the bit of id 1, which is free once id 1 is acknowledged.
+        assertFalse(deduplication.isDuplicate(producer, window + 1, 2, 0));
+        assertTrue(deduplication.isDuplicate(producer, window + 1, 2, 0));
+        assertTrue(deduplication.isDuplicate(producer, 2, 2, 0));
+        // A later command with an older ackedBelow does not move the window back.
+        assertTrue(deduplication.isDuplicate(producer, 1, 1, 0));
+        assertFalse(deduplication.isDuplicate(producer, window + 2, 3, 0));
+    }
+
+    @Test
+    void slidingFurtherThanTheWindowClearsEveryBit() {
+        final Deduplication deduplication = deduplication();
+        for (long id = 1; id <= window; id++) {
+            assertFalse(deduplication.isDuplicate(producer, id, 1, 0));
+        }
+        final long ackedBelow = 5 * window + 3;
+        for (long id = ackedBelow; id < ackedBelow + window; id++) {
+            assertFalse(deduplication.isDuplicate(producer, id, ackedBelow, 0), "id " + id);
+        }
+        assertTrue(deduplication.isDuplicate(producer, ackedBelow - 1, ackedBelow, 0));
+    }
+
+    @Test
+    void producersAreIndependent() {
+        final Deduplication deduplication = deduplication();
+        assertFalse(deduplication.isDuplicate(producer, 1, 1, 0));
+        assertFalse(deduplication.isDuplicate(otherProducer, 1, 1, 0));
+        assertTrue(deduplication.isDuplicate(otherProducer, 1, 1, 0));
+        assertEquals(2, deduplication.producers());
+    }
+
+    @Test
+    void idleProducersAreDropped() {
+        final long timeout = idleTimeout.toNanos();
+        final long start = System.nanoTime();
+        final Deduplication deduplication = deduplication();
+        assertFalse(deduplication.isDuplicate(producer, 1, 1, start));
+        assertFalse(deduplication.isDuplicate(otherProducer, 1, 1, start));
+
+        // The other producer stays active, the producer goes idle.
+        assertTrue(deduplication.isDuplicate(otherProducer, 1, 1, start + timeout / 2));
+        assertFalse(deduplication.isDuplicate(otherProducer, 2, 1, start + timeout));
+        assertEquals(2, deduplication.producers());
+
+        assertFalse(deduplication.isDuplicate(otherProducer, 3, 1, start + timeout * 3 / 2));
+        assertEquals(1, deduplication.producers());
+        assertTrue(deduplication.isDuplicate(otherProducer, 2, 1, start + timeout * 3 / 2));
+        // A producer that returns after its idle timeout starts over.
+        assertFalse(deduplication.isDuplicate(producer, 1, 1, start + timeout * 3 / 2));
+    }
+}
@@ -0,0 +1,112 @@
+package cluster.sharding;
+
+import akka.cluster.sharding.ShardRegion;
+import org.junit.jupiter.api.Test;
+
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+class EntityMessageExtractorTest {
+    private static final int ids = 100_000;
+
+    private static String id(int i) {
+        return String.valueOf(i);
+    }
+
+    @Test
+    void shardsAreNeverNegative() {
+        final int[] hashCodes = {Integer.MIN_VALUE, Integer.MIN_VALUE + 1, -1, 0, 1, Integer.MAX_VALUE};
+        for (EntityMessageExtractor.ShardIdStrategy strategy : EntityMessageExtractor.ShardIdStrategy.values()) {
+            for (int numberOfShards : new int[]{1, 2, 7, 100, 1000}) {
+                for (int hashCode : hashCodes) {
+                    final int shard = strategy.shard(hashCode, numberOfShards);
+                    assertTrue(shard >= 0 && shard < numberOfShards, String.format("%s %d of %d", strategy, shard, numberOfShards));
+                }
+                for (int i = 0; i < 10_000; i++) {
+                    final int shard = strategy.shard(("key-" + i).hashCode(), numberOfShards);
+                    assertTrue(shard >= 0 && shard < numberOfShards, String.format("%s %d of %d", strategy, shard, numberOfShards));
+                }
+            }
+        }
+    }
+
+    @Test
+    void jumpMovesAboutOneInNPlusOneIdsToTheNewShard() {
+        for (int numberOfShards : new int[]{4, 10, 100}) {
+            final EntityMessageExtractor before = new EntityMessageExtractor(numberOfShards, EntityMessageExtractor.ShardIdStrategy.JUMP);
+            final EntityMessageExtractor after = new EntityMessageExtractor(numberOfShards + 1, EntityMessageExtractor.ShardIdStrategy.JUMP);
+            int moved = 0;
+            for (int i = 0; i < ids; i++) {
+                final Entity.Id id = Entity.Id.of(id(i));
+                final String shardAfter = after.shardId(id);
+                if (!before.shardId(id).equals(shardAfter)) {
+                    moved++;
+                    assertEquals(String.valueOf(numberOfShards), shardAfter, "ids only move to the new shard");
+                }
+            }
+            final double expected = (double) ids / (numberOfShards + 1);
+            assertEquals(expected, moved, expected * 0.1, String.format("moved from %d to %d shards", numberOfShards, numberOfShards + 1));
+        }
+    }
+
+    @Test
+    void moduloMovesAlmostEveryId() {
+        final EntityMessageExtractor before = new EntityMessageExtractor(10, EntityMessageExtractor.ShardIdStrategy.MODULO);
+        final EntityMessageExtractor after = new EntityMessageExtractor(11, EntityMessageExtractor.ShardIdStrategy.MODULO);
+        int moved = 0;
+        for (int i = 0; i < ids; i++) {
+            final Entity.Id id = Entity.Id.of(id(i));
+            if (!before.shardId(id).equals(after.shardId(id))) {
+                moved++;
+            }
+        }
+        assertTrue(moved > ids * 0.8, String.format("moved %d of %d", moved, ids));
+    }
+
+    @Test
+    void jumpSpreadsIdsEvenly() {
+        final int numberOfShards = 100;
+        final EntityMessageExtractor extractor = new EntityMessageExtractor(numberOfShards, EntityMessageExtractor.ShardIdStrategy.JUMP);
+        final int[] counts = new int[numberOfShards];
+        for (int i = 0; i < ids; i++) {
+            counts[Integer.parseInt(extractor.shardId(Entity.Id.of(id(i))))]++;
+        }
+        final double expected = (double) ids / numberOfShards;
+        for (int shard = 0; shard < numberOfShards; shard++) {
+            assertEquals(expected, counts[shard], expected * 0.2, "shard " + shard);
+        }
+    }
+
+    @Test
+    void extractsShardAndEntityIds() {
+        final EntityMessageExtractor extractor = new EntityMessageExtractor(10, EntityMessageExtractor.ShardIdStrategy.JUMP);
+        final Entity.Id id = Entity.Id.of("42");
+        final String shardId = extractor.shardId(id);
+
+        final EntityMessage.Command command = new EntityMessage.Command(1, new Entity(id, 1L));
+        assertEquals(shardId, extractor.shardId(command));
+        assertEquals("42", extractor.entityId(command));
+
+        final EntityMessage.Query query = new EntityMessage.Query(1, id);
+        assertEquals(shardId, extractor.shardId(query));
+        assertEquals("42", extractor.entityId(query));
+
+        final EntityMessage.ShardQuery shardQuery = new EntityMessage.ShardQuery(1, "3", Collections.singletonList(id));
+        assertEquals("3", extractor.shardId(shardQuery));
+        assertEquals(EntityMessage.shardEntityId("3"), extractor.entityId(shardQuery));
+
+        assertEquals(shardId, extractor.shardId(new ShardRegion.StartEntity("42")));
+        assertNull(extractor.shardId("unknown"));
+        assertNull(extractor.entityId("unknown"));
+        assertEquals(10, extractor.shardIds().size());
+    }
+
+    @Test
+    void rejectsNoShards() {
+        assertThrows(IllegalArgumentException.class, () -> new EntityMessageExtractor(0, EntityMessageExtractor.ShardIdStrategy.JUMP));
+    }
+}
@@ -0,0 +1,158 @@
+package cluster.sharding;
+
+import org.junit.jupiter.api.Test;
+
+import java.io.NotSerializableException;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+class EntityMessageSerializerTest {
+    private static final String nonAscii = "Gr\u00fc\u00dfe, \u65e5\u672c, \ud83d\ude00";
+    private static final String long5k = String.join("", Collections.nCopies(1700, "\u00fc\u20ac"));
+
+    private final EntityMessageSerializer serializer = new EntityMessageSerializer();
+
+    private static List<Entity> entities() {
+        return Arrays.asList(
+                new Entity("1", 42L),
+                new Entity("2", 7),
+                new Entity("3", null),
+                new Entity(nonAscii, nonAscii),
+                new Entity("long", long5k),
+                new Entity("bytes", new byte[]{0, 1, -1}),
+                new Entity("object", new ArrayList<>(Arrays.asList(1, "two"))));
+    }
+
+    private static List<Entity.Id> ids() {
+        return Arrays.asList(Entity.Id.of("1"), Entity.Id.of(nonAscii), Entity.Id.of(long5k));
+    }
+
+    private static List<Object> messages() {
+        final Entity entity = new Entity(nonAscii, long5k);
+        final EntityMessage.Command command = new EntityMessage.Command(1, 2, entity, EntityMessage.Command.deliveryFull, 0);
+        final EntityMessage.Command reliable = new EntityMessage.Command(3, 4, new Entity("9", 9L), EntityMessage.Command.deliveryReliable, 2);
+        final EntityMessage.CommandAck commandAck = new EntityMessage.CommandAck(5, 6, "update", entity);
+        return Arrays.asList(
+                command,
+                reliable,
+                commandAck,
+                new EntityMessage.CommandAckCompact(7, true),
+                new EntityMessage.CommandAckRange(new long[]{1, 10}, new long[]{5, 12}),
+                new EntityMessage.CommandBatch(8, "17", Arrays.asList(command, reliable)),
+                new EntityMessage.CommandBatchAck(9, Arrays.asList(commandAck, null)),
+                new EntityMessage.Query(10, 11, Entity.Id.of(nonAscii)),
+                new EntityMessage.QueryAck(12, 13, entity),
+                new EntityMessage.QueryAckNotFound(14, 15, Entity.Id.of(long5k)),
+                new EntityMessage.MultiQuery(16, 17, ids()),
+                new EntityMessage.MultiQueryAck(18, 19, entities(), ids(), Collections.emptyList()),
+                new EntityMessage.ShardQuery(20, "21", ids()),
+                new EntityMessage.ShardQueryAck(22, entities(), ids()),
+                new EntityMessage.Scan(23, "24", EntityMessage.Scan.aggregateFilter, nonAscii, 25),
+                new EntityMessage.ScanAck(26, "27", 28, 29, 30, entities()),
+                new EntityMessage.Invalidated(Entity.Id.of(nonAscii), 31),
+                entity,
+                new EntityEvent.Updated(entity));
+    }
+
+    // Serializes into the buffer, reads it back and checks that the copy serializes to the same bytes.
+    private Object roundTrip(Object message, ByteBuffer buffer) throws NotSerializableException {
+        final String manifest = serializer.manifest(message);
+        serializer.toBinary(message, buffer);
+        buffer.flip();
+        final Object copy = serializer.fromBinary(buffer, manifest);
+        assertEquals(0, buffer.remaining(), manifest);
+        assertEquals(message.getClass(), copy.getClass());
+        assertArrayEquals(serializer.toBinary(message), serializer.toBinary(copy), manifest);
+        return copy;
+    }
+
+    @Test
+    void everyManifestRoundTripsThroughAHeapBuffer() throws NotSerializableException {
+        for (Object message : messages()) {
+            roundTrip(message, ByteBuffer.allocate(1 << 20));
+        }
+    }
+
+    @Test
+    void everyManifestRoundTripsThroughADirectBuffer() throws NotSerializableException {
+        for (Object message : messages()) {
+            roundTrip(message, ByteBuffer.allocateDirect(1 << 20));
+        }
+    }
+
+    @Test
+    void everyManifestRoundTripsThroughBytes() throws NotSerializableException {
+        for (Object message : messages()) {
+            final Object copy = serializer.fromBinary(serializer.toBinary(message), serializer.manifest(message));
+            assertArrayEquals(serializer.toBinary(message), serializer.toBinary(copy));
+        }
+    }
+
+    @Test
+    void entityValuesKeepTheirTypes() throws NotSerializableException {
+        for (Entity entity : entities()) {
+            assertEquals(entity, roundTrip(entity, ByteBuffer.allocateDirect(1 << 16)));
+        }
+    }
+
+    @Test
+    void stringsKeepEveryCharacter() throws NotSerializableException {
+        final EntityMessage.Query query = (EntityMessage.Query) roundTrip(new EntityMessage.Query(1, 2, Entity.Id.of(long5k + nonAscii)), ByteBuffer.allocateDirect(1 << 16));
+        assertEquals(long5k + nonAscii, query.id.id);
+        final EntityMessage.Scan scan = (EntityMessage.Scan) roundTrip(new EntityMessage.Scan(1, "2", EntityMessage.Scan.aggregateTop, nonAscii, 3), ByteBuffer.allocate(1 << 10));
+        assertEquals(nonAscii, scan.filter);
+    }
+
+    @Test
+    void nullEntriesRoundTrip() throws NotSerializableException {
+        final EntityMessage.CommandBatchAck commandBatchAck = (EntityMessage.CommandBatchAck) roundTrip(
+                new EntityMessage.CommandBatchAck(1, Arrays.asList(null, null)), ByteBuffer.allocate(1 << 10));
+        assertEquals(Arrays.asList(null, null), commandBatchAck.commandAcks);
+        final Entity entity = (Entity) roundTrip(new Entity("1", null), ByteBuffer.allocate(1 << 10));
+        assertNull(entity.value());
+    }
+
+    @Test
+    void growsItsBufferForLargeMessages() throws NotSerializableException {
+        final List<Entity> entities = new ArrayList<>();
+        for (int i = 0; i < 100; i++) {
+            entities.add(new Entity(String.valueOf(i), long5k));
+        }
+        final EntityMessage.ScanAck scanAck = new EntityMessage.ScanAck(1, "2", 100, 100, 100, entities);
+        final EntityMessage.ScanAck copy = (EntityMessage.ScanAck) serializer.fromBinary(serializer.toBinary(scanAck), serializer.manifest(scanAck));
+        assertEquals(entities, copy.entities);
+    }
+
+    // Entity "7" with the string value U+00E9, as persisted by version 2.
+    private static final byte[] entityVersion2 = {2, 0, 0, 0, 1, '7', Entity.valueString, 0, 0, 0, 2, (byte) 0xc3, (byte) 0xa9};
+
+    @Test
+    void readsPersistedVersion2() throws NotSerializableException {
+        assertEquals(new Entity("7", "\u00e9"), serializer.fromBinary(entityVersion2, "E"));
+        assertEquals(new Entity("7", "\u00e9"), ((EntityEvent.Updated) serializer.fromBinary(ByteBuffer.wrap(entityVersion2), "EU")).entity);
+    }
+
+    @Test
+    void rejectsOtherVersionsOfMessages() {
+        final byte[] query = serializer.toBinary(new EntityMessage.Query(1, 2, Entity.Id.of("3")));
+        query[0] = 2;
+        assertThrows(NotSerializableException.class, () -> serializer.fromBinary(query, "Q"));
+        final byte[] entity = entityVersion2.clone();
+        entity[0] = 1;
+        assertThrows(NotSerializableException.class, () -> serializer.fromBinary(entity, "E"));
+    }
+
+    @Test
+    void rejectsUnknownManifests() {
+        assertThrows(NotSerializableException.class, () -> serializer.fromBinary(new byte[]{3}, "X"));
+        assertThrows(IllegalArgumentException.class, () -> serializer.manifest("not a message"));
+    }
+}
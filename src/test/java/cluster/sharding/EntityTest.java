@@ -0,0 +1,127 @@
+package cluster.sharding;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+
+class EntityTest {
+    @Test
+    void smallNumericIdsAreShared() {
+        for (String id : new String[]{"0", "7", "42", "9999", "65535"}) {
+            assertSame(Entity.Id.of(id), Entity.Id.of(new String(id.toCharArray())), id);
+            assertEquals(id, Entity.Id.of(id).id);
+        }
+    }
+
+    @Test
+    void otherIdsAreNotShared() {
+        for (String id : new String[]{"65536", "100000", "007", "00", "-1", "+1", "1a", "abc", "", " 1"}) {
+            final Entity.Id first = Entity.Id.of(id);
+            final Entity.Id second = Entity.Id.of(id);
+            assertNotSame(first, second, id);
+            assertEquals(first, second, id);
+            assertEquals(first.hashCode(), second.hashCode(), id);
+            assertEquals(id, first.id);
+        }
+    }
+
+    @Test
+    void idsOfDifferentStringsDiffer() {
+        assertNotEquals(Entity.Id.of("1"), Entity.Id.of("01"));
+        assertNotEquals(Entity.Id.of("65536"), Entity.Id.of("65537"));
+    }
+
+    @Test
+    void valuesKeepTheirType() {
+        final Object object = Collections.singletonList("x");
+        assertValue(null, Entity.valueNull);
+        assertValue("text", Entity.valueString);
+        assertValue(Long.MIN_VALUE, Entity.valueLong);
+        assertValue(Long.MAX_VALUE, Entity.valueLong);
+        assertValue(Integer.MIN_VALUE, Entity.valueInteger);
+        assertValue(-1, Entity.valueInteger);
+        assertValue(object, Entity.valueObject);
+
+        final byte[] bytes = {1, 2, 3};
+        final Entity entity = new Entity("1", bytes);
+        assertEquals(Entity.valueBytes, entity.valueType());
+        assertSame(bytes, entity.value());
+    }
+
+    private static void assertValue(Object value, byte valueType) {
+        final Entity entity = new Entity("1", value);
+        assertEquals(valueType, entity.valueType(), String.valueOf(value));
+        assertEquals(value, entity.value());
+        if (value != null) {
+            assertEquals(value.getClass(), entity.value().getClass());
+        }
+    }
+
+    @Test
+    void longValuesAreStoredUnboxed() {
+        final Entity entity = new Entity(Entity.Id.of("1"), 42L);
+        assertEquals(Entity.valueLong, entity.valueType());
+        assertEquals(42L, entity.longValue());
+        assertEquals(new Entity("1", 42L), entity);
+    }
+
+    @Test
+    void longAndIntegerValuesDiffer() {
+        assertNotEquals(new Entity("1", 1L), new Entity("1", 1));
+        assertNotEquals(new Entity("1", 1L), new Entity("2", 1L));
+        assertNotEquals(new Entity("1", null), new Entity("1", 0L));
+    }
+
+    @Test
+    void byteValuesAreComparedByContent() {
+        final Entity entity = new Entity("1", new byte[]{1, 2});
+        assertEquals(entity, new Entity("1", new byte[]{1, 2}));
+        assertEquals(entity.hashCode(), new Entity("1", new byte[]{1, 2}).hashCode());
+        assertNotEquals(entity, new Entity("1", new byte[]{1, 3}));
+    }
+
+    @Test
+    void copiesAreIndependent() {
+        final Entity entity = new Entity("1", 1L);
+        final Entity copy = entity.copy();
+        assertNotSame(entity, copy);
+        assertEquals(entity, copy);
+        assertSame(entity.id, copy.id);
+
+        entity.update(new Entity("1", "two"));
+        assertEquals("two", entity.value());
+        assertEquals(1L, copy.value());
+    }
+
+    @Test
+    void updateReplacesTheValueAndItsType() {
+        final Entity entity = new Entity("1", "text");
+        entity.update(new Entity("2", 5L));
+        assertEquals(Entity.Id.of("1"), entity.id);
+        assertEquals(Entity.valueLong, entity.valueType());
+        assertEquals(5L, entity.value());
+
+        entity.update(new Entity("2", new byte[]{9}));
+        assertArrayEquals(new byte[]{9}, (byte[]) entity.value());
+
+        entity.update(new Entity("2", null));
+        assertEquals(Entity.valueNull, entity.valueType());
+        assertNull(entity.value());
+        assertEquals(new Entity("1", null), entity);
+    }
+
+    @Test
+    void equalEntitiesHaveEqualHashCodes() {
+        for (Object value : Arrays.asList(null, "a", 1L, 1, Collections.singletonList(1))) {
+            assertEquals(new Entity("1", value).hashCode(), new Entity("1", value).hashCode(), String.valueOf(value));
+        }
+    }
+}